@@ -0,0 +1,117 @@
+package nju.edu.cn.watermark;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * 基准测试使用的合成图片
+ *
+ * <p>图片按4:3生成，内容是渐变叠加固定种子的噪声：纯色或纯渐变会被编码器压缩得过于轻松，
+ * 噪声让编解码的工作量接近真实照片，同时每次生成的结果完全相同，便于对比不同版本。</p>
+ */
+final class BenchmarkImages {
+    
+    /** 写入合成JPEG的拍摄时间 */
+    static final String DATE_TIME = "2023:05:17 09:30:00";
+    
+    private BenchmarkImages() {
+    }
+    
+    /**
+     * 生成指定像素数的 TYPE_INT_RGB 图片
+     *
+     * @param megapixels 百万像素数，如 2、12、24、50
+     * @return 合成图片
+     */
+    static BufferedImage create(int megapixels) {
+        int width = (int) Math.round(Math.sqrt(megapixels * 1_000_000.0 * 4 / 3));
+        int height = width * 3 / 4;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int seed = 0x9E3779B9;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                seed ^= seed << 13;
+                seed ^= seed >>> 17;
+                seed ^= seed << 5;
+                int noise = (seed & 0x1F) - 16;
+                int r = clamp(x * 255 / width + noise);
+                int g = clamp(y * 255 / height + noise);
+                int b = clamp((x + y) * 255 / (width + height) - noise);
+                pixels[row + x] = (r << 16) | (g << 8) | b;
+            }
+        }
+        return image;
+    }
+    
+    /**
+     * 把图片编码写入临时目录
+     *
+     * @param image 图片
+     * @param format 格式（jpg/png/bmp/tiff）；jpg会带上含 {@link #DATE_TIME} 的EXIF段
+     * @param dir 目录
+     * @return 写出的文件
+     * @throws IOException 如果编码或写入失败
+     */
+    static Path write(BufferedImage image, String format, Path dir) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, format, out)) {
+            throw new IOException("没有可用的编码器: " + format);
+        }
+        byte[] data = "jpg".equals(format) ? withExif(out.toByteArray()) : out.toByteArray();
+        Path file = dir.resolve(image.getWidth() + "x" + image.getHeight() + "." + format);
+        Files.write(file, data);
+        return file;
+    }
+    
+    /**
+     * 删除临时目录及其内容
+     */
+    static void delete(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+    
+    /**
+     * 在SOI之后插入只含 IFD0 → ExifIFD → DateTimeOriginal 的 APP1 段
+     */
+    private static byte[] withExif(byte[] jpeg) {
+        byte[] dateTime = (DATE_TIME + "\0").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer tiff = ByteBuffer.allocate(44 + dateTime.length).order(ByteOrder.LITTLE_ENDIAN);
+        tiff.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        // IFD0：只有ExifIFD指针
+        tiff.putShort((short) 1).putShort((short) 0x8769).putShort((short) 4).putInt(1).putInt(26).putInt(0);
+        // ExifIFD：DateTimeOriginal
+        tiff.putShort((short) 1).putShort((short) 0x9003).putShort((short) 2).putInt(dateTime.length).putInt(44).putInt(0);
+        tiff.put(dateTime);
+        
+        byte[] identifier = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+        int length = 2 + identifier.length + tiff.capacity();
+        ByteBuffer result = ByteBuffer.allocate(jpeg.length + 2 + length);
+        result.put(jpeg, 0, 2);
+        result.put((byte) 0xFF).put((byte) 0xE1).putShort((short) length).put(identifier).put(tiff.array());
+        result.put(jpeg, 2, jpeg.length - 2);
+        return result.array();
+    }
+    
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
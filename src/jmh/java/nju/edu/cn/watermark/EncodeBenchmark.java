@@ -0,0 +1,50 @@
+package nju.edu.cn.watermark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 编码阶段：按格式编码整帧，输出丢弃，只测编码器本身而不含磁盘写入
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class EncodeBenchmark {
+    
+    @Param({"2", "12", "24", "50"})
+    public int megapixels;
+    
+    @Param({"jpg", "png", "bmp", "tiff"})
+    public String format;
+    
+    private BufferedImage image;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        image = BenchmarkImages.create(megapixels);
+    }
+    
+    @Benchmark
+    public boolean write() throws IOException {
+        return ImageIO.write(image, format, OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,61 @@
+package nju.edu.cn.watermark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EXIF阶段：{@link ExifReader#getDateTaken(File)}
+ *
+ * <p>两种格式都走文件头快速路径：jpg 带EXIF，沿段标记读出日期；png 没有 eXIf 块，
+ * 沿块索引扫到 IEND 即判定没有拍摄日期，不做 metadata-extractor 的完整解析。</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ExifBenchmark {
+    
+    @Param({"2", "12", "24", "50"})
+    public int megapixels;
+    
+    @Param({"jpg", "png"})
+    public String format;
+    
+    private Path dir;
+    private File file;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("watermark-bench");
+        file = BenchmarkImages.write(BenchmarkImages.create(megapixels), format, dir).toFile();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkImages.delete(dir);
+    }
+    
+    @Benchmark
+    public String getDateTaken() {
+        return ExifReader.getDateTaken(file);
+    }
+}
@@ -0,0 +1,65 @@
+package nju.edu.cn.watermark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 绘制阶段：水印定位、水印图像拼接，以及把水印画到解码帧上
+ *
+ * <p>{@link #renderWatermark()} 直接在同一帧上反复绘制，测到的是绘制本身，
+ * 不含整帧复制；输出格式为jpg，TYPE_INT_RGB 不需要转换。</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class RenderBenchmark {
+    
+    private static final String TEXT = "2023-05-17";
+    private static final int FONT_SIZE = 24;
+    
+    @Param({"2", "12", "24", "50"})
+    public int megapixels;
+    
+    private BufferedImage image;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        image = BenchmarkImages.create(megapixels);
+    }
+    
+    @Benchmark
+    public BufferedImage renderWatermark() {
+        return WatermarkRenderer.renderWatermark(image, "jpg", TEXT, FONT_SIZE, Color.WHITE,
+            WatermarkRenderer.WatermarkPosition.BOTTOM_RIGHT);
+    }
+    
+    @Benchmark
+    public WatermarkRenderer.WatermarkStamp createStamp() {
+        return WatermarkRenderer.createStamp(image.getWidth(), image.getHeight(), TEXT, FONT_SIZE, Color.WHITE,
+            WatermarkRenderer.WatermarkPosition.BOTTOM_RIGHT);
+    }
+    
+    @Benchmark
+    public Point calculateWatermarkPosition() {
+        return WatermarkRenderer.calculateWatermarkPosition(image.getWidth(), image.getHeight(), 150, 32,
+            WatermarkRenderer.WatermarkPosition.BOTTOM_RIGHT, WatermarkRenderer.MARGIN);
+    }
+}
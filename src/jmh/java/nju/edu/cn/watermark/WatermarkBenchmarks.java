@@ -0,0 +1,28 @@
+package nju.edu.cn.watermark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 基准测试入口：在JMH命令行参数的基础上固定启用GC分析器，
+ * 报告吞吐量的同时给出每次操作的分配字节数和分配速率
+ *
+ * <p>用法与JMH自带入口相同，例如只跑12MP的解码：
+ * {@code java -jar photo-watermark-1.0-SNAPSHOT-benchmarks.jar Decode -p megapixels=12}</p>
+ */
+public class WatermarkBenchmarks {
+    
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        Options options = new OptionsBuilder()
+            .parent(commandLine)
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,680 @@
+package nju.edu.cn.watermark;
+
+import com.drew.imaging.ImageMetadataReader;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分阶段并行的批处理流水线
+ *
+ * <p>每个文件依次经过四个阶段，每个阶段拥有独立的线程池：</p>
+ * <ol>
+ *   <li>EXIF：读取拍摄时间，决定是否跳过；同时取出要带到输出文件的 {@link SourceMetadata}</li>
+ *   <li>解码：{@link WatermarkRenderer#readImage(File)}；基线JPEG在这一阶段直接由
+ *       {@link JpegBlockWatermarker} 完成，整帧超过内存预算的PNG/TIFF由 {@link StreamingWatermarker}
+ *       按条带完成，都不再进入后续阶段</li>
+ *   <li>绘制：{@link WatermarkRenderer#renderRenditions}，由同一个解码帧生成每个输出版本并绘制水印</li>
+ *   <li>编码：{@link WatermarkRenderer#writeImage(java.awt.image.RenderedImage, File, EncoderSettings, SourceMetadata)}，
+ *       多个版本作为独立的任务并行编码，全部写完后这个文件才算完成</li>
+ * </ol>
+ *
+ * <p>前两个阶段之间传递的只是文件引用，用按数量计的有界队列限流；
+ * 解码之后传递的是整帧图片，改由 {@link MemoryBudget} 按字节限流：解码前先按文件头估算占用并取得份额，
+ * 预算耗尽时解码线程阻塞，直到编码阶段写完并释放份额。超过预算的大图独占整个预算，
+ * 超过最大堆的图片直接判定失败，不会让整个批处理因内存不足而中止。</p>
+ *
+ * <p>输出文件的位置由 {@link OutputLayout} 决定，各阶段都先写临时文件，写完后再原子地改名为最终文件名。
+ * 解码和编码线程各自复用 {@link ImageCodecPool} 中按线程缓存的读写器。
+ * 各阶段的耗时记入 {@link PipelineMetrics}，不含等待队列和内存预算的时间。</p>
+ */
+public class BatchPipeline {
+    
+    private final OutputLayout layout;
+    private final CommandLineOptions options;
+    private final MemoryBudget memoryBudget;
+    private final IncrementalManifest manifest;
+    private final DedupIndex dedupIndex;
+    private final RunJournal journal;
+    private final ResultLog resultLog;
+    private final long renderFingerprint;
+    private final WatermarkTemplate template;
+    private final List<Rendition> renditions;
+    /** 单张图片解码所需内存的上限，超过时直接判定失败而不是尝试解码 */
+    private final long maxDecodableBytes = (long) (Runtime.getRuntime().maxMemory() * 0.9);
+    private final BatchStatistics statistics = new BatchStatistics();
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    
+    private final ThreadPoolExecutor exifStage;
+    private final ThreadPoolExecutor decodeStage;
+    private final ThreadPoolExecutor renderStage;
+    private final ThreadPoolExecutor encodeStage;
+    
+    private long pending;
+    
+    /**
+     * @param layout 输出目录布局
+     * @param options 命令行选项，决定水印样式与并行度
+     * @param memoryBudget 解码帧的内存预算
+     * @param manifest 增量清单，用于跳过上次已处理且未变化的文件
+     * @param dedupIndex 按内容去重的输出索引，为null时不去重
+     * @param journal 运行日志，记录每个文件的处理结果并跳过中断的运行中已处理的文件，为null时不记录
+     * @param resultLog 逐文件处理结果的输出
+     */
+    public BatchPipeline(OutputLayout layout, CommandLineOptions options, MemoryBudget memoryBudget,
+                         IncrementalManifest manifest, DedupIndex dedupIndex, RunJournal journal,
+                         ResultLog resultLog) {
+        this.layout = layout;
+        this.options = options;
+        this.memoryBudget = memoryBudget;
+        this.manifest = manifest;
+        this.dedupIndex = dedupIndex;
+        this.journal = journal;
+        this.resultLog = resultLog;
+        this.renderFingerprint = options.getRenderFingerprint();
+        this.template = options.getTemplate();
+        this.renditions = options.getRenditions();
+        
+        int threads = options.getParallelism();
+        this.exifStage = newStage("exif", threads, new ArrayBlockingQueue<>(threads * 4));
+        this.decodeStage = newStage("decode", threads, new ArrayBlockingQueue<>(threads * 2));
+        // 以下两个阶段的队列长度由内存预算约束，这里不再按数量限制
+        this.renderStage = newStage("render", threads, new LinkedBlockingQueue<>());
+        this.encodeStage = newStage("encode", threads, new LinkedBlockingQueue<>());
+    }
+    
+    /**
+     * 提交一个图片文件，EXIF阶段队列已满时阻塞
+     * 
+     * @param imageFile 图片文件
+     * @param attrs 遍历时得到的文件属性，用于增量判断，避免再次访问文件系统
+     * @throws RejectedExecutionException 如果流水线已关闭，或等待队列空位时线程被中断
+     */
+    public void submit(File imageFile, BasicFileAttributes attrs) {
+        if (journal != null && resume(imageFile, attrs)) {
+            return;
+        }
+        synchronized (this) {
+            pending++;
+        }
+        statistics.recordDiscovered();
+        ImageJob job = new ImageJob(imageFile, attrs.size(), attrs.lastModifiedTime().toMillis());
+        if (resultLog.hasRecordFile()) {
+            job.stageNanos = new long[PipelineMetrics.Stage.values().length];
+        }
+        try {
+            exifStage.execute(() -> readExif(job));
+        } catch (RejectedExecutionException e) {
+            // 流水线已关闭或提交时被中断，这个文件不会再完成，否则 awaitCompletion 会一直等待
+            synchronized (this) {
+                pending--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * 等待所有已提交的文件处理完毕
+     *
+     * @return 结果统计
+     * @throws InterruptedException 等待期间线程被中断
+     */
+    public synchronized BatchStatistics awaitCompletion() throws InterruptedException {
+        while (pending > 0) {
+            wait();
+        }
+        return statistics;
+    }
+    
+    /**
+     * 关闭所有阶段的线程池
+     */
+    public void shutdown() {
+        exifStage.shutdown();
+        decodeStage.shutdown();
+        renderStage.shutdown();
+        encodeStage.shutdown();
+    }
+    
+    /**
+     * @return 是否所有已提交的文件都已处理完毕
+     */
+    public synchronized boolean isIdle() {
+        return pending == 0;
+    }
+    
+    /**
+     * 预热：加载字体、各格式的ImageIO编解码器和元数据解析器，并生成数字字形的缓存，
+     * 使常驻运行时第一张到达的图片不必承担这些一次性的开销
+     *
+     * @param options 水印设置，按其字体大小生成字形缓存
+     */
+    public static void warmUp(CommandLineOptions options) {
+        warmUp(options.getFontSize(), options.getColor(), options.getPosition());
+    }
+    
+    /**
+     * 按给定的水印样式预热
+     *
+     * @param fontSize 字体大小，按它生成字形缓存
+     * @param color 字体颜色
+     * @param position 水印位置
+     */
+    static void warmUp(int fontSize, Color color, WatermarkRenderer.WatermarkPosition position) {
+        BufferedImage sample = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        WatermarkRenderer.renderWatermark(sample, "jpg", "0123456789-", fontSize, color, position);
+        try {
+            for (String format : new String[] {"jpg", "png", "bmp", "tiff"}) {
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                ImageIO.write(sample, format, encoded);
+                ImageIO.read(new ByteArrayInputStream(encoded.toByteArray()));
+                if ("jpg".equals(format)) {
+                    ImageMetadataReader.readMetadata(new ByteArrayInputStream(encoded.toByteArray()));
+                }
+            }
+        } catch (Exception e) {
+            // 预热失败不影响正常处理
+        }
+    }
+    
+    /**
+     * 沿用上次中断的运行中的处理结果：只计入统计并补记增量清单，不输出状态行
+     *
+     * @return 文件已在上次运行中处理过返回true
+     */
+    private boolean resume(File imageFile, BasicFileAttributes attrs) {
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        PhotoWatermarkTool.ProcessResult previous = journal.findResumed(imageFile, size, lastModified);
+        if (previous == null) {
+            return false;
+        }
+        // 中断的运行没有来得及保存增量清单，在这里补上
+        if (previous == PhotoWatermarkTool.ProcessResult.SUCCESS) {
+            manifest.record(imageFile, size, lastModified, renderFingerprint);
+        } else if (previous == PhotoWatermarkTool.ProcessResult.SKIPPED_NO_EXIF) {
+            manifest.record(imageFile, size, lastModified, IncrementalManifest.NO_EXIF);
+        }
+        statistics.recordDiscovered();
+        statistics.recordResumed(previous);
+        return true;
+    }
+    
+    public BatchStatistics getStatistics() {
+        return statistics;
+    }
+    
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+    
+    private void readExif(ImageJob job) {
+        try {
+            // 增量判断只比较遍历时得到的属性，不打开源文件
+            long recorded = options.isForce() ? IncrementalManifest.MISSING
+                : manifest.find(job.source, job.size, job.lastModified);
+            if (recorded == IncrementalManifest.NO_EXIF) {
+                complete(job, PhotoWatermarkTool.ProcessResult.SKIPPED_NO_EXIF, "跳过（无EXIF拍摄时间）");
+                return;
+            }
+            if (!layout.needsDateTaken()) {
+                resolveOutputs(job, null);
+                if (recorded == renderFingerprint && outputsExist(job)) {
+                    complete(job, PhotoWatermarkTool.ProcessResult.SKIPPED_UP_TO_DATE, "跳过（输出已是最新）");
+                    return;
+                }
+            }
+            
+            long start = System.nanoTime();
+            // 元数据块在读取日期的同一次扫描中取出，编码时原样写回
+            ExifReader.ExifInfo exif = ExifReader.readExif(job.source,
+                !options.isStripMetadata() && !"bmp".equals(job.outputFormat()));
+            job.dateTaken = exif.getDateTaken();
+            job.watermarkText = template.format(exif.getCaptureTime());
+            job.metadata = exif.getMetadata();
+            recordStage(job, PipelineMetrics.Stage.EXIF, start);
+            if (job.watermarkText == null) {
+                manifest.record(job.source, job.size, job.lastModified, IncrementalManifest.NO_EXIF);
+                if (exif.getStatus() == ExifFastReader.Status.ABSENT) {
+                    statistics.recordSkippedByHeaderProbe();
+                }
+                complete(job, PhotoWatermarkTool.ProcessResult.SKIPPED_NO_EXIF, exif.getError() == null
+                    ? "跳过（无EXIF拍摄时间）" : "跳过（读取EXIF信息失败: " + exif.getError() + "）");
+                return;
+            }
+            if (job.output == null) {
+                // 按日期分目录时，输出位置要读出拍摄日期之后才能确定
+                resolveOutputs(job, job.dateTaken);
+                if (recorded == renderFingerprint && outputsExist(job)) {
+                    complete(job, PhotoWatermarkTool.ProcessResult.SKIPPED_UP_TO_DATE, "跳过（输出已是最新）");
+                    return;
+                }
+            }
+            if (dedupIndex != null && reuseDuplicate(job)) {
+                return;
+            }
+            decodeStage.execute(() -> decode(job));
+        } catch (Exception | OutOfMemoryError e) {
+            fail(job, e);
+        }
+    }
+    
+    /**
+     * 确定输出文件，每个输出版本一个
+     */
+    private void resolveOutputs(ImageJob job, String dateTaken) {
+        job.output = layout.resolve(job.source, dateTaken);
+        job.outputs = new File[renditions.size()];
+        for (int i = 0; i < job.outputs.length; i++) {
+            job.outputs[i] = layout.forRendition(job.output, renditions.get(i));
+        }
+    }
+    
+    private static boolean outputsExist(ImageJob job) {
+        for (File output : job.outputs) {
+            if (!output.exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * 查找内容相同的已有输出；找到时等它生成后直接链接或复制过来，不再解码和渲染
+     *
+     * @return 已交给相同内容的输出处理返回true；没有相同内容时返回false，本文件登记为生产者
+     */
+    private boolean reuseDuplicate(ImageJob job) throws IOException {
+        long start = System.nanoTime();
+        // 输出格式不同时编码结果不同，一并计入设置
+        long settings = 31 * renderFingerprint + job.outputFormat().hashCode();
+        CompletableFuture<File> own = new CompletableFuture<>();
+        CompletableFuture<File> existing = dedupIndex.claim(job.source, job.size, job.lastModified, settings, own);
+        recordStage(job, PipelineMetrics.Stage.DEDUP, start);
+        if (existing == null) {
+            job.producedOutput = own;
+            return false;
+        }
+        // 在生成相同内容的线程中完成：链接和复制都很快，不再占用流水线的队列
+        existing.whenComplete((file, error) -> {
+            if (file == null) {
+                complete(job, PhotoWatermarkTool.ProcessResult.ERROR, "处理失败: 内容相同的图片处理失败");
+            } else {
+                linkOutput(job, file);
+            }
+        });
+        return true;
+    }
+    
+    /**
+     * 把内容相同的已有输出链接（不支持硬链接时复制）为本文件的输出，多版本时逐个版本处理
+     *
+     * @param existing 相同内容的第一个版本的输出
+     */
+    private void linkOutput(ImageJob job, File existing) {
+        try {
+            long start = System.nanoTime();
+            File existingBase = layout.fromRendition(existing, renditions.get(0));
+            for (int i = 0; i < job.outputs.length; i++) {
+                File source = layout.forRendition(existingBase, renditions.get(i));
+                if (job.outputs[i].getAbsoluteFile().equals(source.getAbsoluteFile())) {
+                    continue;
+                }
+                writeOutput(job.outputs[i], temp -> {
+                    if (options.getDedupMode() == CommandLineOptions.DedupMode.LINK) {
+                        try {
+                            Files.createLink(temp.toPath(), source.toPath());
+                            return true;
+                        } catch (IOException | UnsupportedOperationException e) {
+                            // 跨文件系统或文件系统不支持硬链接
+                        }
+                    }
+                    Files.copy(source.toPath(), temp.toPath());
+                    metrics.addBytesWritten(temp.length());
+                    return true;
+                });
+            }
+            recordStage(job, PipelineMetrics.Stage.DEDUP, start);
+            manifest.record(job.source, job.size, job.lastModified, renderFingerprint);
+            statistics.recordDeduplicated();
+            complete(job, PhotoWatermarkTool.ProcessResult.SUCCESS, "处理成功（与 " + existing.getName() + " 内容相同，复用其输出）");
+        } catch (Exception e) {
+            fail(job, e);
+        }
+    }
+    
+    private void decode(ImageJob job) {
+        try {
+            // 按块处理和分条流式处理都不解码整帧，只用于没有指定多个版本的情况
+            boolean singleOutput = !options.hasRenditions();
+            if (singleOutput && !options.isReencodeJpeg() && "jpg".equals(job.outputFormat()) && writeJpegBlocks(job)) {
+                manifest.record(job.source, job.size, job.lastModified, renderFingerprint);
+                complete(job, PhotoWatermarkTool.ProcessResult.SUCCESS, "处理成功");
+                return;
+            }
+            // 按文件头估算的占用先取得预算再解码，超大图片在这里排队而不是在解码时耗尽堆
+            long estimate = WatermarkRenderer.estimateFootprintFromHeader(job.source, job.outputFormat());
+            if (singleOutput && (estimate > memoryBudget.getCapacity() || estimate > maxDecodableBytes)
+                    && writeStreaming(job)) {
+                manifest.record(job.source, job.size, job.lastModified, renderFingerprint);
+                complete(job, PhotoWatermarkTool.ProcessResult.SUCCESS, "处理成功");
+                return;
+            }
+            if (estimate > maxDecodableBytes) {
+                throw new IOException(String.format("解码约需 %dMB 内存，超过JVM最大堆 %dMB",
+                    estimate >> 20, Runtime.getRuntime().maxMemory() >> 20));
+            }
+            if (estimate >= 0) {
+                job.reservedBytes = memoryBudget.acquire(estimate + Rendition.estimateFootprint(renditions, estimate));
+            }
+            long start = System.nanoTime();
+            job.image = WatermarkRenderer.readImage(job.source);
+            recordStage(job, PipelineMetrics.Stage.DECODE, start);
+            if (job.metadata != null) {
+                job.metadata = job.metadata.forDecodedImage(job.image.getColorModel());
+            }
+            metrics.addBytesRead(job.size);
+            if (estimate < 0) {
+                // 文件头无法解析时退回到解码后按实际帧大小记账
+                long footprint = WatermarkRenderer.estimateRenderFootprint(job.image, job.outputFormat());
+                job.reservedBytes = memoryBudget.acquire(footprint + Rendition.estimateFootprint(renditions, footprint));
+            }
+            renderStage.execute(() -> render(job));
+        } catch (Exception | OutOfMemoryError e) {
+            releaseAndFail(job, e);
+        }
+    }
+    
+    /**
+     * 尝试只重新编码水印所在块的JPEG路径，它只需要压缩数据大小的内存
+     * 
+     * @return 已写出返回true；文件布局不受支持时返回false，由调用方走完整解码路径
+     */
+    private boolean writeJpegBlocks(ImageJob job) throws IOException, InterruptedException {
+        long granted = memoryBudget.acquire(job.size * 2);
+        try {
+            long start = System.nanoTime();
+            boolean written = writeOutput(job.output, temp -> JpegBlockWatermarker.watermark(
+                job.source,
+                temp,
+                job.watermarkText,
+                options.getFontSize(),
+                options.getColor(),
+                options.getPosition()
+            ));
+            if (written) {
+                recordStage(job, PipelineMetrics.Stage.JPEG_BLOCKS, start);
+                metrics.addBytesRead(job.size);
+                metrics.addBytesWritten(job.output.length());
+            }
+            return written;
+        } finally {
+            memoryBudget.release(granted);
+        }
+    }
+    
+    /**
+     * 整帧放不进内存预算的PNG/TIFF按条带流式处理，只占用一个条带的内存
+     *
+     * @return 已写出返回true；格式或布局不受支持时返回false，由调用方走完整解码路径
+     */
+    private boolean writeStreaming(ImageJob job) throws IOException, InterruptedException {
+        String format = job.outputFormat();
+        if (!"png".equals(format) && !"tiff".equals(format)) {
+            return false;
+        }
+        long granted = memoryBudget.acquire(StreamingWatermarker.estimateFootprint());
+        try {
+            long start = System.nanoTime();
+            boolean written = writeOutput(job.output, temp -> StreamingWatermarker.watermark(
+                job.source,
+                temp,
+                format,
+                job.watermarkText,
+                options.getFontSize(),
+                options.getColor(),
+                options.getPosition(),
+                options.getEncoderSettings(),
+                job.metadata
+            ));
+            if (written) {
+                recordStage(job, PipelineMetrics.Stage.STREAMING, start);
+                metrics.addBytesRead(job.size);
+                metrics.addBytesWritten(job.output.length());
+            }
+            return written;
+        } finally {
+            memoryBudget.release(granted);
+        }
+    }
+    
+    private void render(ImageJob job) {
+        try {
+            long start = System.nanoTime();
+            job.images = WatermarkRenderer.renderRenditions(
+                job.image,
+                job.outputFormat(),
+                job.watermarkText,
+                renditions,
+                options.getFontSize(),
+                options.getColor(),
+                options.getPosition(),
+                SourceMetadata.outputOrientation(job.metadata, job.outputFormat())
+            );
+            job.image = null;
+            recordStage(job, PipelineMetrics.Stage.RENDER, start);
+            job.pendingEncodes = new AtomicInteger(job.images.length);
+            for (int i = 0; i < job.images.length; i++) {
+                int index = i;
+                encodeStage.execute(() -> encode(job, index));
+            }
+        } catch (Exception | OutOfMemoryError e) {
+            job.images = null;
+            releaseAndFail(job, e);
+        }
+    }
+    
+    /**
+     * 编码一个输出版本；各版本的编码任务并行执行，最后完成的任务汇总结果并释放内存预算
+     */
+    private void encode(ImageJob job, int index) {
+        try {
+            long start = System.nanoTime();
+            writeOutput(job.outputs[index], temp -> {
+                WatermarkRenderer.writeImage(job.images[index], temp, options.getEncoderSettings(), job.metadata);
+                return true;
+            });
+            recordStage(job, PipelineMetrics.Stage.ENCODE, start);
+            metrics.addBytesWritten(job.outputs[index].length());
+        } catch (Exception | OutOfMemoryError e) {
+            synchronized (job) {
+                if (job.encodeFailure == null) {
+                    job.encodeFailure = e;
+                }
+            }
+        } finally {
+            job.images[index] = null;
+        }
+        if (job.pendingEncodes.decrementAndGet() > 0) {
+            return;
+        }
+        job.images = null;
+        job.metadata = null;
+        memoryBudget.release(job.reservedBytes);
+        Throwable failure;
+        synchronized (job) {
+            failure = job.encodeFailure;
+        }
+        if (failure != null) {
+            fail(job, failure);
+            return;
+        }
+        manifest.record(job.source, job.size, job.lastModified, renderFingerprint);
+        complete(job, PhotoWatermarkTool.ProcessResult.SUCCESS,
+            job.outputs.length > 1 ? "处理成功（" + job.outputs.length + " 个版本）" : "处理成功");
+    }
+    
+    /**
+     * 先写到输出目录中的临时文件，写完后原子地改名为输出文件；写出失败或放弃时删除临时文件
+     *
+     * @param target 输出文件
+     * @return writer 的返回值：false 表示放弃写出，输出文件保持不变
+     */
+    private boolean writeOutput(File target, OutputWriter writer) throws IOException {
+        File temp = layout.prepare(target);
+        boolean written = false;
+        try {
+            written = writer.write(temp);
+            if (written) {
+                OutputLayout.commit(temp, target);
+            }
+            return written;
+        } finally {
+            if (!written) {
+                OutputLayout.discard(temp);
+            }
+        }
+    }
+    
+    /**
+     * 把输出写到给定的临时文件
+     */
+    private interface OutputWriter {
+        boolean write(File temp) throws IOException;
+    }
+    
+    private void releaseAndFail(ImageJob job, Throwable e) {
+        job.image = null;
+        memoryBudget.release(job.reservedBytes);
+        fail(job, e);
+    }
+    
+    /**
+     * 记录失败；内存不足也只让这一张图片失败，不让工作线程退出，否则未完成计数永远不会归零
+     */
+    private void fail(ImageJob job, Throwable e) {
+        String reason = e instanceof OutOfMemoryError ? "内存不足 (" + e.getMessage() + ")" : e.getMessage();
+        complete(job, PhotoWatermarkTool.ProcessResult.ERROR, "处理失败: " + reason);
+    }
+    
+    /**
+     * 记录一个阶段的耗时；写结果文件时同时计入这个文件的各阶段耗时
+     */
+    private void recordStage(ImageJob job, PipelineMetrics.Stage stage, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        metrics.record(stage, elapsed);
+        if (job.stageNanos != null) {
+            // 多个版本的编码任务并行，耗时累加
+            synchronized (job) {
+                job.stageNanos[stage.ordinal()] += elapsed;
+            }
+        }
+    }
+    
+    /**
+     * 记录结果并交给结果输出，最后才减少未完成计数；汇总信息在关闭结果输出之后打印，出现在所有状态行之后
+     */
+    private void complete(ImageJob job, PhotoWatermarkTool.ProcessResult result, String message) {
+        statistics.record(result);
+        if (journal != null) {
+            journal.append(result, job.source, job.size, job.lastModified);
+        }
+        long outputBytes = 0;
+        if (job.stageNanos != null && result == PhotoWatermarkTool.ProcessResult.SUCCESS) {
+            for (File output : job.outputs) {
+                outputBytes += output.length();
+            }
+        }
+        resultLog.record(result, job.source, message, job.dateTaken, job.stageNanos, outputBytes,
+            statistics.getTotalCount(), statistics.getDiscoveredCount());
+        if (job.producedOutput != null) {
+            // 等待这份内容的相同文件在这里得到结果
+            job.producedOutput.complete(result == PhotoWatermarkTool.ProcessResult.SUCCESS ? job.outputs[0] : null);
+        }
+        synchronized (this) {
+            pending--;
+            notifyAll();
+        }
+    }
+    
+    /**
+     * 一个文件在各阶段之间传递的状态，同一时刻只被一个阶段的线程访问；
+     * 编码阶段的多个版本并行时，每个任务只访问自己的下标，失败原因和各阶段耗时在对象锁内记录
+     */
+    private final class ImageJob {
+        final File source;
+        final long size;
+        final long lastModified;
+        /** 拍摄日期（yyyy-MM-dd），用于按日期分目录和结果记录 */
+        String dateTaken;
+        /** 按模板生成的水印文本 */
+        String watermarkText;
+        /** 由 {@link OutputLayout} 确定的输出文件 */
+        File output;
+        /** 每个输出版本的输出文件，没有指定多个版本时只有 output 本身 */
+        File[] outputs;
+        SourceMetadata metadata;
+        /** 登记为这份内容的生产者时，完成后以输出文件（失败时为null）完成 */
+        CompletableFuture<File> producedOutput;
+        BufferedImage image;
+        /** 绘制了水印的各版本图片，与 outputs 一一对应 */
+        BufferedImage[] images;
+        AtomicInteger pendingEncodes;
+        Throwable encodeFailure;
+        long reservedBytes;
+        /** 写结果文件时各阶段的耗时（纳秒），按阶段序号；不写时为null */
+        long[] stageNanos;
+        
+        ImageJob(File source, long size, long lastModified) {
+            this.source = source;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+        
+        String outputFormat() {
+            return WatermarkRenderer.getImageFormat(source.getName());
+        }
+    }
+    
+    /**
+     * 创建固定大小的阶段线程池，队列满时让提交方阻塞而不是丢弃任务
+     */
+    private static ThreadPoolExecutor newStage(String name, int threads, BlockingQueue<Runnable> queue) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, "watermark-" + name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue, factory,
+            (runnable, executor) -> {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("流水线已关闭");
+                }
+                try {
+                    executor.getQueue().put(runnable);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("提交任务时被中断", e);
+                }
+            });
+    }
+}
@@ -0,0 +1,114 @@
+package nju.edu.cn.watermark;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批处理结果计数器，可被多个工作线程并发更新
+ */
+public class BatchStatistics {
+    
+    private final AtomicInteger discoveredCount = new AtomicInteger();
+    private final AtomicInteger successCount = new AtomicInteger();
+    private final AtomicInteger skippedCount = new AtomicInteger();
+    private final AtomicInteger headerProbeSkippedCount = new AtomicInteger();
+    private final AtomicInteger upToDateCount = new AtomicInteger();
+    private final AtomicInteger errorCount = new AtomicInteger();
+    private final AtomicInteger deduplicatedCount = new AtomicInteger();
+    private final AtomicInteger resumedCount = new AtomicInteger();
+    private final AtomicInteger resumedSuccessCount = new AtomicInteger();
+    
+    /**
+     * 记录遍历阶段新发现的一个文件
+     */
+    public void recordDiscovered() {
+        discoveredCount.incrementAndGet();
+    }
+    
+    /**
+     * 记录一个文件的处理结果
+     */
+    public void record(PhotoWatermarkTool.ProcessResult result) {
+        switch (result) {
+            case SUCCESS:
+                successCount.incrementAndGet();
+                break;
+            case SKIPPED_NO_EXIF:
+                skippedCount.incrementAndGet();
+                break;
+            case SKIPPED_UP_TO_DATE:
+                upToDateCount.incrementAndGet();
+                break;
+            case ERROR:
+                errorCount.incrementAndGet();
+                break;
+        }
+    }
+    
+    /**
+     * 记录一个仅凭文件头和段/块索引就判定没有拍摄日期、未做完整解析的文件（同时计入跳过）
+     */
+    public void recordSkippedByHeaderProbe() {
+        headerProbeSkippedCount.incrementAndGet();
+    }
+    
+    /**
+     * 记录一个复用了相同内容的已有输出、没有重新渲染的文件（同时计入成功）
+     */
+    public void recordDeduplicated() {
+        deduplicatedCount.incrementAndGet();
+    }
+    
+    /**
+     * 记录一个在上次中断的运行中已经处理过、本次直接沿用结果的文件（同时计入其结果）
+     */
+    public void recordResumed(PhotoWatermarkTool.ProcessResult result) {
+        record(result);
+        resumedCount.incrementAndGet();
+        if (result == PhotoWatermarkTool.ProcessResult.SUCCESS) {
+            resumedSuccessCount.incrementAndGet();
+        }
+    }
+    
+    public int getDiscoveredCount() {
+        return discoveredCount.get();
+    }
+    
+    public int getSuccessCount() {
+        return successCount.get();
+    }
+    
+    public int getSkippedCount() {
+        return skippedCount.get();
+    }
+    
+    public int getHeaderProbeSkippedCount() {
+        return headerProbeSkippedCount.get();
+    }
+    
+    public int getUpToDateCount() {
+        return upToDateCount.get();
+    }
+    
+    public int getErrorCount() {
+        return errorCount.get();
+    }
+    
+    public int getDeduplicatedCount() {
+        return deduplicatedCount.get();
+    }
+    
+    public int getResumedCount() {
+        return resumedCount.get();
+    }
+    
+    /**
+     * @return 本次运行实际处理成功的文件数，不含沿用上次运行结果的文件
+     */
+    public int getProcessedSuccessCount() {
+        return successCount.get() - resumedSuccessCount.get();
+    }
+    
+    public int getTotalCount() {
+        return successCount.get() + skippedCount.get() + upToDateCount.get() + errorCount.get();
+    }
+}
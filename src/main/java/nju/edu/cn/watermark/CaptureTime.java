@@ -0,0 +1,239 @@
+package nju.edu.cn.watermark;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * EXIF记录的拍摄时间：日期，以及可选的时刻和UTC偏移
+ *
+ * <p>直接按字符位置从标签的ASCII字节中取出数字：DateTimeOriginal 的 "yyyy:MM:dd HH:mm:ss"
+ * 和 OffsetTimeOriginal 的 "+08:00"，不拆分字符串，也不经过 {@link java.time.format.DateTimeFormatter}。
+ * 日期必须真实存在（分隔符可以是冒号或短横线）；时刻缺失或不合法（有的相机写成空格）时只保留日期。</p>
+ */
+public final class CaptureTime {
+    
+    /** 没有记录时刻或偏移 */
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+    /** UTC偏移的最大值（秒），与 {@link ZoneOffset} 相同 */
+    private static final int MAX_OFFSET_SECONDS = 18 * 3600;
+    
+    private final int year;
+    private final int month;
+    private final int day;
+    private final int secondOfDay;
+    private final int offsetSeconds;
+    private final String date;
+    
+    private CaptureTime(int year, int month, int day, int secondOfDay, int offsetSeconds, String date) {
+        this.year = year;
+        this.month = month;
+        this.day = day;
+        this.secondOfDay = secondOfDay;
+        this.offsetSeconds = offsetSeconds;
+        this.date = date;
+    }
+    
+    /**
+     * 解析EXIF日期时间标签的值
+     *
+     * @param ascii 标签值的字节，不含结尾的NUL
+     * @param length 有效字节数
+     * @return 拍摄时间，日期不合法时返回null
+     */
+    public static CaptureTime parse(byte[] ascii, int length) {
+        if (length < 10 || (length > 10 && ascii[10] != ' ')) {
+            return null;
+        }
+        int separator = ascii[4];
+        if ((separator != ':' && separator != '-') || ascii[7] != separator) {
+            return null;
+        }
+        int year = digits(ascii, 0, 4);
+        int month = digits(ascii, 5, 2);
+        int day = digits(ascii, 8, 2);
+        if (year <= 0 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)) {
+            return null;
+        }
+        int secondOfDay = UNKNOWN;
+        if (length >= 19 && ascii[13] == ':' && ascii[16] == ':') {
+            int hour = digits(ascii, 11, 2);
+            int minute = digits(ascii, 14, 2);
+            int second = digits(ascii, 17, 2);
+            if (hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+                secondOfDay = hour * 3600 + minute * 60 + second;
+            }
+        }
+        char[] date = {
+            (char) ascii[0], (char) ascii[1], (char) ascii[2], (char) ascii[3], '-',
+            (char) ascii[5], (char) ascii[6], '-', (char) ascii[8], (char) ascii[9]
+        };
+        return new CaptureTime(year, month, day, secondOfDay, UNKNOWN, new String(date));
+    }
+    
+    /**
+     * 解析完整解析得到的日期时间字符串
+     *
+     * @param exifDateTime EXIF日期时间字符串，如 "2023:05:01 12:00:00"
+     * @return 拍摄时间，为null或日期不合法时返回null
+     */
+    public static CaptureTime parse(String exifDateTime) {
+        if (exifDateTime == null) {
+            return null;
+        }
+        byte[] ascii = exifDateTime.getBytes(StandardCharsets.US_ASCII);
+        return parse(ascii, ascii.length);
+    }
+    
+    /**
+     * 带上OffsetTimeOriginal等标签记录的UTC偏移
+     *
+     * @param ascii 标签值的字节，如 "+08:00"，不含结尾的NUL
+     * @param length 有效字节数
+     * @return 带偏移的拍摄时间；偏移不合法（如写成空格）时返回本身
+     */
+    public CaptureTime withOffset(byte[] ascii, int length) {
+        if (length != 6 || (ascii[0] != '+' && ascii[0] != '-') || ascii[3] != ':') {
+            return this;
+        }
+        int hours = digits(ascii, 1, 2);
+        int minutes = digits(ascii, 4, 2);
+        if (hours < 0 || minutes < 0 || minutes >= 60) {
+            return this;
+        }
+        int seconds = hours * 3600 + minutes * 60;
+        if (seconds > MAX_OFFSET_SECONDS) {
+            return this;
+        }
+        return new CaptureTime(year, month, day, secondOfDay, ascii[0] == '-' ? -seconds : seconds, date);
+    }
+    
+    /**
+     * @param offset 完整解析得到的偏移字符串，可以为null
+     * @return 带偏移的拍摄时间；没有或不合法时返回本身
+     */
+    public CaptureTime withOffset(String offset) {
+        if (offset == null) {
+            return this;
+        }
+        byte[] ascii = offset.trim().getBytes(StandardCharsets.US_ASCII);
+        return withOffset(ascii, ascii.length);
+    }
+    
+    /**
+     * 从指定位置读取若干位十进制数字
+     *
+     * @return 数值，含有非数字字符时返回-1
+     */
+    private static int digits(byte[] ascii, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int digit = ascii[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+    
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+    
+    /**
+     * @return 拍摄日期（yyyy-MM-dd）
+     */
+    public String getDate() {
+        return date;
+    }
+    
+    public boolean hasTime() {
+        return secondOfDay != UNKNOWN;
+    }
+    
+    public boolean hasOffset() {
+        return offsetSeconds != UNKNOWN;
+    }
+    
+    /**
+     * @return UTC偏移（秒），没有记录时为0
+     */
+    public int getOffsetSeconds() {
+        return hasOffset() ? offsetSeconds : 0;
+    }
+    
+    public LocalDate toLocalDate() {
+        return LocalDate.of(year, month, day);
+    }
+    
+    /**
+     * @return 拍摄时刻，没有记录时刻时返回null
+     */
+    public LocalDateTime toLocalDateTime() {
+        if (!hasTime()) {
+            return null;
+        }
+        return LocalDateTime.of(year, month, day, secondOfDay / 3600, secondOfDay / 60 % 60, secondOfDay % 60);
+    }
+    
+    /**
+     * @return 带偏移的拍摄时刻，没有记录时刻或偏移时返回null
+     */
+    public OffsetDateTime toOffsetDateTime() {
+        if (!hasOffset()) {
+            return null;
+        }
+        LocalDateTime time = toLocalDateTime();
+        return time == null ? null : OffsetDateTime.of(time, ZoneOffset.ofTotalSeconds(offsetSeconds));
+    }
+    
+    /**
+     * 追加 HH:mm:ss 格式的时刻，没有记录时刻时不追加
+     */
+    void appendTime(StringBuilder text) {
+        if (hasTime()) {
+            appendTwoDigits(text, secondOfDay / 3600).append(':');
+            appendTwoDigits(text, secondOfDay / 60 % 60).append(':');
+            appendTwoDigits(text, secondOfDay % 60);
+        }
+    }
+    
+    /**
+     * 追加 +HH:mm 格式的偏移，没有记录偏移时不追加
+     */
+    void appendOffset(StringBuilder text) {
+        if (hasOffset()) {
+            int seconds = Math.abs(offsetSeconds);
+            text.append(offsetSeconds < 0 ? '-' : '+');
+            appendTwoDigits(text, seconds / 3600).append(':');
+            appendTwoDigits(text, seconds / 60 % 60);
+        }
+    }
+    
+    private static StringBuilder appendTwoDigits(StringBuilder text, int value) {
+        return text.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(date);
+        if (hasTime()) {
+            appendTime(text.append(' '));
+        }
+        appendOffset(text);
+        return text.toString();
+    }
+}
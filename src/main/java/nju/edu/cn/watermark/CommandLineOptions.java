@@ -2,6 +2,9 @@ package nju.edu.cn.watermark;
 
 import org.apache.commons.cli.*;
 import java.awt.Color;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * 命令行选项解析器
@@ -10,8 +13,27 @@ public class CommandLineOptions {
     
     private String inputPath;
     private int fontSize = 24;
-    private Color color = Color.WHITE;
+    private Color color = WatermarkRenderer.AUTO_COLOR;
     private WatermarkRenderer.WatermarkPosition position = WatermarkRenderer.WatermarkPosition.BOTTOM_RIGHT;
+    private WatermarkTemplate template = WatermarkTemplate.DEFAULT;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private boolean force = false;
+    private boolean resume = false;
+    private boolean reencodeJpeg = false;
+    private boolean stripMetadata = false;
+    private DedupMode dedupMode = DedupMode.LINK;
+    private OutputLayout.Mode outputLayout = OutputLayout.Mode.FLAT;
+    private int progressInterval = 0;
+    private ResultLog.Level logLevel = ResultLog.Level.FILE;
+    private String resultLogPath;
+    private long maxMemory = 0;
+    private boolean watch = false;
+    private long watchSettleMillis = 2000;
+    private int previewCount = 0;
+    private int servePort = 0;
+    private String bindAddress = "127.0.0.1";
+    private EncoderSettings encoderSettings = EncoderSettings.DEFAULT;
+    private List<Rendition> renditions = Collections.singletonList(Rendition.original());
     
     public CommandLineOptions() {}
     
@@ -34,8 +56,25 @@ public class CommandLineOptions {
                 return false;
             }
             
-            // 输入路径（必需）
-            if (!cmd.hasOption("i")) {
+            // HTTP服务模式
+            if (cmd.hasOption("serve")) {
+                try {
+                    servePort = Integer.parseInt(cmd.getOptionValue("serve"));
+                    if (servePort <= 0 || servePort > 65535) {
+                        System.err.println("错误: 端口必须在1-65535之间");
+                        return false;
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("错误: 无效的端口格式");
+                    return false;
+                }
+            }
+            if (cmd.hasOption("bind")) {
+                bindAddress = cmd.getOptionValue("bind");
+            }
+            
+            // 输入路径（必需，服务模式除外）
+            if (!cmd.hasOption("i") && servePort == 0) {
                 System.err.println("错误: 必须指定输入路径 (-i 或 --input)");
                 printHelp(options);
                 return false;
@@ -66,6 +105,189 @@ public class CommandLineOptions {
                 position = WatermarkRenderer.WatermarkPosition.fromString(cmd.getOptionValue("p"));
             }
             
+            // 水印文本模板，启动时编译一次
+            if (cmd.hasOption("template")) {
+                try {
+                    template = WatermarkTemplate.compile(cmd.getOptionValue("template"));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("错误: " + e.getMessage());
+                    return false;
+                }
+            }
+            
+            // 并行度（--threads 与 --parallelism 等价）
+            String threadsValue = cmd.hasOption("t") ? cmd.getOptionValue("t") : cmd.getOptionValue("parallelism");
+            if (threadsValue != null) {
+                try {
+                    parallelism = Integer.parseInt(threadsValue);
+                    if (parallelism <= 0) {
+                        System.err.println("错误: 线程数必须大于0");
+                        return false;
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("错误: 无效的线程数格式");
+                    return false;
+                }
+            }
+            
+            // 忽略增量清单，全部重新处理
+            force = cmd.hasOption("f");
+            
+            // 跳过中断的运行中已处理的文件
+            resume = cmd.hasOption("resume");
+            
+            // JPEG完整解码并重新编码，而不是只重新编码水印所在的块
+            reencodeJpeg = cmd.hasOption("reencode-jpeg");
+            
+            // 不把源图片的EXIF、XMP、ICC等元数据带到输出文件
+            stripMetadata = cmd.hasOption("strip-metadata");
+            
+            // 内容相同的输入复用已有输出的方式
+            if (cmd.hasOption("dedup")) {
+                switch (cmd.getOptionValue("dedup").toLowerCase()) {
+                    case "link":
+                        dedupMode = DedupMode.LINK;
+                        break;
+                    case "copy":
+                        dedupMode = DedupMode.COPY;
+                        break;
+                    case "off":
+                        dedupMode = DedupMode.OFF;
+                        break;
+                    default:
+                        System.err.println("错误: 无效的去重方式: " + cmd.getOptionValue("dedup") + "（可选 link、copy、off）");
+                        return false;
+                }
+            }
+            
+            // 输出目录布局
+            if (cmd.hasOption("layout")) {
+                switch (cmd.getOptionValue("layout").toLowerCase()) {
+                    case "flat":
+                        outputLayout = OutputLayout.Mode.FLAT;
+                        break;
+                    case "mirror":
+                        outputLayout = OutputLayout.Mode.MIRROR;
+                        break;
+                    case "date":
+                        outputLayout = OutputLayout.Mode.DATE;
+                        break;
+                    case "hash":
+                        outputLayout = OutputLayout.Mode.HASH;
+                        break;
+                    default:
+                        System.err.println("错误: 无效的输出布局: " + cmd.getOptionValue("layout") + "（可选 flat、mirror、date、hash）");
+                        return false;
+                }
+            }
+            
+            // 解码帧的内存预算
+            if (cmd.hasOption("max-memory")) {
+                maxMemory = parseByteSize(cmd.getOptionValue("max-memory"));
+                if (maxMemory <= 0) {
+                    System.err.println("错误: 无效的内存预算，示例: 2g, 512m");
+                    return false;
+                }
+            }
+            
+            // 定时打印进度行
+            if (cmd.hasOption("progress")) {
+                try {
+                    progressInterval = Integer.parseInt(cmd.getOptionValue("progress"));
+                    if (progressInterval <= 0) {
+                        System.err.println("错误: 进度输出间隔必须大于0秒");
+                        return false;
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("错误: 无效的进度输出间隔格式");
+                    return false;
+                }
+            }
+            
+            // 控制台输出级别
+            if (cmd.hasOption("log-level")) {
+                switch (cmd.getOptionValue("log-level").toLowerCase()) {
+                    case "quiet":
+                        logLevel = ResultLog.Level.QUIET;
+                        break;
+                    case "summary":
+                        logLevel = ResultLog.Level.SUMMARY;
+                        break;
+                    case "file":
+                        logLevel = ResultLog.Level.FILE;
+                        break;
+                    default:
+                        System.err.println("错误: 无效的输出级别: " + cmd.getOptionValue("log-level") + "（可选 quiet、summary、file）");
+                        return false;
+                }
+            }
+            
+            // 逐文件的结果记录
+            if (cmd.hasOption("result-log")) {
+                resultLogPath = cmd.getOptionValue("result-log");
+                try {
+                    ResultLog.isJsonLines(resultLogPath);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("错误: " + e.getMessage());
+                    return false;
+                }
+            }
+            
+            // 编码参数
+            if (!parseEncoderSettings(cmd)) {
+                return false;
+            }
+            
+            // 同一次解码输出的多个版本
+            if (cmd.hasOption("renditions")) {
+                try {
+                    renditions = Rendition.parseList(cmd.getOptionValue("renditions"));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("错误: " + e.getMessage());
+                    return false;
+                } catch (IOException e) {
+                    System.err.println("错误: 无法读取输出版本文件: " + e.getMessage());
+                    return false;
+                }
+            }
+            
+            // 常驻监视输入目录
+            watch = cmd.hasOption("watch");
+            if (cmd.hasOption("watch-settle")) {
+                try {
+                    watchSettleMillis = Long.parseLong(cmd.getOptionValue("watch-settle"));
+                    if (watchSettleMillis < 0) {
+                        System.err.println("错误: 文件稳定等待时间不能为负数");
+                        return false;
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("错误: 无效的文件稳定等待时间格式");
+                    return false;
+                }
+            }
+            if (watch && resume) {
+                System.err.println("错误: --resume 不能与 --watch 同时使用，监视模式空闲时会自动保存增量清单");
+                return false;
+            }
+            
+            // 抽样预览，只生成联系表
+            if (cmd.hasOption("preview")) {
+                try {
+                    previewCount = Integer.parseInt(cmd.getOptionValue("preview"));
+                    if (previewCount <= 0 || previewCount > 100) {
+                        System.err.println("错误: 预览图片数必须在1-100之间");
+                        return false;
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("错误: 无效的预览图片数格式");
+                    return false;
+                }
+                if (watch) {
+                    System.err.println("错误: --preview 不能与 --watch 同时使用");
+                    return false;
+                }
+            }
+            
             return true;
             
         } catch (ParseException e) {
@@ -84,8 +306,7 @@ public class CommandLineOptions {
         options.addOption(Option.builder("i")
                 .longOpt("input")
                 .hasArg()
-                .required()
-                .desc("输入图片文件或目录路径（必需）")
+                .desc("输入图片文件或目录路径（除服务模式外必需）")
                 .build());
         
         options.addOption(Option.builder("s")
@@ -97,7 +318,7 @@ public class CommandLineOptions {
         options.addOption(Option.builder("c")
                 .longOpt("color")
                 .hasArg()
-                .desc("字体颜色，支持格式：red, blue, white, #FF0000, 255,0,0 (默认: white)")
+                .desc("字体颜色，支持格式：auto（按水印处的背景亮度自动选择）, red, blue, white, #FF0000, 255,0,0 (默认: auto)")
                 .build());
         
         options.addOption(Option.builder("p")
@@ -106,6 +327,160 @@ public class CommandLineOptions {
                 .desc("水印位置：tl(左上), tc(顶部居中), tr(右上), cl(左侧居中), c(居中), cr(右侧居中), bl(左下), bc(底部居中), br(右下) (默认: br)")
                 .build());
         
+        options.addOption(Option.builder()
+                .longOpt("template")
+                .hasArg()
+                .argName("模板")
+                .desc("水印文本模板：{date} 日期、{time} 时刻、{offset} UTC偏移，{date:模式}/{time:模式} 按日期时间模式输出，如 \"{date:yyyy/MM/dd} {time:HH:mm}\" (默认: {date})")
+                .build());
+        
+        options.addOption(Option.builder("t")
+                .longOpt("threads")
+                .hasArg()
+                .desc("每个处理阶段（EXIF/解码/绘制/编码）的工作线程数 (默认: CPU核数)")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("parallelism")
+                .hasArg()
+                .desc("同 --threads")
+                .build());
+        
+        options.addOption(Option.builder("f")
+                .longOpt("force")
+                .desc("忽略输出目录中的增量清单，重新处理所有图片")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("resume")
+                .desc("接着上次被中断的运行处理，跳过运行日志中已处理的文件，汇总合并两次运行的结果")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("reencode-jpeg")
+                .desc("JPEG完整解码后重新编码（默认只重新编码水印覆盖的块，其余数据原样保留）")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("strip-metadata")
+                .desc("重新编码的输出不带源图片的EXIF、XMP、ICC等元数据（按块处理的JPEG始终保留）")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("dedup")
+                .hasArg()
+                .argName("方式")
+                .desc("内容相同的图片只处理一次，其余复用输出：link 硬链接、copy 复制、off 不去重 (默认: link)")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("layout")
+                .hasArg()
+                .argName("布局")
+                .desc("输出目录布局：flat 平铺、mirror 镜像源目录、date 按拍摄日期 yyyy/MM/dd、hash 哈希分片 (默认: flat)")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("max-memory")
+                .hasArg()
+                .argName("大小")
+                .desc("同时驻留的解码图片最多占用的内存，如 2g、512m (默认: 最大堆的60%)")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("progress")
+                .hasArg()
+                .argName("秒")
+                .desc("每隔指定秒数打印一行进度（已处理数、吞吐量、堆占用）")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("log-level")
+                .hasArg()
+                .argName("级别")
+                .desc("控制台输出：quiet 只输出失败的文件、summary 另外输出汇总、file 每个文件一行 (默认: file)")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("result-log")
+                .hasArg()
+                .argName("文件")
+                .desc("把每个文件的结果（路径、状态、拍摄日期、各阶段耗时、输出字节数）写入 .csv 或 .jsonl 文件")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("watch")
+                .desc("处理完已有图片后继续监视输入目录，新图片写完后立即处理，按 Ctrl+C 退出")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("watch-settle")
+                .hasArg()
+                .argName("毫秒")
+                .desc("监视模式下，无法判断是否写完的文件大小保持不变多久后才处理 (默认: 2000)")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("preview")
+                .hasArg()
+                .argName("数量")
+                .desc("不处理图片，均匀抽取指定数量的图片缩小解码并绘制水印，拼成一张联系表，用于确认水印大小和位置")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("jpeg-quality")
+                .hasArg()
+                .argName("1-100")
+                .desc("JPEG编码质量，指定后JPEG完整重新编码 (默认: 75)")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("jpeg-progressive")
+                .desc("输出渐进式JPEG，指定后JPEG完整重新编码")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("jpeg-subsampling")
+                .hasArg()
+                .argName("采样")
+                .desc("JPEG色度采样：420、422、444，指定后JPEG完整重新编码 (默认: 420)")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("png-level")
+                .hasArg()
+                .argName("0-9")
+                .desc("PNG的deflate压缩级别，越大文件越小、编码越慢 (默认: 4)")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("tiff-compression")
+                .hasArg()
+                .argName("方式")
+                .desc("TIFF压缩方式：none、lzw、deflate (默认: none)")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("renditions")
+                .hasArg()
+                .argName("版本")
+                .desc("一次解码输出多个版本，写法 名称[:长边[:字体大小]]，逗号分隔，如 full,web:2048,thumb:320；也可写 @文件")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("serve")
+                .hasArg()
+                .argName("端口")
+                .desc("启动HTTP水印服务（POST /watermark），此时不需要 -i，其他水印选项作为默认值")
+                .build());
+        
+        options.addOption(Option.builder()
+                .longOpt("bind")
+                .hasArg()
+                .argName("地址")
+                .desc("HTTP服务监听的地址 (默认: 127.0.0.1)")
+                .build());
+        
         options.addOption(Option.builder("h")
                 .longOpt("help")
                 .desc("显示帮助信息")
@@ -114,6 +489,72 @@ public class CommandLineOptions {
         return options;
     }
     
+    /**
+     * 解析各格式的编码参数。JPEG参数只作用于完整重新编码的JPEG，指定任一JPEG参数时自动启用 --reencode-jpeg
+     * 
+     * @return 解析成功返回true
+     */
+    private boolean parseEncoderSettings(CommandLine cmd) {
+        int jpegQuality = EncoderSettings.DEFAULT_JPEG_QUALITY;
+        int pngLevel = EncoderSettings.DEFAULT_PNG_LEVEL;
+        try {
+            if (cmd.hasOption("jpeg-quality")) {
+                jpegQuality = Integer.parseInt(cmd.getOptionValue("jpeg-quality"));
+            }
+            if (cmd.hasOption("png-level")) {
+                pngLevel = Integer.parseInt(cmd.getOptionValue("png-level"));
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("错误: 无效的编码参数格式");
+            return false;
+        }
+        try {
+            encoderSettings = new EncoderSettings(
+                jpegQuality,
+                cmd.hasOption("jpeg-progressive"),
+                cmd.getOptionValue("jpeg-subsampling", EncoderSettings.DEFAULT_JPEG_SUBSAMPLING),
+                pngLevel,
+                cmd.getOptionValue("tiff-compression", EncoderSettings.DEFAULT_TIFF_COMPRESSION)
+            );
+        } catch (IllegalArgumentException e) {
+            System.err.println("错误: " + e.getMessage());
+            return false;
+        }
+        if (cmd.hasOption("jpeg-quality") || cmd.hasOption("jpeg-progressive") || cmd.hasOption("jpeg-subsampling")) {
+            reencodeJpeg = true;
+        }
+        return true;
+    }
+    
+    /**
+     * 解析带单位的字节数，支持 k/m/g 后缀（可带b，不区分大小写）
+     * 
+     * @return 字节数，格式无效时返回-1
+     */
+    static long parseByteSize(String value) {
+        String text = value.trim().toLowerCase();
+        if (text.endsWith("b")) {
+            text = text.substring(0, text.length() - 1);
+        }
+        long multiplier = 1;
+        if (text.endsWith("k")) {
+            multiplier = 1L << 10;
+        } else if (text.endsWith("m")) {
+            multiplier = 1L << 20;
+        } else if (text.endsWith("g")) {
+            multiplier = 1L << 30;
+        }
+        if (multiplier != 1) {
+            text = text.substring(0, text.length() - 1);
+        }
+        try {
+            long number = Long.parseLong(text.trim());
+            return number > 0 && number <= Long.MAX_VALUE / multiplier ? number * multiplier : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
     /**
      * 打印帮助信息
      */
@@ -125,7 +566,14 @@ public class CommandLineOptions {
                           "\n示例:\n" +
                           "  java -jar photo-watermark.jar -i /path/to/photos\n" +
                           "  java -jar photo-watermark.jar -i /path/to/photos -s 30 -c red -p tl\n" +
-                          "  java -jar photo-watermark.jar -i photo.jpg -s 24 -c \"255,255,255\" -p br\n\n" +
+                          "  java -jar photo-watermark.jar -i photo.jpg -s 24 -c \"255,255,255\" -p br\n" +
+                          "  java -jar photo-watermark.jar -i /path/to/photos -t 16\n" +
+                          "  java -jar photo-watermark.jar -i /path/to/photos --template \"{date:yyyy/MM/dd} {time:HH:mm}\"\n" +
+                          "  java -jar photo-watermark.jar -i /path/to/scans --max-memory 2g\n" +
+                          "  java -jar photo-watermark.jar -i /path/to/inbox --watch\n" +
+                          "  java -jar photo-watermark.jar -i /path/to/photos --preview 24 -s 48 -p bc\n" +
+                          "  java -jar photo-watermark.jar -i /path/to/photos --jpeg-quality 90 --png-level 1\n" +
+                          "  java -jar photo-watermark.jar --serve 8080 -s 30\n\n" +
                           "支持的图片格式: JPG, JPEG, PNG, TIFF, BMP\n" +
                           "输出目录: 原目录下的 [原目录名]_watermark 子目录\n");
     }
@@ -146,4 +594,153 @@ public class CommandLineOptions {
     public WatermarkRenderer.WatermarkPosition getPosition() {
         return position;
     }
+    
+    /**
+     * @return 编译好的水印文本模板
+     */
+    public WatermarkTemplate getTemplate() {
+        return template;
+    }
+    
+    public int getParallelism() {
+        return parallelism;
+    }
+    
+    public boolean isForce() {
+        return force;
+    }
+    
+    public boolean isResume() {
+        return resume;
+    }
+    
+    public boolean isReencodeJpeg() {
+        return reencodeJpeg;
+    }
+    
+    public boolean isStripMetadata() {
+        return stripMetadata;
+    }
+    
+    public DedupMode getDedupMode() {
+        return dedupMode;
+    }
+    
+    /**
+     * @return 每张图片输出的版本；没有指定 --renditions 时只有 {@link Rendition#original()}
+     */
+    public List<Rendition> getRenditions() {
+        return renditions;
+    }
+    
+    /**
+     * @return 是否指定了 --renditions，此时各版本写在输出目录下以版本名命名的子目录中
+     */
+    public boolean hasRenditions() {
+        return renditions.get(0) != Rendition.original();
+    }
+    
+    public OutputLayout.Mode getOutputLayout() {
+        return outputLayout;
+    }
+    
+    /**
+     * @return 解码帧的内存预算（字节），0表示按最大堆自动确定
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+    
+    public ResultLog.Level getLogLevel() {
+        return logLevel;
+    }
+    
+    /**
+     * @return 逐文件结果记录的路径，没有指定 --result-log 时为null
+     */
+    public String getResultLogPath() {
+        return resultLogPath;
+    }
+    
+    /**
+     * @return 进度输出间隔（秒），0表示不输出
+     */
+    public int getProgressInterval() {
+        return progressInterval;
+    }
+    
+    public boolean isWatch() {
+        return watch;
+    }
+    
+    /**
+     * @return 监视模式下，无法判断是否写完的文件需要保持大小不变的时间（毫秒）
+     */
+    public long getWatchSettleMillis() {
+        return watchSettleMillis;
+    }
+    
+    /**
+     * @return 预览模式抽取的图片数，0表示正常处理
+     */
+    public int getPreviewCount() {
+        return previewCount;
+    }
+    
+    /**
+     * @return HTTP服务端口，0表示不启动服务
+     */
+    public int getServePort() {
+        return servePort;
+    }
+    
+    public String getBindAddress() {
+        return bindAddress;
+    }
+    
+    public EncoderSettings getEncoderSettings() {
+        return encoderSettings;
+    }
+    
+    /**
+     * 计算影响输出内容的渲染设置指纹，用于判断增量清单中的条目是否仍然有效
+     * 
+     * @return 非0且非-1的指纹值
+     */
+    public long getRenderFingerprint() {
+        long hash = 1125899906842597L;
+        hash = 31 * hash + fontSize;
+        hash = 31 * hash + color.getRGB();
+        hash = 31 * hash + position.name().hashCode();
+        hash = 31 * hash + (reencodeJpeg ? 1 : 0);
+        hash = 31 * hash + (stripMetadata ? 1 : 2);
+        if (!encoderSettings.isDefault()) {
+            // 默认编码参数不参与计算，已有的清单仍然有效
+            hash = 31 * hash + encoderSettings.fingerprint();
+        }
+        if (!template.isDefault()) {
+            hash = 31 * hash + template.getSource().hashCode();
+        }
+        if (hasRenditions()) {
+            for (Rendition rendition : renditions) {
+                hash = 31 * hash + rendition.fingerprint();
+            }
+        }
+        if (hash == IncrementalManifest.NO_EXIF || hash == IncrementalManifest.MISSING) {
+            hash = 1;
+        }
+        return hash;
+    }
+    
+    /**
+     * 内容相同的输入复用已有输出的方式
+     */
+    public enum DedupMode {
+        /** 硬链接到已有输出，文件系统不支持时复制 */
+        LINK,
+        /** 复制已有输出 */
+        COPY,
+        /** 不去重，每个文件都重新处理 */
+        OFF
+    }
 }
@@ -0,0 +1,237 @@
+package nju.edu.cn.watermark;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * 预览模式的联系表：从输入中均匀抽取若干张图片，缩小后绘制水印，按网格拼成一张图
+ *
+ * <p>每张图片用 {@link ImageReadParam#setSourceSubsampling} 抽样解码，抽样间隔最大为8（长边仍不小于格子尺寸），
+ * 解码帧约为原图的1/64。水印的字体大小和边距按格子与原图的宽度比例缩小，位置与完整处理时一致，
+ * 用来在正式处理之前确认水印的大小和位置。预览不写输出图片，也不更新增量清单。</p>
+ */
+public final class ContactSheet {
+    
+    /** 每个格子中图片的最大边长（像素） */
+    static final int TILE_SIZE = 320;
+    /** 抽样解码的最大间隔 */
+    private static final int MAX_SUBSAMPLING = 8;
+    private static final int GAP = 8;
+    private static final int CAPTION_HEIGHT = 22;
+    private static final Color BACKGROUND = new Color(48, 48, 48);
+    private static final Color CAPTION_COLOR = new Color(224, 224, 224);
+    private static final Font CAPTION_FONT = new Font("微软雅黑", Font.PLAIN, 13);
+    
+    private final BufferedImage image;
+    private final int skippedCount;
+    private final int errorCount;
+    
+    private ContactSheet(BufferedImage image, int skippedCount, int errorCount) {
+        this.image = image;
+        this.skippedCount = skippedCount;
+        this.errorCount = errorCount;
+    }
+    
+    /**
+     * 从文件列表中均匀抽取指定数量的文件，保持原来的顺序
+     *
+     * @param files 全部文件
+     * @param count 抽取数量
+     * @return 抽中的文件；文件不多于抽取数量时返回全部
+     */
+    public static List<File> sample(List<File> files, int count) {
+        if (files.size() <= count) {
+            return new ArrayList<>(files);
+        }
+        List<File> samples = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // 取每一段的中间，不总是落在第一个和最后一个文件上
+            samples.add(files.get((int) ((2L * i + 1) * files.size() / (2L * count))));
+        }
+        return samples;
+    }
+    
+    /**
+     * 并行解码抽中的图片并拼成联系表
+     *
+     * @param samples 抽中的图片
+     * @param options 命令行选项，取其中的水印样式和线程数
+     * @return 联系表
+     * @throws InterruptedException 如果等待时被中断
+     */
+    public static ContactSheet create(List<File> samples, CommandLineOptions options) throws InterruptedException {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(options.getParallelism(), samples.size()), runnable -> {
+                Thread thread = new Thread(runnable, "watermark-preview-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        List<Tile> tiles = new ArrayList<>(samples.size());
+        try {
+            List<Callable<Tile>> tasks = new ArrayList<>(samples.size());
+            for (File file : samples) {
+                tasks.add(() -> renderTile(file, options));
+            }
+            List<Future<Tile>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    tiles.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    // renderTile 自己处理读取失败，这里只可能是内存不足之类的错误
+                    tiles.add(new Tile(null, samples.get(i).getName(), "处理失败: " + e.getCause(), true));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return layout(tiles);
+    }
+    
+    /**
+     * 抽样解码一张图片，缩小到格子尺寸并按比例绘制水印
+     */
+    private static Tile renderTile(File file, CommandLineOptions options) {
+        String name = file.getName();
+        String watermarkText = options.getTemplate().format(ExifReader.readExif(file, false).getCaptureTime());
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = stream == null ? null : ImageCodecPool.getReader(stream);
+            if (reader == null) {
+                return new Tile(null, name, "无法识别的图片格式", true);
+            }
+            try {
+                reader.setInput(stream, true, true);
+                int width = reader.getWidth(0);
+                int longEdge = Math.max(width, reader.getHeight(0));
+                int subsampling = Math.max(1, Math.min(MAX_SUBSAMPLING, longEdge / TILE_SIZE));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage decoded = reader.read(0, param);
+                BufferedImage tile = Math.max(decoded.getWidth(), decoded.getHeight()) > TILE_SIZE
+                    ? Rendition.downscale(decoded, TILE_SIZE)
+                    : decoded;
+                if (watermarkText == null) {
+                    return new Tile(tile, name, "无EXIF拍摄时间", false);
+                }
+                // 字体和边距按格子与原图的比例缩小，水印在格子中的相对大小和位置与原图一致
+                double scale = (double) tile.getWidth() / width;
+                int fontSize = Math.max(1, (int) Math.round(options.getFontSize() * scale));
+                int margin = (int) Math.round(WatermarkRenderer.MARGIN * scale);
+                tile = WatermarkRenderer.renderWatermark(tile, "jpg", watermarkText, fontSize,
+                    options.getColor(), options.getPosition(), margin);
+                return new Tile(tile, name, null, false);
+            } finally {
+                reader.reset();
+            }
+        } catch (IOException | RuntimeException e) {
+            return new Tile(null, name, e.getMessage() != null ? e.getMessage() : e.toString(), true);
+        }
+    }
+    
+    /**
+     * 按接近正方形的网格排列格子，每个格子下方写文件名
+     */
+    private static ContactSheet layout(List<Tile> tiles) {
+        int columns = (int) Math.ceil(Math.sqrt(tiles.size()));
+        int rows = (tiles.size() + columns - 1) / columns;
+        int cellHeight = TILE_SIZE + CAPTION_HEIGHT;
+        BufferedImage sheet = new BufferedImage(
+            GAP + columns * (TILE_SIZE + GAP), GAP + rows * (cellHeight + GAP), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = sheet.createGraphics();
+        g2d.setColor(BACKGROUND);
+        g2d.fillRect(0, 0, sheet.getWidth(), sheet.getHeight());
+        g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g2d.setFont(CAPTION_FONT);
+        FontMetrics metrics = g2d.getFontMetrics();
+        int skipped = 0;
+        int errors = 0;
+        for (int i = 0; i < tiles.size(); i++) {
+            Tile tile = tiles.get(i);
+            int x = GAP + (i % columns) * (TILE_SIZE + GAP);
+            int y = GAP + (i / columns) * (cellHeight + GAP);
+            if (tile.image != null) {
+                g2d.drawImage(tile.image,
+                    x + (TILE_SIZE - tile.image.getWidth()) / 2,
+                    y + (TILE_SIZE - tile.image.getHeight()) / 2, null);
+            }
+            if (tile.error) {
+                errors++;
+            } else if (tile.note != null) {
+                skipped++;
+            }
+            String caption = tile.note == null ? tile.name : tile.name + "（" + tile.note + "）";
+            g2d.setColor(CAPTION_COLOR);
+            g2d.drawString(fitWidth(caption, metrics, TILE_SIZE), x,
+                y + TILE_SIZE + (CAPTION_HEIGHT + metrics.getAscent() - metrics.getDescent()) / 2);
+        }
+        g2d.dispose();
+        return new ContactSheet(sheet, skipped, errors);
+    }
+    
+    /**
+     * 文本超出宽度时截断，末尾加省略号
+     */
+    private static String fitWidth(String text, FontMetrics metrics, int width) {
+        if (metrics.stringWidth(text) <= width) {
+            return text;
+        }
+        int end = text.length();
+        while (end > 0 && metrics.stringWidth(text.substring(0, end) + "…") > width) {
+            end--;
+        }
+        return text.substring(0, end) + "…";
+    }
+    
+    public BufferedImage getImage() {
+        return image;
+    }
+    
+    /**
+     * @return 没有EXIF拍摄时间、只显示原图的格子数
+     */
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+    
+    /**
+     * @return 无法读取、留空的格子数
+     */
+    public int getErrorCount() {
+        return errorCount;
+    }
+    
+    /**
+     * 联系表中的一个格子
+     */
+    private static final class Tile {
+        final BufferedImage image;
+        final String name;
+        final String note;
+        final boolean error;
+        
+        Tile(BufferedImage image, String name, String note, boolean error) {
+            this.image = image;
+            this.name = name;
+            this.note = note;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package nju.edu.cn.watermark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 文件内容的64位哈希（xxHash64，种子为0），用于识别字节完全相同的输入
+ *
+ * <p>按1MB的块顺序读取文件，每次处理32字节的条带，不足一个条带的尾部留到下一块，
+ * 不需要把文件整个读入内存。缓冲区按线程复用。</p>
+ */
+public final class ContentHash {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(
+        () -> ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+
+    private ContentHash() {
+    }
+
+    /**
+     * 计算文件内容的哈希
+     *
+     * @param file 文件
+     * @return 哈希值
+     * @throws IOException 如果读取失败
+     */
+    public static long hash(File file) throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        buffer.clear();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long v1 = PRIME1 + PRIME2;
+            long v2 = PRIME2;
+            long v3 = 0;
+            long v4 = -PRIME1;
+            long total = 0;
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.remaining() >= 32) {
+                    v1 = round(v1, buffer.getLong());
+                    v2 = round(v2, buffer.getLong());
+                    v3 = round(v3, buffer.getLong());
+                    v4 = round(v4, buffer.getLong());
+                    total += 32;
+                }
+                buffer.compact();
+            }
+            buffer.flip();
+            return finish(buffer, total > 0, v1, v2, v3, v4, total);
+        }
+    }
+
+    /**
+     * 计算字节数组的哈希
+     *
+     * @param data 数据
+     * @param offset 起始位置
+     * @param length 字节数
+     * @return 哈希值
+     */
+    public static long hash(byte[] data, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length).slice().order(ByteOrder.LITTLE_ENDIAN);
+        long v1 = PRIME1 + PRIME2;
+        long v2 = PRIME2;
+        long v3 = 0;
+        long v4 = -PRIME1;
+        long total = 0;
+        while (buffer.remaining() >= 32) {
+            v1 = round(v1, buffer.getLong());
+            v2 = round(v2, buffer.getLong());
+            v3 = round(v3, buffer.getLong());
+            v4 = round(v4, buffer.getLong());
+            total += 32;
+        }
+        return finish(buffer, total > 0, v1, v2, v3, v4, total);
+    }
+
+    /**
+     * 合并四路累加值并处理不足32字节的尾部
+     */
+    private static long finish(ByteBuffer tail, boolean striped, long v1, long v2, long v3, long v4, long total) {
+        long hash;
+        if (striped) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = merge(hash, v1);
+            hash = merge(hash, v2);
+            hash = merge(hash, v3);
+            hash = merge(hash, v4);
+        } else {
+            hash = PRIME5;
+        }
+        hash += total + tail.remaining();
+        while (tail.remaining() >= 8) {
+            hash ^= round(0, tail.getLong());
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+        if (tail.remaining() >= 4) {
+            hash ^= (tail.getInt() & 0xFFFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+        }
+        while (tail.hasRemaining()) {
+            hash ^= (tail.get() & 0xFF) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME1;
+    }
+
+    private static long merge(long hash, long accumulator) {
+        hash ^= round(0, accumulator);
+        return hash * PRIME1 + PRIME4;
+    }
+}
@@ -0,0 +1,294 @@
+package nju.edu.cn.watermark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 按内容去重的输出索引：字节完全相同、渲染设置也相同的输入只渲染一次，其余直接复用已有的输出
+ *
+ * <p>条目按文件大小分组。大小与其他文件都不同的输入不需要计算哈希；出现同样大小的文件时，
+ * 才分别计算两者的 {@link ContentHash}（之前的文件按记录的源路径补算），哈希一致即视为相同内容。
+ * 同一次运行中仍在渲染的输出以 {@link CompletableFuture} 登记，相同内容的文件等它完成后直接复用，
+ * 不会重复渲染。</p>
+ *
+ * <p>已完成的条目保存在输出目录的 {@value #FILE_NAME} 中供之后的运行使用，最多保留
+ * {@code maxEntries} 个，超出时淘汰最久未使用的条目。复用之前的输出时先核对它的大小和修改时间，
+ * 输出被改动或删除过的条目直接丢弃。</p>
+ */
+public class DedupIndex {
+
+    public static final String FILE_NAME = ".watermark-dedup";
+
+    /** 默认最多保留的条目数 */
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+    private static final int MAGIC = 0x574D4444; // "WMDD"
+    private static final int VERSION = 1;
+
+    private final Path file;
+    private final int maxEntries;
+    /** 本次运行中用到或新增的条目都标记为这个时间，淘汰时按它排序 */
+    private final long runStamp = System.currentTimeMillis();
+
+    private final Map<Long, List<Entry>> bySize = new HashMap<>();
+    private boolean dirty;
+
+    private DedupIndex(Path file, int maxEntries) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * 加载输出目录中的去重索引，文件不存在或格式不符时返回空索引
+     *
+     * @param outputDir 输出目录
+     * @param maxEntries 最多保留的条目数
+     * @return 去重索引
+     */
+    public static DedupIndex load(File outputDir, int maxEntries) {
+        DedupIndex index = new DedupIndex(outputDir.toPath().resolve(FILE_NAME), maxEntries);
+        if (!Files.isRegularFile(index.file)) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index.file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.err.println("忽略无法识别的去重索引: " + index.file);
+                return index;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readLong(), in.readLong(), in.readUTF(), in.readLong(), null);
+                entry.hash = in.readLong();
+                entry.outputPath = in.readUTF();
+                entry.outputSize = in.readLong();
+                entry.outputModified = in.readLong();
+                entry.lastUsed = in.readLong();
+                index.bySize.computeIfAbsent(entry.size, size -> new ArrayList<>()).add(entry);
+            }
+        } catch (EOFException e) {
+            System.err.println("忽略已损坏的去重索引: " + index.file);
+            index.bySize.clear();
+        } catch (IOException e) {
+            System.err.println("读取去重索引失败，将重新建立: " + e.getMessage());
+            index.bySize.clear();
+        }
+        return index;
+    }
+
+    /**
+     * 查找与源文件内容相同、渲染设置相同的输出
+     *
+     * <p>找不到时把源文件登记为这份内容的生产者：调用方处理完后以输出文件完成 {@code output}，
+     * 失败时以null完成，之后到达的相同文件由此得到结果。</p>
+     *
+     * @param source 源文件
+     * @param size 源文件大小
+     * @param lastModified 源文件修改时间（毫秒）
+     * @param settings 渲染设置的指纹，只有设置相同的输出才能复用
+     * @param output 调用方自己的输出，找不到相同内容时由调用方完成
+     * @return 相同内容的输出（可能仍在生成中，以null完成表示生成失败）；找不到时返回null
+     * @throws IOException 如果计算哈希时读取源文件失败
+     */
+    public CompletableFuture<File> claim(File source, long size, long lastModified, long settings,
+                                         CompletableFuture<File> output) throws IOException {
+        List<Entry> group;
+        synchronized (this) {
+            group = bySize.computeIfAbsent(size, key -> new ArrayList<>());
+        }
+        String sourcePath = source.getAbsolutePath();
+        // 同样大小的文件依次比较，哈希在组内串行计算，不同大小的文件互不等待
+        synchronized (group) {
+            long hash = 0;
+            for (Iterator<Entry> it = group.iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (entry.settings != settings) {
+                    continue;
+                }
+                if (entry.sourcePath.equals(sourcePath)) {
+                    // 同一个源文件重新处理（源文件已变化或强制重新处理），旧条目作废
+                    it.remove();
+                    markDirty();
+                    continue;
+                }
+                if (hash == 0) {
+                    hash = nonZero(ContentHash.hash(source));
+                }
+                if (entry.hash == 0 && !hashSource(entry)) {
+                    it.remove();
+                    markDirty();
+                    continue;
+                }
+                if (entry.hash != hash) {
+                    continue;
+                }
+                if (entry.output != null) {
+                    entry.lastUsed = runStamp;
+                    return entry.output;
+                }
+                File existing = new File(entry.outputPath);
+                if (existing.length() == entry.outputSize && existing.lastModified() == entry.outputModified) {
+                    entry.lastUsed = runStamp;
+                    markDirty();
+                    return CompletableFuture.completedFuture(existing);
+                }
+                it.remove();
+                markDirty();
+            }
+            Entry entry = new Entry(size, settings, sourcePath, lastModified, output);
+            entry.hash = hash;
+            entry.lastUsed = runStamp;
+            group.add(entry);
+            output.whenComplete((outputFile, error) -> completed(group, entry, outputFile));
+            return null;
+        }
+    }
+
+    /**
+     * 生产者完成：成功时记下输出的大小和修改时间供之后核对，失败时移除条目
+     */
+    private void completed(List<Entry> group, Entry entry, File outputFile) {
+        synchronized (group) {
+            if (outputFile == null) {
+                group.remove(entry);
+                return;
+            }
+            entry.outputPath = outputFile.getAbsolutePath();
+            entry.outputSize = outputFile.length();
+            entry.outputModified = outputFile.lastModified();
+        }
+        markDirty();
+    }
+
+    /**
+     * 按记录的源路径补算条目的哈希
+     *
+     * @return 源文件仍然存在且没有变化时返回true
+     */
+    private static boolean hashSource(Entry entry) {
+        File source = new File(entry.sourcePath);
+        if (source.length() != entry.size || source.lastModified() != entry.sourceModified) {
+            return false;
+        }
+        try {
+            entry.hash = nonZero(ContentHash.hash(source));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static long nonZero(long hash) {
+        // 0 表示尚未计算
+        return hash == 0 ? 1 : hash;
+    }
+
+    private synchronized void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * @return 上次保存之后是否有变化
+     */
+    public synchronized boolean hasUnsavedChanges() {
+        return dirty;
+    }
+
+    /**
+     * 保存已完成的条目，超过上限时保留最近使用的；先写临时文件再原子替换
+     *
+     * @throws IOException 如果写入失败
+     */
+    public void save() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        List<List<Entry>> groups;
+        synchronized (this) {
+            groups = new ArrayList<>(bySize.values());
+            dirty = false;
+        }
+        for (List<Entry> group : groups) {
+            synchronized (group) {
+                for (Entry entry : group) {
+                    if (entry.outputPath != null) {
+                        entries.add(entry);
+                    }
+                }
+            }
+        }
+        if (entries.size() > maxEntries) {
+            entries.sort(Comparator.comparingLong((Entry entry) -> entry.lastUsed).reversed());
+            // 淘汰的条目同时从内存中移除，常驻的监视模式不会无限增长
+            Set<Entry> evicted = Collections.newSetFromMap(new IdentityHashMap<>());
+            evicted.addAll(entries.subList(maxEntries, entries.size()));
+            for (List<Entry> group : groups) {
+                synchronized (group) {
+                    group.removeIf(evicted::contains);
+                }
+            }
+            entries = entries.subList(0, maxEntries);
+        }
+
+        Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeLong(entry.size);
+                out.writeLong(entry.settings);
+                out.writeUTF(entry.sourcePath);
+                out.writeLong(entry.sourceModified);
+                out.writeLong(entry.hash);
+                out.writeUTF(entry.outputPath);
+                out.writeLong(entry.outputSize);
+                out.writeLong(entry.outputModified);
+                out.writeLong(entry.lastUsed);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 一份内容的一个输出。除 {@link #output} 外的可变字段只在所在分组的锁内访问
+     */
+    private static final class Entry {
+        final long size;
+        final long settings;
+        final String sourcePath;
+        final long sourceModified;
+        /** 本次运行登记的生产者，之前运行留下的条目为null */
+        final CompletableFuture<File> output;
+        /** 内容哈希，0表示尚未计算 */
+        long hash;
+        /** 输出文件的绝对路径，生产者完成之前为null */
+        String outputPath;
+        long outputSize;
+        long outputModified;
+        long lastUsed;
+
+        Entry(long size, long settings, String sourcePath, long sourceModified, CompletableFuture<File> output) {
+            this.size = size;
+            this.settings = settings;
+            this.sourcePath = sourcePath;
+            this.sourceModified = sourceModified;
+            this.output = output;
+        }
+    }
+}
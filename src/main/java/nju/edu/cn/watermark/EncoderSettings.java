@@ -0,0 +1,236 @@
+package nju.edu.cn.watermark;
+
+import org.w3c.dom.NodeList;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * 各输出格式的编码参数
+ *
+ * <p>默认值与 {@code ImageIO.write} 相同（JPEG质量75、基线、4:2:0采样，PNG压缩级别4，TIFF不压缩），
+ * 对应格式的参数全部为默认值时不构造 {@link ImageWriteParam}，输出与之前逐字节相同。</p>
+ */
+public class EncoderSettings {
+    
+    public static final int DEFAULT_JPEG_QUALITY = 75;
+    public static final String DEFAULT_JPEG_SUBSAMPLING = "420";
+    public static final int DEFAULT_PNG_LEVEL = 4;
+    public static final String DEFAULT_TIFF_COMPRESSION = "none";
+    
+    /** 全部为默认值的编码参数 */
+    public static final EncoderSettings DEFAULT = new EncoderSettings(DEFAULT_JPEG_QUALITY, false,
+        DEFAULT_JPEG_SUBSAMPLING, DEFAULT_PNG_LEVEL, DEFAULT_TIFF_COMPRESSION);
+    
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    
+    private final int jpegQuality;
+    private final boolean jpegProgressive;
+    private final String jpegSubsampling;
+    private final int pngLevel;
+    private final String tiffCompression;
+    
+    /**
+     * @param jpegQuality JPEG质量 (1-100)
+     * @param jpegProgressive 是否输出渐进式JPEG
+     * @param jpegSubsampling JPEG色度采样：420、422 或 444
+     * @param pngLevel PNG的deflate压缩级别 (0-9)
+     * @param tiffCompression TIFF压缩方式：none、lzw 或 deflate
+     * @throws IllegalArgumentException 如果参数超出范围
+     */
+    public EncoderSettings(int jpegQuality, boolean jpegProgressive, String jpegSubsampling,
+                           int pngLevel, String tiffCompression) {
+        if (jpegQuality < 1 || jpegQuality > 100) {
+            throw new IllegalArgumentException("JPEG质量必须在1-100之间");
+        }
+        if (!"420".equals(jpegSubsampling) && !"422".equals(jpegSubsampling) && !"444".equals(jpegSubsampling)) {
+            throw new IllegalArgumentException("不支持的色度采样: " + jpegSubsampling + "（可选 420、422、444）");
+        }
+        if (pngLevel < 0 || pngLevel > 9) {
+            throw new IllegalArgumentException("PNG压缩级别必须在0-9之间");
+        }
+        String compression = tiffCompression.toLowerCase(Locale.ROOT);
+        if (!"none".equals(compression) && !"lzw".equals(compression) && !"deflate".equals(compression)) {
+            throw new IllegalArgumentException("不支持的TIFF压缩方式: " + tiffCompression + "（可选 none、lzw、deflate）");
+        }
+        this.jpegQuality = jpegQuality;
+        this.jpegProgressive = jpegProgressive;
+        this.jpegSubsampling = jpegSubsampling;
+        this.pngLevel = pngLevel;
+        this.tiffCompression = compression;
+    }
+    
+    /**
+     * 用当前线程缓存的编码器把图片写入输出流
+     *
+     * @param image 图片
+     * @param format 输出格式（png/jpg/bmp/tiff）
+     * @param output 输出流，由调用方关闭
+     * @throws IOException 如果没有该格式的编码器或写入失败
+     */
+    public void write(RenderedImage image, String format, ImageOutputStream output) throws IOException {
+        write(image, format, output, null);
+    }
+    
+    /**
+     * 用当前线程缓存的编码器把图片写入输出流，并写回源图片的元数据块
+     *
+     * @param image 图片
+     * @param format 输出格式（png/jpg/bmp/tiff）
+     * @param output 输出流，由调用方关闭
+     * @param source 源图片的元数据块，为null、为空或与输出格式不同时不写
+     * @throws IOException 如果没有该格式的编码器或写入失败
+     */
+    public void write(RenderedImage image, String format, ImageOutputStream output, SourceMetadata source)
+            throws IOException {
+        ImageWriter writer = ImageCodecPool.getWriter(format);
+        try {
+            writer.setOutput(output);
+            ImageWriteParam param = createWriteParam(writer, format);
+            IIOMetadata metadata = param == null ? null : createJpegMetadata(writer, image, param, format);
+            if (source != null && !source.isEmpty() && format.equals(source.getFormat())) {
+                if (param == null) {
+                    // TIFF编码器收到图像元数据时要求同时给出写入参数
+                    param = writer.getDefaultWriteParam();
+                }
+                if (metadata == null) {
+                    metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+                }
+                metadata = source.mergeInto(metadata);
+            }
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.reset();
+        }
+    }
+    
+    /**
+     * @return 该格式的编码参数都是默认值时返回null
+     */
+    private ImageWriteParam createWriteParam(ImageWriter writer, String format) {
+        switch (format) {
+            case "jpg": {
+                if (isJpegDefault()) {
+                    return null;
+                }
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(jpegQuality / 100f);
+                if (jpegProgressive) {
+                    param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+                }
+                return param;
+            }
+            case "png": {
+                if (pngLevel == DEFAULT_PNG_LEVEL) {
+                    return null;
+                }
+                // PNG编码器按 9 - round(9 × quality) 换算压缩级别
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality((9 - pngLevel) / 9f);
+                return param;
+            }
+            case "tiff": {
+                if ("none".equals(tiffCompression)) {
+                    return null;
+                }
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionType("lzw".equals(tiffCompression) ? "LZW" : "Deflate");
+                return param;
+            }
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * 色度采样由帧头中各分量的采样因子决定，只能通过图像元数据设置；4:2:0 是编码器的默认值，不需要元数据
+     */
+    private IIOMetadata createJpegMetadata(ImageWriter writer, RenderedImage image, ImageWriteParam param,
+                                           String format) throws IOException {
+        if (!"jpg".equals(format) || DEFAULT_JPEG_SUBSAMPLING.equals(jpegSubsampling)) {
+            return null;
+        }
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA_FORMAT);
+        NodeList components = root.getElementsByTagName("componentSpec");
+        if (components.getLength() < 3) {
+            // 灰度图只有一个分量，没有色度可采样
+            return metadata;
+        }
+        String lumaH = "444".equals(jpegSubsampling) ? "1" : "2";
+        String lumaV = "420".equals(jpegSubsampling) ? "2" : "1";
+        for (int i = 0; i < components.getLength(); i++) {
+            IIOMetadataNode component = (IIOMetadataNode) components.item(i);
+            component.setAttribute("HsamplingFactor", i == 0 ? lumaH : "1");
+            component.setAttribute("VsamplingFactor", i == 0 ? lumaV : "1");
+        }
+        metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+        return metadata;
+    }
+    
+    /**
+     * @return JPEG的质量、渐进式和色度采样是否都是默认值
+     */
+    public boolean isJpegDefault() {
+        return jpegQuality == DEFAULT_JPEG_QUALITY && !jpegProgressive
+            && DEFAULT_JPEG_SUBSAMPLING.equals(jpegSubsampling);
+    }
+    
+    /**
+     * @return 所有格式的编码参数是否都是默认值
+     */
+    public boolean isDefault() {
+        return isJpegDefault() && pngLevel == DEFAULT_PNG_LEVEL && DEFAULT_TIFF_COMPRESSION.equals(tiffCompression);
+    }
+    
+    /**
+     * @return 编码参数的指纹，参与增量清单的设置比较
+     */
+    public long fingerprint() {
+        long hash = jpegQuality;
+        hash = 31 * hash + (jpegProgressive ? 1 : 0);
+        hash = 31 * hash + jpegSubsampling.hashCode();
+        hash = 31 * hash + pngLevel;
+        hash = 31 * hash + tiffCompression.hashCode();
+        return hash;
+    }
+    
+    /**
+     * @return 用于控制台输出的简短描述
+     */
+    public String getDescription() {
+        return "JPEG质量=" + jpegQuality + (jpegProgressive ? "（渐进式）" : "") + ", 色度采样=" + jpegSubsampling
+            + ", PNG压缩级别=" + pngLevel + ", TIFF压缩=" + tiffCompression;
+    }
+    
+    public int getJpegQuality() {
+        return jpegQuality;
+    }
+    
+    public boolean isJpegProgressive() {
+        return jpegProgressive;
+    }
+    
+    public String getJpegSubsampling() {
+        return jpegSubsampling;
+    }
+    
+    public int getPngLevel() {
+        return pngLevel;
+    }
+    
+    public String getTiffCompression() {
+        return tiffCompression;
+    }
+}
@@ -0,0 +1,602 @@
+package nju.edu.cn.watermark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 只读取文件头部的EXIF日期快速读取器
+ *
+ * <p>按文件签名区分容器格式：对JPEG沿着段标记找到 APP1 Exif 段，对PNG沿着块索引找到 eXIf 块，
+ * 对TIFF直接从文件头开始，然后顺着 IFD0 中的 ExifIFD 指针读取 DateTimeOriginal / DateTime 两个标签，
+ * 以及与之对应的 OffsetTimeOriginal / OffsetTime 偏移标签；BMP不能携带EXIF，直接判定没有日期。
+ * 标签值复制到线程私有的小数组中，由 {@link CaptureTime} 按字符位置解析，不构造中间字符串。
+ * 只访问这条路径上的字节：读取通过一个按需滑动的小窗口完成，
+ * 通常一次8KB的读取就能得出结论，不会解析XMP、ICC、IPTC或厂商注释。</p>
+ *
+ * <p>遇到不认识或不合法的布局时返回 {@link Status#UNSUPPORTED}，
+ * 由调用方退回到 metadata-extractor 的完整解析。</p>
+ *
+ * <p>需要把元数据带到输出文件时，同一次扫描还会取出 {@link SourceMetadata}：JPEG继续扫描到SOS，
+ * 收集全部 APP1 段（EXIF、XMP）；PNG扫描到第一个IDAT，收集 eXIf 和 iCCP 块；
+ * TIFF再遍历一次IFD0和EXIF/GPS子IFD的条目。只复制字节，不解析其中的内容。</p>
+ */
+public class ExifFastReader {
+    
+    /**
+     * 快速读取的结论
+     */
+    public enum Status {
+        /** 找到了日期标签 */
+        FOUND,
+        /** 可以确定文件中没有日期标签 */
+        ABSENT,
+        /** 布局超出快速路径的处理范围，需要完整解析 */
+        UNSUPPORTED
+    }
+    
+    /**
+     * 快速读取结果
+     */
+    public static final class Result {
+        private static final Result ABSENT = new Result(Status.ABSENT, null, null);
+        private static final Result UNSUPPORTED = new Result(Status.UNSUPPORTED, null, null);
+        
+        private final Status status;
+        private final CaptureTime captureTime;
+        private final SourceMetadata metadata;
+        
+        private Result(Status status, CaptureTime captureTime, SourceMetadata metadata) {
+            this.status = status;
+            this.captureTime = captureTime;
+            this.metadata = metadata;
+        }
+        
+        public Status getStatus() {
+            return status;
+        }
+        
+        /**
+         * @return 拍摄时间，仅在 {@link Status#FOUND} 且标签值是合法日期时非null
+         */
+        public CaptureTime getCaptureTime() {
+            return captureTime;
+        }
+        
+        /**
+         * @return 要求收集元数据且完整取到时返回元数据块，否则返回null
+         */
+        public SourceMetadata getMetadata() {
+            return metadata;
+        }
+    }
+    
+    private static final int WINDOW_SIZE = 8192;
+    private static final ThreadLocal<ByteBuffer> WINDOW = ThreadLocal.withInitial(() -> ByteBuffer.allocate(WINDOW_SIZE));
+    /** 日期和偏移标签值的最大长度 */
+    private static final int MAX_ASCII_LENGTH = 64;
+    private static final ThreadLocal<byte[]> ASCII = ThreadLocal.withInitial(() -> new byte[MAX_ASCII_LENGTH]);
+    
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int PNG_EXIF = 0x65584966;
+    private static final int PNG_ICCP = 0x69434350;
+    private static final int PNG_TEXT = 0x74455874;
+    private static final int PNG_ZTXT = 0x7A545874;
+    private static final int PNG_ITXT = 0x69545874;
+    private static final int PNG_IDAT = 0x49444154;
+    private static final int PNG_IEND = 0x49454E44;
+    private static final byte[] RAW_PROFILE_KEYWORD = "Raw profile type ".getBytes(StandardCharsets.US_ASCII);
+    
+    private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_OFFSET_TIME_ORIGINAL = 0x9011;
+    private static final int TAG_OFFSET_TIME = 0x9010;
+    private static final int TAG_GPS_IFD_POINTER = 0x8825;
+    private static final int TAG_INTEROP_IFD_POINTER = 0xA005;
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_IFD = 13;
+    private static final int MAX_IFD_ENTRIES = 1024;
+    /** 单个文件收集的元数据上限，超出时放弃带出元数据 */
+    private static final long MAX_METADATA_BYTES = 4L << 20;
+    /** TIFF文件IFD0中随图片带出的标签（按标签号排序）：描述、相机、方向、分辨率、软件、日期、作者、XMP、版权、IPTC、ICC */
+    private static final int[] TIFF_PASSTHROUGH_TAGS = {270, 271, 272, 274, 282, 283, 296, 305, 306, 315, 700, 33432, 33723, 34675};
+    
+    private static final long MISSING = -1;
+    private static final long INVALID = -2;
+    
+    /**
+     * 读取图片文件中ExifSubIFD的拍摄日期
+     *
+     * @param imageFile 图片文件
+     * @return 读取结果，不会为null
+     * @throws IOException 如果文件读取失败
+     */
+    public static Result readDateTime(File imageFile) throws IOException {
+        return readDateTime(imageFile, false);
+    }
+    
+    /**
+     * 读取拍摄日期，并按需收集要带到输出文件的元数据块
+     *
+     * @param imageFile 图片文件
+     * @param captureMetadata 是否收集元数据块
+     * @return 读取结果，不会为null
+     * @throws IOException 如果文件读取失败
+     */
+    public static Result readDateTime(File imageFile, boolean captureMetadata) throws IOException {
+        try (FileChannel channel = FileChannel.open(imageFile.toPath(), StandardOpenOption.READ)) {
+            return readDateTime(new Window(channel, WINDOW.get()), captureMetadata);
+        }
+    }
+    
+    /**
+     * 从已经读入内存的文件开头部分读取拍摄日期，用于无法随机访问的输入（如HTTP请求体）
+     *
+     * <p>需要的数据超出这部分时返回 {@link Status#UNSUPPORTED}，不会再去读取其余部分。</p>
+     *
+     * @param head 文件开头的字节
+     * @param length 有效字节数
+     * @return 读取结果，不会为null
+     */
+    public static Result readDateTime(byte[] head, int length) {
+        return readDateTime(head, length, false);
+    }
+    
+    /**
+     * 从已经读入内存的文件开头部分读取拍摄日期，并按需收集元数据块
+     *
+     * <p>只带出完整落在这部分中的元数据块。</p>
+     *
+     * @param head 文件开头的字节
+     * @param length 有效字节数
+     * @param captureMetadata 是否收集元数据块
+     * @return 读取结果，不会为null
+     */
+    public static Result readDateTime(byte[] head, int length, boolean captureMetadata) {
+        try {
+            return readDateTime(new Window(ByteBuffer.wrap(head, 0, length)), captureMetadata);
+        } catch (IOException e) {
+            return Result.UNSUPPORTED;
+        }
+    }
+    
+    private static Result readDateTime(Window window, boolean captureMetadata) throws IOException {
+        if (window.size < 8) {
+            return Result.UNSUPPORTED;
+        }
+        if (window.u8(0) == 0xFF && window.u8(1) == 0xD8) {
+            return scanJpeg(window, captureMetadata ? new SourceMetadata("jpg", false) : null);
+        }
+        if (isTiffHeader(window, 0)) {
+            Result result = readTiff(window, 0, window.size);
+            if (!captureMetadata || result.status == Status.UNSUPPORTED) {
+                return result;
+            }
+            SourceMetadata metadata = new SourceMetadata("tiff", window.u8(0) == 'I');
+            try {
+                boolean complete = captureIfd(window, window.u32(4, metadata.isLittleEndian()),
+                    SourceMetadata.IFD0, metadata);
+                return complete ? withMetadata(result, metadata) : result;
+            } catch (IOException e) {
+                // 元数据条目越界时仍然使用已经读到的日期
+                return result;
+            }
+        }
+        if (window.u32(0, false) == PNG_SIGNATURE >>> 32 && window.u32(4, false) == (PNG_SIGNATURE & 0xFFFFFFFFL)) {
+            return scanPng(window, captureMetadata ? new SourceMetadata("png", false) : null);
+        }
+        if (window.u8(0) == 'B' && window.u8(1) == 'M') {
+            // BMP文件头之后就是像素数据，没有存放EXIF的位置
+            return Result.ABSENT;
+        }
+        return Result.UNSUPPORTED;
+    }
+    
+    /**
+     * 沿JPEG段标记查找 APP1 Exif 段，遇到图像数据仍未找到即可断定没有EXIF
+     *
+     * @param metadata 收集元数据块时非null，此时找到EXIF后继续扫描到SOS
+     */
+    private static Result scanJpeg(Window window, SourceMetadata metadata) throws IOException {
+        long pos = 2;
+        Result exif = null;
+        while (pos + 4 <= window.size) {
+            if (window.u8(pos) != 0xFF) {
+                return Result.UNSUPPORTED;
+            }
+            int marker = window.u8(pos + 1);
+            if (marker == 0xFF) {
+                // 段之间允许出现填充字节
+                pos++;
+                continue;
+            }
+            if (marker == 0xDA || marker == 0xD9) {
+                // SOS/EOI：元数据段已经全部出现过
+                return withMetadata(exif == null ? Result.ABSENT : exif, metadata);
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                pos += 2;
+                continue;
+            }
+            int length = window.u16(pos + 2, false);
+            if (length < 2) {
+                return Result.UNSUPPORTED;
+            }
+            long segmentEnd = pos + 2 + length;
+            if (exif == null && marker == 0xE1 && length >= 16 && isExifIdentifier(window, pos + 4)) {
+                long tiffStart = pos + 10;
+                if (!isTiffHeader(window, tiffStart)) {
+                    return Result.UNSUPPORTED;
+                }
+                exif = readTiff(window, tiffStart, Math.min(segmentEnd, window.size));
+                if (metadata == null || exif.status == Status.UNSUPPORTED) {
+                    return exif;
+                }
+            }
+            if (metadata != null && marker == 0xE1) {
+                if (segmentEnd > window.size && exif != null) {
+                    // 只读入了文件开头：带出已经完整读到的段
+                    return withMetadata(exif, metadata);
+                }
+                if (segmentEnd > window.size || metadata.getByteCount() + length > MAX_METADATA_BYTES) {
+                    // 元数据过大：放弃带出元数据，日期照常返回
+                    metadata = null;
+                    if (exif != null) {
+                        return exif;
+                    }
+                } else {
+                    metadata.addSegment(marker, window.bytes(pos + 4, length - 2));
+                }
+            }
+            pos = segmentEnd;
+        }
+        return exif == null ? Result.UNSUPPORTED : withMetadata(exif, metadata);
+    }
+    
+    /**
+     * 沿PNG块索引查找 eXIf 块，只读取每个块的8字节块头，跳过块数据
+     *
+     * <p>ImageMagick等工具会把EXIF以 "Raw profile type exif" 之类的文本块保存，
+     * 遇到这种文本块时交给完整解析判断。</p>
+     */
+    private static Result scanPng(Window window, SourceMetadata metadata) throws IOException {
+        long pos = 8;
+        boolean rawProfile = false;
+        Result exif = null;
+        while (pos + 12 <= window.size) {
+            long length = window.u32(pos, false);
+            int type = (int) window.u32(pos + 4, false);
+            long data = pos + 8;
+            if (exif != null && type == PNG_IDAT) {
+                // iCCP 必须出现在图像数据之前
+                return withMetadata(exif, metadata);
+            }
+            if (data + length + 4 > window.size) {
+                return exif == null ? Result.UNSUPPORTED : withMetadata(exif, metadata);
+            }
+            if (type == PNG_EXIF && exif == null) {
+                if (!isTiffHeader(window, data)) {
+                    return Result.UNSUPPORTED;
+                }
+                exif = readTiff(window, data, data + length);
+                if (metadata == null || exif.status == Status.UNSUPPORTED) {
+                    return exif;
+                }
+            }
+            if (metadata != null && (type == PNG_EXIF || type == PNG_ICCP)) {
+                if (metadata.getByteCount() + length > MAX_METADATA_BYTES) {
+                    metadata = null;
+                    if (exif != null) {
+                        return exif;
+                    }
+                } else {
+                    metadata.addSegment(type, window.bytes(data, (int) length));
+                }
+            }
+            if (type == PNG_TEXT || type == PNG_ZTXT || type == PNG_ITXT) {
+                rawProfile |= startsWith(window, data, length, RAW_PROFILE_KEYWORD);
+            }
+            if (type == PNG_IEND) {
+                if (exif != null) {
+                    return withMetadata(exif, metadata);
+                }
+                return rawProfile ? Result.UNSUPPORTED : withMetadata(Result.ABSENT, metadata);
+            }
+            pos = data + length + 4;
+        }
+        // 没有IEND的截断文件交给完整解析报告错误
+        return exif == null ? Result.UNSUPPORTED : withMetadata(exif, metadata);
+    }
+    
+    private static boolean startsWith(Window window, long pos, long length, byte[] prefix) throws IOException {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (window.u8(pos + i) != (prefix[i] & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * 从TIFF头开始：IFD0 → ExifIFD → 日期标签，再取同一IFD中对应的偏移标签
+     *
+     * @param base TIFF头在文件中的位置，IFD中的偏移量都相对于它
+     * @param limit TIFF数据结束位置（不含）
+     */
+    private static Result readTiff(Window window, long base, long limit) throws IOException {
+        boolean littleEndian = window.u8(base) == 'I';
+        long ifd0 = base + window.u32(base + 4, littleEndian);
+        long exifOffset = findTag(window, ifd0, limit, TAG_EXIF_IFD_POINTER, littleEndian);
+        if (exifOffset == INVALID) {
+            return Result.UNSUPPORTED;
+        }
+        if (exifOffset == MISSING) {
+            return Result.ABSENT;
+        }
+        // ExifIFD指针是一个内联的LONG值
+        long exifIfd = base + window.u32(exifOffset + 8, littleEndian);
+        
+        int offsetTag = TAG_OFFSET_TIME_ORIGINAL;
+        long entry = findTag(window, exifIfd, limit, TAG_DATETIME_ORIGINAL, littleEndian);
+        if (entry == MISSING) {
+            offsetTag = TAG_OFFSET_TIME;
+            entry = findTag(window, exifIfd, limit, TAG_DATETIME, littleEndian);
+        }
+        if (entry == INVALID) {
+            return Result.UNSUPPORTED;
+        }
+        if (entry == MISSING) {
+            return Result.ABSENT;
+        }
+        byte[] ascii = ASCII.get();
+        int length = readAscii(window, base, limit, entry, littleEndian, ascii);
+        if (length < 0) {
+            return Result.UNSUPPORTED;
+        }
+        CaptureTime captureTime = CaptureTime.parse(ascii, length);
+        if (captureTime != null) {
+            // 偏移标签可有可无，结构异常时只是不带偏移
+            long offsetEntry = findTag(window, exifIfd, limit, offsetTag, littleEndian);
+            if (offsetEntry >= 0) {
+                length = readAscii(window, base, limit, offsetEntry, littleEndian, ascii);
+                if (length > 0) {
+                    captureTime = captureTime.withOffset(ascii, length);
+                }
+            }
+        }
+        return new Result(Status.FOUND, captureTime, null);
+    }
+    
+    /**
+     * 收集TIFF文件一个IFD中要带出的条目；IFD0中的EXIF/GPS指针递归进入子IFD
+     *
+     * @param target 条目所在的IFD（{@link SourceMetadata#IFD0} 等）
+     * @return 是否完整收集，结构异常或超出上限时返回false
+     */
+    private static boolean captureIfd(Window window, long ifd, int target, SourceMetadata metadata) throws IOException {
+        boolean littleEndian = metadata.isLittleEndian();
+        if (ifd < 0 || ifd + 2 > window.size) {
+            return false;
+        }
+        int count = window.u16(ifd, littleEndian);
+        if (count > MAX_IFD_ENTRIES || ifd + 2 + count * 12L > window.size) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            long entry = ifd + 2 + i * 12L;
+            int tag = window.u16(entry, littleEndian);
+            if (target == SourceMetadata.IFD0) {
+                if (tag == TAG_EXIF_IFD_POINTER || tag == TAG_GPS_IFD_POINTER) {
+                    int subIfd = tag == TAG_EXIF_IFD_POINTER ? SourceMetadata.EXIF_IFD : SourceMetadata.GPS_IFD;
+                    if (!captureIfd(window, window.u32(entry + 8, littleEndian), subIfd, metadata)) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (Arrays.binarySearch(TIFF_PASSTHROUGH_TAGS, tag) < 0) {
+                    continue;
+                }
+            } else if (tag == TAG_INTEROP_IFD_POINTER) {
+                continue;
+            }
+            int type = window.u16(entry + 2, littleEndian);
+            long valueCount = window.u32(entry + 4, littleEndian);
+            long length = SourceMetadata.tiffTypeSize(type) * valueCount;
+            if (length == 0) {
+                continue;
+            }
+            if (metadata.getByteCount() + length > MAX_METADATA_BYTES) {
+                return false;
+            }
+            long valuePos = length <= 4 ? entry + 8 : window.u32(entry + 8, littleEndian);
+            if (valuePos + length > window.size) {
+                return false;
+            }
+            metadata.addTiffEntry(target, tag, type, (int) valueCount, window.bytes(valuePos, (int) length));
+        }
+        return true;
+    }
+    
+    private static Result withMetadata(Result result, SourceMetadata metadata) {
+        if (metadata == null || metadata.isEmpty()) {
+            return result;
+        }
+        return new Result(result.status, result.captureTime, metadata);
+    }
+    
+    /**
+     * 在IFD中查找标签
+     *
+     * @return 条目在文件中的位置；没有该标签返回 {@link #MISSING}，IFD结构异常返回 {@link #INVALID}
+     */
+    private static long findTag(Window window, long ifd, long limit, int tag, boolean littleEndian) throws IOException {
+        if (ifd < 0 || ifd + 2 > limit) {
+            return INVALID;
+        }
+        int count = window.u16(ifd, littleEndian);
+        if (count > MAX_IFD_ENTRIES || ifd + 2 + count * 12L > limit) {
+            return INVALID;
+        }
+        for (int i = 0; i < count; i++) {
+            long entry = ifd + 2 + i * 12L;
+            int entryTag = window.u16(entry, littleEndian);
+            if (entryTag == tag) {
+                int type = window.u16(entry + 2, littleEndian);
+                boolean expected = tag == TAG_EXIF_IFD_POINTER
+                        ? type == TYPE_LONG || type == TYPE_IFD
+                        : type == TYPE_ASCII;
+                return expected ? entry : INVALID;
+            }
+        }
+        return MISSING;
+    }
+    
+    /**
+     * 把ASCII类型的标签值复制到 target 中
+     *
+     * @return 去掉结尾NUL后的长度，值过长或越界时返回-1
+     */
+    private static int readAscii(Window window, long base, long limit, long entry, boolean littleEndian,
+                                 byte[] target) throws IOException {
+        long count = window.u32(entry + 4, littleEndian);
+        if (count == 0 || count > target.length) {
+            return -1;
+        }
+        long valuePos = count <= 4 ? entry + 8 : base + window.u32(entry + 8, littleEndian);
+        if (valuePos + count > limit) {
+            return -1;
+        }
+        window.copy(valuePos, target, (int) count);
+        int length = 0;
+        while (length < count && target[length] != 0) {
+            length++;
+        }
+        return length;
+    }
+    
+    private static boolean isTiffHeader(Window window, long pos) throws IOException {
+        if (pos + 8 > window.size) {
+            return false;
+        }
+        int b0 = window.u8(pos);
+        int b1 = window.u8(pos + 1);
+        if (b0 == 'I' && b1 == 'I') {
+            return window.u16(pos + 2, true) == 42;
+        }
+        if (b0 == 'M' && b1 == 'M') {
+            return window.u16(pos + 2, false) == 42;
+        }
+        return false;
+    }
+    
+    private static boolean isExifIdentifier(Window window, long pos) throws IOException {
+        return window.u8(pos) == 'E' && window.u8(pos + 1) == 'x' && window.u8(pos + 2) == 'i'
+                && window.u8(pos + 3) == 'f' && window.u8(pos + 4) == 0 && window.u8(pos + 5) == 0;
+    }
+    
+    /**
+     * 文件上的滑动读取窗口：访问落在窗口外时，从该位置重新读取一个窗口
+     */
+    private static final class Window {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final long size;
+        private long start;
+        
+        Window(FileChannel channel, ByteBuffer buffer) throws IOException {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.size = channel.size();
+            fill(0);
+        }
+        
+        /**
+         * 整个内容都已在内存中的窗口，访问越界时抛出异常而不是读取文件
+         */
+        Window(ByteBuffer content) {
+            this.channel = null;
+            this.buffer = content.slice();
+            this.size = buffer.limit();
+        }
+        
+        int u8(long pos) throws IOException {
+            ensure(pos, 1);
+            return buffer.get((int) (pos - start)) & 0xFF;
+        }
+        
+        int u16(long pos, boolean littleEndian) throws IOException {
+            ensure(pos, 2);
+            int i = (int) (pos - start);
+            int a = buffer.get(i) & 0xFF;
+            int b = buffer.get(i + 1) & 0xFF;
+            return littleEndian ? (b << 8) | a : (a << 8) | b;
+        }
+        
+        long u32(long pos, boolean littleEndian) throws IOException {
+            ensure(pos, 4);
+            int i = (int) (pos - start);
+            long a = buffer.get(i) & 0xFF;
+            long b = buffer.get(i + 1) & 0xFF;
+            long c = buffer.get(i + 2) & 0xFF;
+            long d = buffer.get(i + 3) & 0xFF;
+            return littleEndian ? (d << 24) | (c << 16) | (b << 8) | a : (a << 24) | (b << 16) | (c << 8) | d;
+        }
+        
+        void copy(long pos, byte[] target, int length) throws IOException {
+            ensure(pos, length);
+            buffer.get((int) (pos - start), target, 0, length);
+        }
+        
+        byte[] bytes(long pos, int length) throws IOException {
+            if (channel != null && length > buffer.capacity()) {
+                // 比窗口大的元数据块直接读入结果数组
+                if (pos < 0 || pos + length > size) {
+                    throw new IOException("EXIF偏移量超出文件范围: " + pos);
+                }
+                ByteBuffer result = ByteBuffer.allocate(length);
+                while (result.hasRemaining()) {
+                    if (channel.read(result, pos + result.position()) < 0) {
+                        throw new IOException("文件在读取元数据时被截断");
+                    }
+                }
+                return result.array();
+            }
+            ensure(pos, length);
+            byte[] result = new byte[length];
+            buffer.get((int) (pos - start), result);
+            return result;
+        }
+        
+        private void ensure(long pos, int length) throws IOException {
+            if (pos < 0 || pos + length > size) {
+                throw new IOException("EXIF偏移量超出文件范围: " + pos);
+            }
+            if (pos < start || pos + length > start + buffer.limit()) {
+                fill(pos);
+            }
+        }
+        
+        private void fill(long pos) throws IOException {
+            buffer.clear();
+            long position = pos;
+            while (buffer.hasRemaining() && position < size) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+            }
+            buffer.flip();
+            start = pos;
+        }
+    }
+}
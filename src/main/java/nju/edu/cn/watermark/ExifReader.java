@@ -4,16 +4,19 @@ import com.drew.imaging.ImageMetadataReader;
 import com.drew.metadata.Metadata;
 import com.drew.metadata.exif.ExifSubIFDDirectory;
 
+import javax.imageio.stream.ImageInputStream;
 import java.io.File;
-import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
+import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * EXIF信息读取器，用于从图片文件中提取拍摄时间信息
  */
 public class ExifReader {
     
+    /** 从流中读取EXIF时使用的开头字节数 */
+    private static final int HEAD_BYTES = 64 * 1024;
+    
     /**
      * 从图片文件中读取拍摄日期
      * 
@@ -21,54 +24,122 @@ public class ExifReader {
      * @return 格式化的拍摄日期字符串（yyyy-MM-dd），如果无法读取则返回null
      */
     public static String getDateTaken(File imageFile) {
+        return readExif(imageFile, false).getDateTaken();
+    }
+    
+    /**
+     * 读取拍摄日期，并在同一次读取中收集要带到输出文件的元数据块
+     * 
+     * <p>元数据只能由快速路径收集；退回完整解析的文件只有日期，没有元数据。</p>
+     * 
+     * @param imageFile 图片文件
+     * @param captureMetadata 是否收集元数据块
+     * @return 读取结果，不会为null
+     */
+    public static ExifInfo readExif(File imageFile, boolean captureMetadata) {
+        // 先按文件签名走只读文件头的快速路径，只有布局异常时才构造Metadata做完整解析
         try {
-            Metadata metadata = ImageMetadataReader.readMetadata(imageFile);
-            ExifSubIFDDirectory exifDirectory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
-            
-            if (exifDirectory != null) {
-                // 尝试获取原始拍摄日期时间
-                if (exifDirectory.containsTag(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL)) {
-                    String dateTimeString = exifDirectory.getString(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
-                    return parseDateFromExif(dateTimeString);
-                }
-                
-                // 如果原始拍摄时间不存在，尝试获取修改时间
-                if (exifDirectory.containsTag(ExifSubIFDDirectory.TAG_DATETIME)) {
-                    String dateTimeString = exifDirectory.getString(ExifSubIFDDirectory.TAG_DATETIME);
-                    return parseDateFromExif(dateTimeString);
-                }
+            ExifFastReader.Result result = ExifFastReader.readDateTime(imageFile, captureMetadata);
+            switch (result.getStatus()) {
+                case FOUND:
+                    return new ExifInfo(ExifFastReader.Status.FOUND, result.getCaptureTime(), result.getMetadata(), null);
+                case ABSENT:
+                    return new ExifInfo(ExifFastReader.Status.ABSENT, null, result.getMetadata(), null);
+                case UNSUPPORTED:
+                    break;
             }
-        } catch (Exception e) {
-            System.err.println("读取EXIF信息失败: " + imageFile.getName() + " - " + e.getMessage());
+        } catch (IOException e) {
+            // 交给下面的完整解析，由它报告错误
         }
         
-        return null;
+        try {
+            return new ExifInfo(getCaptureTime(ImageMetadataReader.readMetadata(imageFile)), null);
+        } catch (Exception e) {
+            // 不在这里输出，失败原因随结果交给调用方
+            return new ExifInfo(null, null, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
     }
     
     /**
-     * 解析EXIF中的日期时间字符串
+     * 从可回退的图片流中读取拍摄日期和元数据块，读完后流回到起点，可以直接交给解码器
+     * 
+     * <p>先按快速路径解析流的开头，同时取出元数据块；布局异常（如EXIF段不在开头）时
+     * 回到起点做完整解析（只有日期，没有元数据）。流由缓存支持时，读过的数据留在同一个缓存中供解码器使用。
+     * 读取失败按没有拍摄日期处理，不输出任何信息。</p>
      * 
-     * @param exifDateTime EXIF日期时间字符串，格式通常为 "yyyy:MM:dd HH:mm:ss"
-     * @return 格式化的日期字符串 "yyyy-MM-dd"，解析失败返回null
+     * @param stream 位于起点的图片流
+     * @param captureMetadata 是否收集元数据块
+     * @return 读取结果，不会为null
+     * @throws IOException 如果流无法读取或回到起点
      */
-    private static String parseDateFromExif(String exifDateTime) {
-        if (exifDateTime == null || exifDateTime.trim().isEmpty()) {
-            return null;
+    static ExifInfo readExif(ImageInputStream stream, boolean captureMetadata) throws IOException {
+        byte[] head = new byte[HEAD_BYTES];
+        int headLength = 0;
+        while (headLength < head.length) {
+            int read = stream.read(head, headLength, head.length - headLength);
+            if (read < 0) {
+                break;
+            }
+            headLength += read;
         }
+        stream.seek(0);
         
+        ExifFastReader.Result exif = ExifFastReader.readDateTime(head, headLength, captureMetadata);
+        switch (exif.getStatus()) {
+            case FOUND:
+                return new ExifInfo(ExifFastReader.Status.FOUND, exif.getCaptureTime(), exif.getMetadata(), null);
+            case ABSENT:
+                return new ExifInfo(ExifFastReader.Status.ABSENT, null, null, null);
+            default:
+                break;
+        }
         try {
-            // EXIF日期格式通常是 "yyyy:MM:dd HH:mm:ss"
-            String datePart = exifDateTime.split(" ")[0]; // 只取日期部分
-            String normalizedDate = datePart.replace(":", "-"); // 将冒号替换为短横线
-            
-            // 验证日期格式
-            LocalDate.parse(normalizedDate, DateTimeFormatter.ofPattern("yyyy-MM-dd"));
+            return new ExifInfo(getCaptureTime(ImageMetadataReader.readMetadata(new InputStream() {
+                
+                @Override
+                public int read() throws IOException {
+                    return stream.read();
+                }
+                
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return stream.read(b, off, len);
+                }
+            })), null);
+        } catch (Exception e) {
+            return new ExifInfo(null, null);
+        } finally {
+            stream.seek(0);
+        }
+    }
+    
+    /**
+     * 从完整解析的元数据中取拍摄时间
+     * 
+     * @param metadata 元数据
+     * @return 拍摄时间，没有或日期不合法时返回null
+     */
+    static CaptureTime getCaptureTime(Metadata metadata) {
+        ExifSubIFDDirectory exifDirectory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+        
+        if (exifDirectory != null) {
+            // 尝试获取原始拍摄日期时间
+            if (exifDirectory.containsTag(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL)) {
+                CaptureTime captureTime = CaptureTime.parse(
+                    exifDirectory.getString(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL));
+                return captureTime == null ? null : captureTime.withOffset(
+                    exifDirectory.getString(ExifSubIFDDirectory.TAG_TIME_ZONE_ORIGINAL));
+            }
             
-            return normalizedDate;
-        } catch (DateTimeParseException | ArrayIndexOutOfBoundsException e) {
-            System.err.println("日期解析失败: " + exifDateTime + " - " + e.getMessage());
-            return null;
+            // 如果原始拍摄时间不存在，尝试获取修改时间
+            if (exifDirectory.containsTag(ExifSubIFDDirectory.TAG_DATETIME)) {
+                CaptureTime captureTime = CaptureTime.parse(
+                    exifDirectory.getString(ExifSubIFDDirectory.TAG_DATETIME));
+                return captureTime == null ? null : captureTime.withOffset(
+                    exifDirectory.getString(ExifSubIFDDirectory.TAG_TIME_ZONE));
+            }
         }
+        return null;
     }
     
     /**
@@ -82,9 +153,80 @@ public class ExifReader {
             return false;
         }
         
-        String name = file.getName().toLowerCase();
+        return isSupportedImageName(file.getName());
+    }
+    
+    /**
+     * 仅根据文件名判断是否为支持的图片格式，不访问文件系统
+     * 
+     * @param fileName 文件名
+     * @return 如果扩展名是支持的图片格式返回true
+     */
+    public static boolean isSupportedImageName(String fileName) {
+        String name = fileName.toLowerCase();
         return name.endsWith(".jpg") || name.endsWith(".jpeg") || 
                name.endsWith(".png") || name.endsWith(".tiff") || 
                name.endsWith(".tif") || name.endsWith(".bmp");
     }
+    
+    /**
+     * 一次EXIF读取的结果
+     */
+    public static final class ExifInfo {
+        private final ExifFastReader.Status status;
+        private final CaptureTime captureTime;
+        private final SourceMetadata metadata;
+        private final String error;
+        
+        ExifInfo(CaptureTime captureTime, SourceMetadata metadata) {
+            this(captureTime, metadata, null);
+        }
+        
+        ExifInfo(CaptureTime captureTime, SourceMetadata metadata, String error) {
+            this(ExifFastReader.Status.UNSUPPORTED, captureTime, metadata, error);
+        }
+        
+        ExifInfo(ExifFastReader.Status status, CaptureTime captureTime, SourceMetadata metadata, String error) {
+            this.status = status;
+            this.captureTime = captureTime;
+            this.metadata = metadata;
+            this.error = error;
+        }
+        
+        /**
+         * @return 快速路径的结论：找到日期标签为FOUND，仅凭文件头和段/块索引判定没有日期为ABSENT，
+         *         退回完整解析为UNSUPPORTED
+         */
+        public ExifFastReader.Status getStatus() {
+            return status;
+        }
+        
+        /**
+         * @return 格式化的拍摄日期字符串（yyyy-MM-dd），没有时返回null
+         */
+        public String getDateTaken() {
+            return captureTime == null ? null : captureTime.getDate();
+        }
+        
+        /**
+         * @return 拍摄时间（含可选的时刻和UTC偏移），没有时返回null
+         */
+        public CaptureTime getCaptureTime() {
+            return captureTime;
+        }
+        
+        /**
+         * @return 要带到输出文件的元数据块，没有收集到时返回null
+         */
+        public SourceMetadata getMetadata() {
+            return metadata;
+        }
+        
+        /**
+         * @return 文件无法解析时的原因，其他情况为null
+         */
+        public String getError() {
+            return error;
+        }
+    }
 }
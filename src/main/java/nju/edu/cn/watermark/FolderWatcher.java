@@ -0,0 +1,310 @@
+package nju.edu.cn.watermark;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * 监视输入目录树，把新到达并且已经写完的图片交给下游处理
+ *
+ * <p>基于 {@link WatchService}：启动时递归注册输入目录下的所有子目录（输出目录除外），
+ * 之后新建的子目录在收到创建事件时注册，并补扫注册之前已经写入其中的文件。</p>
+ *
+ * <p>文件往往是边写边产生事件的，因此收到事件后先把文件放入待定表，记下大小和最后一次事件的时间：</p>
+ * <ul>
+ *   <li>大小在 {@value #QUIET_MILLIS} 毫秒内没有变化、且文件尾部已经完整（JPEG的EOI标记、PNG的IEND块、
+ *       BMP文件头中记录的长度）时立即交出，从落盘到开始处理只有几十毫秒</li>
+ *   <li>无法从内容判断是否写完的文件（如TIFF），或尾部不完整的文件，等到大小稳定超过设定的时间再交出</li>
+ * </ul>
+ *
+ * <p>事件队列溢出时重新遍历整棵目录树，已处理过的文件由增量清单跳过。</p>
+ */
+public class FolderWatcher implements Closeable {
+    
+    /** 文件尾部完整时要求的最短静默时间 */
+    private static final long QUIET_MILLIS = 30;
+    /** 没有待定文件时的轮询间隔，空闲回调按这个频率触发 */
+    private static final long IDLE_POLL_MILLIS = 1000;
+    /** 判断JPEG是否写完时检查的结尾字节数 */
+    private static final int JPEG_TAIL_BYTES = 4096;
+    
+    private final Path root;
+    private final Path excludedDir;
+    private final long settleMillis;
+    private final BiConsumer<File, BasicFileAttributes> consumer;
+    private final Runnable idleCallback;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private final Map<Path, Candidate> candidates = new LinkedHashMap<>();
+    private volatile boolean closed;
+    
+    /**
+     * 创建监视器并注册输入目录树，注册完成后发生的变化都不会丢失
+     *
+     * @param inputDir 输入目录
+     * @param excludedDir 不监视的目录（通常是输出目录），可为null
+     * @param settleMillis 无法判断是否写完的文件，大小保持不变多久之后才交出（毫秒）
+     * @param consumer 图片文件处理函数，在 {@link #run()} 的线程中调用
+     * @param idleCallback 没有待定文件、一段时间内没有事件时调用，可用于保存状态
+     * @throws IOException 如果无法创建监视服务或注册目录
+     */
+    public FolderWatcher(File inputDir, File excludedDir, long settleMillis,
+                         BiConsumer<File, BasicFileAttributes> consumer, Runnable idleCallback) throws IOException {
+        this.root = inputDir.toPath().toAbsolutePath().normalize();
+        this.excludedDir = excludedDir == null ? null : excludedDir.toPath().toAbsolutePath().normalize();
+        this.settleMillis = settleMillis;
+        this.consumer = consumer;
+        this.idleCallback = idleCallback;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        registerTree(root, false);
+    }
+    
+    /**
+     * 处理监视事件，直到 {@link #close()} 被调用
+     *
+     * @throws InterruptedException 等待事件时线程被中断
+     */
+    public void run() throws InterruptedException {
+        try {
+            while (!closed) {
+                long timeout = candidates.isEmpty() ? IDLE_POLL_MILLIS : QUIET_MILLIS;
+                WatchKey key = watchService.poll(timeout, TimeUnit.MILLISECONDS);
+                if (key == null && candidates.isEmpty()) {
+                    idleCallback.run();
+                    continue;
+                }
+                while (key != null) {
+                    handleEvents(key);
+                    key = watchService.poll();
+                }
+                releaseSettled(System.currentTimeMillis());
+            }
+        } catch (ClosedWatchServiceException e) {
+            // close() 在其他线程调用，正常退出
+        }
+    }
+    
+    /**
+     * 停止监视，{@link #run()} 随之返回；尚未写完的待定文件不再处理
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        watchService.close();
+    }
+    
+    private void handleEvents(WatchKey key) {
+        Path dir = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            WatchEvent.Kind<?> kind = event.kind();
+            if (kind == StandardWatchEventKinds.OVERFLOW) {
+                System.err.println("监视事件溢出，重新扫描输入目录");
+                registerTree(root, true);
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            Path child = dir.resolve((Path) event.context());
+            if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                candidates.remove(child);
+            } else if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                    registerTree(child, true);
+                }
+            } else {
+                schedule(child);
+            }
+        }
+        if (!key.reset()) {
+            // 目录已被删除
+            directories.remove(key);
+        }
+    }
+    
+    /**
+     * 把文件放入待定表；已在表中的文件刷新最后一次事件的时间
+     */
+    private void schedule(Path file) {
+        if (!ExifReader.isSupportedImageName(file.getFileName().toString())) {
+            return;
+        }
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            // 文件已被移走
+            candidates.remove(file);
+            return;
+        }
+        Candidate candidate = candidates.get(file);
+        if (candidate == null) {
+            candidates.put(file, new Candidate(size, System.currentTimeMillis()));
+        } else {
+            candidate.size = size;
+            candidate.lastChange = System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * 交出已经写完的文件
+     */
+    private void releaseSettled(long now) {
+        Iterator<Map.Entry<Path, Candidate>> iterator = candidates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Candidate> entry = iterator.next();
+            Path file = entry.getKey();
+            Candidate candidate = entry.getValue();
+            long quiet = now - candidate.lastChange;
+            if (quiet < QUIET_MILLIS) {
+                continue;
+            }
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (IOException e) {
+                iterator.remove();
+                continue;
+            }
+            if (attrs.size() != candidate.size) {
+                // 事件之外仍在增长
+                candidate.size = attrs.size();
+                candidate.lastChange = now;
+                continue;
+            }
+            if (attrs.isRegularFile() && (quiet >= settleMillis || isComplete(file, attrs.size()))) {
+                iterator.remove();
+                consumer.accept(file.toFile(), attrs);
+            }
+        }
+    }
+    
+    /**
+     * 递归注册目录
+     *
+     * @param scanFiles 是否把其中已有的图片放入待定表（注册之前就已写入的文件不会再产生事件）
+     */
+    private void registerTree(Path start, boolean scanFiles) {
+        try {
+            Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                    new SimpleFileVisitor<Path>() {
+                
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (dir.equals(excludedDir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                    directories.put(key, dir);
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (scanFiles && attrs.isRegularFile()) {
+                        schedule(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    System.err.println("无法访问: " + file + " - " + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("无法监视目录: " + start + " - " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 根据文件尾部判断是否已经写完，无法判断的格式返回false
+     */
+    static boolean isComplete(Path file, long size) {
+        String format = WatermarkRenderer.getImageFormat(file.getFileName().toString());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            switch (format) {
+                case "jpg": {
+                    // 相机常在EOI之后补零，跳过结尾的0再找 FF D9
+                    int length = (int) Math.min(size, JPEG_TAIL_BYTES);
+                    ByteBuffer tail = read(channel, size - length, length);
+                    if (tail == null) {
+                        return false;
+                    }
+                    int end = length;
+                    while (end > 0 && tail.get(end - 1) == 0) {
+                        end--;
+                    }
+                    return end >= 2 && (tail.get(end - 2) & 0xFF) == 0xFF && (tail.get(end - 1) & 0xFF) == 0xD9;
+                }
+                case "png": {
+                    // 长度为0的IEND块，CRC固定为 AE 42 60 82
+                    ByteBuffer tail = read(channel, size - 12, 12);
+                    return tail != null && tail.getInt(0) == 0 && tail.getInt(4) == 0x49454E44
+                        && tail.getInt(8) == 0xAE426082;
+                }
+                case "bmp": {
+                    ByteBuffer header = read(channel, 0, 6);
+                    return header != null && header.get(0) == 'B' && header.get(1) == 'M'
+                        && (header.order(ByteOrder.LITTLE_ENDIAN).getInt(2) & 0xFFFFFFFFL) == size;
+                }
+                default:
+                    return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        if (position < 0) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return null;
+            }
+        }
+        return buffer;
+    }
+    
+    /**
+     * 待定文件：最后观察到的大小和发生变化的时间
+     */
+    private static final class Candidate {
+        long size;
+        long lastChange;
+        
+        Candidate(long size, long lastChange) {
+            this.size = size;
+            this.lastChange = lastChange;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package nju.edu.cn.watermark;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.TextLayout;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 水印字形缓存：预先光栅化字符和整段日期，使绘制水印只剩一次带透明度的图像拷贝
+ *
+ * <p>缓存分两级。第一级按字体大小保存单个字符的覆盖率蒙版：水印文本几乎都是
+ * yyyy-MM-dd 格式的日期，只会用到十个数字和横线，每个字符只用抗锯齿绘制一次。
+ * 蒙版与颜色无关，颜色在拼接时才代入。第二级按（文本, 字体大小, 颜色, 阴影颜色）保存拼好的ARGB水印图像：
+ * 按字形位置排列蒙版，先叠加半透明阴影、再叠加文字，效果与直接调用 drawString 两次一致。
+ * 水印图像只与文字原点相对定位，同一天拍摄的照片无论尺寸如何都共用一份。</p>
+ *
+ * <p>只有ASCII数字、标点和空格按单个字符拼接：它们与相邻字符没有字距调整和连字，
+ * 字符位置取自整段文本的 {@link GlyphVector}，宽度取自 {@link FontMetrics#stringWidth}，与定位使用的宽度一致。
+ * 模板生成的其他文本（字母、中文、代理对等）整段交给 drawString 绘制，由它完成排版和字体回退，
+ * 拼好的水印图像同样进入第二级缓存。</p>
+ *
+ * <p>两级都有上限：字符分组最多 {@value #MAX_STYLES} 组、每组 {@value #MAX_GLYPHS} 个字符；
+ * 水印图像按字节计，超过 {@value #MAX_SPRITE_BYTES} 字节时淘汰最久未使用的条目，
+ * 多种设置交替的长时间运行也不会无限增长。</p>
+ */
+public class GlyphSpriteCache {
+    
+    private static final int MAX_STYLES = 8;
+    private static final int MAX_GLYPHS = 256;
+    private static final long MAX_SPRITE_BYTES = 16L * 1024 * 1024;
+    
+    private static final String FONT_NAME = "微软雅黑";
+    private static final int SHADOW_OFFSET = 2;
+    private static final int SHADOW_ALPHA = 100;
+    /** 默认的阴影：半透明黑色 */
+    static final Color DEFAULT_SHADOW = new Color(0, 0, 0, SHADOW_ALPHA);
+    
+    private static final GlyphSpriteCache SHARED = new GlyphSpriteCache();
+    
+    private final Map<Integer, GlyphSet> styles = new LinkedHashMap<Integer, GlyphSet>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, GlyphSet> eldest) {
+            return size() > MAX_STYLES;
+        }
+    };
+    
+    /** 访问顺序的LRU，由 {@link #spriteBytes} 控制淘汰，访问时需要持有它的锁 */
+    private final LinkedHashMap<String, Sprite> sprites = new LinkedHashMap<>(64, 0.75f, true);
+    private long spriteBytes;
+    
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder glyphMisses = new LongAdder();
+    
+    /**
+     * @return 进程内共享的缓存实例
+     */
+    public static GlyphSpriteCache shared() {
+        return SHARED;
+    }
+    
+    /**
+     * 为指定尺寸的图片取得水印图像，返回的图像由多张图片共用，调用方不能修改
+     *
+     * @param imageWidth 目标图片宽度
+     * @param imageHeight 目标图片高度
+     * @param watermarkText 水印文本
+     * @param fontSize 字体大小
+     * @param color 字体颜色
+     * @param shadow 阴影颜色，透明度按其alpha分量
+     * @param position 水印位置
+     * @param margin 水印与图片边缘的距离（像素）
+     * @return 水印图像及其位置
+     */
+    public WatermarkRenderer.WatermarkStamp createStamp(int imageWidth, int imageHeight, String watermarkText,
+                                                        int fontSize, Color color, Color shadow,
+                                                        WatermarkRenderer.WatermarkPosition position, int margin) {
+        Sprite sprite = sprite(watermarkText, fontSize, color, shadow);
+        Point origin = WatermarkRenderer.calculateWatermarkPosition(
+            imageWidth, imageHeight, sprite.textWidth, sprite.textHeight, position, margin);
+        return new WatermarkRenderer.WatermarkStamp(sprite.image, origin.x + sprite.left, origin.y + sprite.top);
+    }
+    
+    /**
+     * @return 水印图像命中缓存的次数
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+    
+    /**
+     * @return 水印图像需要重新拼接的次数
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+    
+    /**
+     * @return 单个字符需要重新光栅化的次数
+     */
+    public long getGlyphMissCount() {
+        return glyphMisses.sum();
+    }
+    
+    private Sprite sprite(String watermarkText, int fontSize, Color color, Color shadow) {
+        String key = fontSize + "/" + Integer.toHexString(color.getRGB()) + "/" + Integer.toHexString(shadow.getRGB())
+            + "/" + watermarkText;
+        synchronized (sprites) {
+            Sprite sprite = sprites.get(key);
+            if (sprite != null) {
+                hits.increment();
+                return sprite;
+            }
+        }
+        misses.increment();
+        // 在锁外拼接，两个线程同时拼接同一文本时后放入的覆盖先放入的
+        Sprite sprite = assemble(glyphSet(fontSize), watermarkText, color, shadow);
+        synchronized (sprites) {
+            Sprite previous = sprites.put(key, sprite);
+            spriteBytes += sprite.bytes() - (previous == null ? 0 : previous.bytes());
+            Iterator<Sprite> eldest = sprites.values().iterator();
+            while (spriteBytes > MAX_SPRITE_BYTES && sprites.size() > 1) {
+                spriteBytes -= eldest.next().bytes();
+                eldest.remove();
+            }
+        }
+        return sprite;
+    }
+    
+    private GlyphSet glyphSet(int fontSize) {
+        synchronized (styles) {
+            return styles.computeIfAbsent(fontSize, GlyphSet::new);
+        }
+    }
+    
+    /**
+     * 按步进排列字符蒙版，先叠加阴影再叠加文字
+     */
+    private Sprite assemble(GlyphSet glyphSet, String watermarkText, Color color, Color shadow) {
+        if (!isAsciiSymbols(watermarkText)) {
+            return draw(glyphSet, watermarkText, color, shadow);
+        }
+        // 以下文本只含ASCII字符，每个字符恰好对应一个字形
+        int length = watermarkText.length();
+        Glyph[] glyphs = new Glyph[length];
+        int[] penX = new int[length];
+        GlyphVector vector = glyphSet.font.createGlyphVector(glyphSet.renderContext, watermarkText);
+        
+        // 求文字相对于原点的像素范围
+        int textWidth = glyphSet.metrics.stringWidth(watermarkText);
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+        for (int i = 0; i < length; i++) {
+            Glyph glyph = glyphSet.glyph(watermarkText.charAt(i));
+            glyphs[i] = glyph;
+            penX[i] = (int) Math.round(vector.getGlyphPosition(i).getX());
+            if (glyph.width > 0) {
+                left = Math.min(left, penX[i] + glyph.x);
+                top = Math.min(top, glyph.y);
+                right = Math.max(right, penX[i] + glyph.x + glyph.width);
+                bottom = Math.max(bottom, glyph.y + glyph.height);
+            }
+        }
+        if (left > right) {
+            left = right = top = bottom = 0;
+        }
+        
+        // 文字与偏移的阴影的并集，外扩1像素容纳抗锯齿边缘
+        int width = right - left + SHADOW_OFFSET + 2;
+        int height = bottom - top + SHADOW_OFFSET + 2;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int baseX = 1 - left;
+        int baseY = 1 - top;
+        for (int i = 0; i < length; i++) {
+            blend(pixels, width, glyphs[i], baseX + penX[i] + SHADOW_OFFSET, baseY + SHADOW_OFFSET, shadow.getRGB());
+        }
+        for (int i = 0; i < length; i++) {
+            blend(pixels, width, glyphs[i], baseX + penX[i], baseY, color.getRGB());
+        }
+        return new Sprite(image, left - 1, top - 1, textWidth, glyphSet.textHeight);
+    }
+    
+    /**
+     * 文本是否只含ASCII数字、标点和空格，即可以按单个字符的蒙版拼接
+     */
+    static boolean isAsciiSymbols(String text) {
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            if (codePoint < ' ' || codePoint > '~' || Character.isLetter(codePoint)) {
+                return false;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return true;
+    }
+    
+    /**
+     * 整段绘制不能按字符拼接的文本：阴影和文字各调用一次 drawString
+     */
+    private Sprite draw(GlyphSet glyphSet, String watermarkText, Color color, Color shadow) {
+        Rectangle bounds = new TextLayout(watermarkText, glyphSet.font, glyphSet.renderContext)
+            .getPixelBounds(glyphSet.renderContext, 0, 0);
+        BufferedImage image = new BufferedImage(bounds.width + SHADOW_OFFSET + 2, bounds.height + SHADOW_OFFSET + 2,
+            BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = glyphSet.newGraphics(image);
+        int baseX = 1 - bounds.x;
+        int baseY = 1 - bounds.y;
+        g2d.setColor(shadow);
+        g2d.drawString(watermarkText, baseX + SHADOW_OFFSET, baseY + SHADOW_OFFSET);
+        g2d.setColor(color);
+        g2d.drawString(watermarkText, baseX, baseY);
+        g2d.dispose();
+        return new Sprite(image, bounds.x - 1, bounds.y - 1, glyphSet.metrics.stringWidth(watermarkText),
+            glyphSet.textHeight);
+    }
+    
+    /**
+     * 把字形蒙版按给定颜色以 SrcOver 方式叠加到非预乘的ARGB像素上
+     *
+     * @param originX 字形基线原点在像素数组中的横坐标
+     * @param originY 字形基线原点在像素数组中的纵坐标
+     */
+    private static void blend(int[] pixels, int stride, Glyph glyph, int originX, int originY, int argb) {
+        int colorAlpha = argb >>> 24;
+        int red = (argb >> 16) & 0xFF;
+        int green = (argb >> 8) & 0xFF;
+        int blue = argb & 0xFF;
+        for (int row = 0; row < glyph.height; row++) {
+            int offset = (originY + glyph.y + row) * stride + originX + glyph.x;
+            int maskOffset = row * glyph.width;
+            for (int column = 0; column < glyph.width; column++) {
+                int coverage = glyph.mask[maskOffset + column] & 0xFF;
+                if (coverage == 0) {
+                    continue;
+                }
+                int srcAlpha = (coverage * colorAlpha + 127) / 255;
+                int dst = pixels[offset + column];
+                int dstAlpha = dst >>> 24;
+                int dstWeight = (dstAlpha * (255 - srcAlpha) + 127) / 255;
+                int outAlpha = srcAlpha + dstWeight;
+                if (outAlpha == 0) {
+                    continue;
+                }
+                int half = outAlpha / 2;
+                int r = (red * srcAlpha + ((dst >> 16) & 0xFF) * dstWeight + half) / outAlpha;
+                int g = (green * srcAlpha + ((dst >> 8) & 0xFF) * dstWeight + half) / outAlpha;
+                int b = (blue * srcAlpha + (dst & 0xFF) * dstWeight + half) / outAlpha;
+                pixels[offset + column] = (outAlpha << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+    
+    /**
+     * 一种字体大小下已光栅化的字符
+     */
+    private final class GlyphSet {
+        private final Font font;
+        private final FontMetrics metrics;
+        private final FontRenderContext renderContext;
+        private final int textHeight;
+        private final Map<Character, Glyph> glyphs = new ConcurrentHashMap<>();
+        
+        GlyphSet(int fontSize) {
+            this.font = new Font(FONT_NAME, Font.BOLD, fontSize);
+            Graphics2D g2d = newGraphics(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB));
+            this.metrics = g2d.getFontMetrics();
+            this.renderContext = g2d.getFontRenderContext();
+            g2d.dispose();
+            this.textHeight = metrics.getHeight();
+        }
+        
+        Glyph glyph(char c) {
+            Glyph glyph = glyphs.get(c);
+            if (glyph != null) {
+                return glyph;
+            }
+            glyphMisses.increment();
+            glyph = rasterize(c);
+            if (glyphs.size() < MAX_GLYPHS) {
+                glyphs.putIfAbsent(c, glyph);
+            }
+            return glyph;
+        }
+        
+        private Glyph rasterize(char c) {
+            String text = String.valueOf(c);
+            Rectangle bounds = font.createGlyphVector(renderContext, text).getPixelBounds(renderContext, 0, 0);
+            if (bounds.isEmpty()) {
+                return new Glyph(0, 0, 0, 0, new byte[0]);
+            }
+            BufferedImage image = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g2d = newGraphics(image);
+            g2d.setColor(Color.WHITE);
+            g2d.drawString(text, -bounds.x, -bounds.y);
+            g2d.dispose();
+            
+            // 白色不透明文字的透明度就是覆盖率
+            Raster alpha = image.getAlphaRaster();
+            byte[] mask = new byte[bounds.width * bounds.height];
+            for (int row = 0; row < bounds.height; row++) {
+                for (int column = 0; column < bounds.width; column++) {
+                    mask[row * bounds.width + column] = (byte) alpha.getSample(column, row, 0);
+                }
+            }
+            return new Glyph(bounds.x, bounds.y, bounds.width, bounds.height, mask);
+        }
+        
+        private Graphics2D newGraphics(BufferedImage image) {
+            Graphics2D g2d = image.createGraphics();
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g2d.setFont(font);
+            return g2d;
+        }
+    }
+    
+    /**
+     * 单个字符的覆盖率蒙版，坐标相对于基线原点
+     */
+    private static final class Glyph {
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+        final byte[] mask;
+        
+        Glyph(int x, int y, int width, int height, byte[] mask) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.mask = mask;
+        }
+    }
+    
+    /**
+     * 拼好的水印图像，位置相对于文字原点（基线左端）
+     */
+    private static final class Sprite {
+        final BufferedImage image;
+        final int left;
+        final int top;
+        final int textWidth;
+        final int textHeight;
+        
+        Sprite(BufferedImage image, int left, int top, int textWidth, int textHeight) {
+            this.image = image;
+            this.left = left;
+            this.top = top;
+            this.textWidth = textWidth;
+            this.textHeight = textHeight;
+        }
+        
+        long bytes() {
+            return (long) image.getWidth() * image.getHeight() * 4;
+        }
+    }
+}
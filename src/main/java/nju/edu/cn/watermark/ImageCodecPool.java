@@ -0,0 +1,76 @@
+package nju.edu.cn.watermark;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按线程缓存的 {@link ImageReader} / {@link ImageWriter}
+ *
+ * <p>{@code ImageIO.read/write} 每次调用都要遍历服务注册表、创建新的读写器实例（JPEG读写器还要分配本地结构），
+ * 用完即销毁。流水线的解码和编码线程是固定的，每个线程为每种格式保留一个实例反复使用，
+ * 用完后只调用 {@code reset()} 清除输入输出，不调用 {@code dispose()}。</p>
+ *
+ * <p>实例只在取得它的线程中使用，不需要同步；同一线程不能嵌套使用同一格式的实例。</p>
+ */
+public class ImageCodecPool {
+    
+    private static final ThreadLocal<Map<String, ImageWriter>> WRITERS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<List<ImageReader>> READERS = ThreadLocal.withInitial(ArrayList::new);
+    
+    private ImageCodecPool() {
+    }
+    
+    /**
+     * 取得当前线程的编码器，用完后调用 {@link ImageWriter#reset()}
+     *
+     * @param format 格式名（png/jpg/bmp/tiff）
+     * @return 编码器
+     * @throws IOException 如果没有该格式的编码器
+     */
+    public static ImageWriter getWriter(String format) throws IOException {
+        Map<String, ImageWriter> writers = WRITERS.get();
+        ImageWriter writer = writers.get(format);
+        if (writer == null) {
+            Iterator<ImageWriter> candidates = ImageIO.getImageWritersByFormatName(format);
+            if (!candidates.hasNext()) {
+                throw new IOException("没有可用的编码器: " + format);
+            }
+            writer = candidates.next();
+            writers.put(format, writer);
+        }
+        return writer;
+    }
+    
+    /**
+     * 取得当前线程中能解码该输入的读取器，用完后调用 {@link ImageReader#reset()}
+     *
+     * <p>先用已缓存读取器的提供者按文件头判断，都不匹配时才查询服务注册表。</p>
+     *
+     * @param stream 输入流，判断后回到原来的位置
+     * @return 读取器，尚未设置输入；没有能解码该输入的读取器时返回null
+     * @throws IOException 如果读取文件头失败
+     */
+    public static ImageReader getReader(ImageInputStream stream) throws IOException {
+        List<ImageReader> readers = READERS.get();
+        for (ImageReader reader : readers) {
+            if (reader.getOriginatingProvider().canDecodeInput(stream)) {
+                return reader;
+            }
+        }
+        Iterator<ImageReader> candidates = ImageIO.getImageReaders(stream);
+        if (!candidates.hasNext()) {
+            return null;
+        }
+        ImageReader reader = candidates.next();
+        readers.add(reader);
+        return reader;
+    }
+}
@@ -0,0 +1,74 @@
+package nju.edu.cn.watermark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.function.BiConsumer;
+
+/**
+ * 流式目录遍历器，边遍历边把图片文件交给下游处理
+ *
+ * <p>不再先把整棵目录树收集成列表：每发现一个文件就立即回调，
+ * 下游队列已满时回调阻塞，遍历也随之暂停。输出目录位于输入目录内部时会被跳过，
+ * 避免已加水印的图片被再次处理。</p>
+ */
+public class ImageFileWalker {
+    
+    private final Path excludedDir;
+    
+    /**
+     * @param excludedDir 遍历时跳过的目录（通常是输出目录），可为null
+     */
+    public ImageFileWalker(File excludedDir) {
+        this.excludedDir = excludedDir == null ? null : normalize(excludedDir.toPath());
+    }
+    
+    /**
+     * 遍历输入路径，对每个支持的图片文件调用处理函数
+     *
+     * @param inputPath 输入文件或目录
+     * @param consumer 图片文件处理函数，同时传入遍历时读取的文件属性
+     * @return 发现的图片文件数
+     * @throws IOException 如果遍历起点无法访问
+     */
+    public long walk(File inputPath, BiConsumer<File, BasicFileAttributes> consumer) throws IOException {
+        long[] discovered = new long[1];
+        Files.walkFileTree(normalize(inputPath.toPath()), EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+                Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(excludedDir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && ExifReader.isSupportedImageName(file.getFileName().toString())) {
+                    discovered[0]++;
+                    consumer.accept(file.toFile(), attrs);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.err.println("无法访问: " + file + " - " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return discovered[0];
+    }
+    
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+}
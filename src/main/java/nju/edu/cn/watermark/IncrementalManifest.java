@@ -0,0 +1,243 @@
+package nju.edu.cn.watermark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 增量运行清单，记录输出目录中已经处理过的源文件
+ *
+ * <p>每个条目固定32字节：源路径哈希、文件大小、修改时间、渲染设置指纹。
+ * 源文件的大小和修改时间都没有变化、且渲染设置指纹一致时，
+ * 再次运行可以直接跳过，不必打开文件。没有EXIF拍摄时间的文件记录为
+ * {@link #NO_EXIF}，它与渲染设置无关，修改字体或颜色后也不会被重新读取。</p>
+ *
+ * <p>清单以二进制格式保存在输出目录的 {@value #FILE_NAME} 中，加载时通过内存映射
+ * 直接读入开放寻址哈希表，查找无需分配对象。每次保存后合并好的表替换查找用的表，
+ * 监视模式下本次会话处理过的文件也能判定为已是最新，新记录只保留到下次保存。</p>
+ */
+public class IncrementalManifest {
+
+    public static final String FILE_NAME = ".watermark-manifest";
+
+    /** 查找不到匹配条目 */
+    public static final long MISSING = -1L;
+    /** 文件没有EXIF拍摄时间 */
+    public static final long NO_EXIF = 0L;
+
+    private static final int MAGIC = 0x574D4D46; // "WMMF"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_LONGS = 4;
+
+    private static final int INITIAL_RECORDED = ENTRY_LONGS * 256;
+
+    private final Path file;
+
+    /** 已保存的条目：加载的旧条目，保存后换成合并后的表；表本身不再修改，查找无需加锁 */
+    private volatile long[] table;
+
+    /** 上次保存之后新记录的条目，保存时覆盖同一路径的旧条目 */
+    private long[] recorded = new long[INITIAL_RECORDED];
+    private int recordedCount;
+
+    private IncrementalManifest(Path file, long[] table) {
+        this.file = file;
+        this.table = table;
+    }
+
+    /**
+     * 加载输出目录中的清单，文件不存在或格式不符时返回空清单
+     *
+     * @param outputDir 输出目录
+     * @return 清单
+     */
+    public static IncrementalManifest load(File outputDir) {
+        Path file = outputDir.toPath().resolve(FILE_NAME);
+        if (!Files.isRegularFile(file)) {
+            return new IncrementalManifest(file, newTable(0));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                System.err.println("忽略无法识别的增量清单: " + file);
+                return new IncrementalManifest(file, newTable(0));
+            }
+            long count = buffer.getLong();
+            if (count < 0 || count * ENTRY_LONGS * Long.BYTES != buffer.remaining()) {
+                System.err.println("忽略已损坏的增量清单: " + file);
+                return new IncrementalManifest(file, newTable(0));
+            }
+            long[] table = newTable((int) count);
+            LongBuffer entries = buffer.asLongBuffer();
+            for (int i = 0; i < count; i++) {
+                put(table, entries.get(), entries.get(), entries.get(), entries.get());
+            }
+            return new IncrementalManifest(file, table);
+        } catch (IOException e) {
+            System.err.println("读取增量清单失败，将全部重新处理: " + e.getMessage());
+            return new IncrementalManifest(file, newTable(0));
+        }
+    }
+
+    /**
+     * 查找源文件的记录
+     *
+     * @param source 源文件
+     * @param size 源文件大小
+     * @param lastModified 源文件修改时间（毫秒）
+     * @return 记录的渲染设置指纹；{@link #NO_EXIF} 表示上次判定为无EXIF；
+     *         大小或修改时间不一致、或没有记录时返回 {@link #MISSING}
+     */
+    public long find(File source, long size, long lastModified) {
+        long[] table = this.table;
+        int mask = table.length / ENTRY_LONGS - 1;
+        long key = pathHash(source);
+        int slot = (int) mix(key) & mask;
+        while (true) {
+            int base = slot * ENTRY_LONGS;
+            long current = table[base];
+            if (current == 0) {
+                return MISSING;
+            }
+            if (current == key) {
+                return table[base + 1] == size && table[base + 2] == lastModified ? table[base + 3] : MISSING;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * 记录本次运行的处理结果
+     *
+     * @param source 源文件
+     * @param size 处理开始前读取的文件大小
+     * @param lastModified 处理开始前读取的修改时间
+     * @param fingerprint 渲染设置指纹，或 {@link #NO_EXIF}
+     */
+    public synchronized void record(File source, long size, long lastModified, long fingerprint) {
+        if (recordedCount * ENTRY_LONGS == recorded.length) {
+            long[] grown = new long[recorded.length * 2];
+            System.arraycopy(recorded, 0, grown, 0, recorded.length);
+            recorded = grown;
+        }
+        int base = recordedCount * ENTRY_LONGS;
+        recorded[base] = pathHash(source);
+        recorded[base + 1] = size;
+        recorded[base + 2] = lastModified;
+        recorded[base + 3] = fingerprint;
+        recordedCount++;
+    }
+
+    /**
+     * 合并已保存的条目与新记录，先写临时文件再原子替换；成功后合并的表用于之后的查找，新记录清空
+     *
+     * @throws IOException 如果写入失败
+     */
+    public synchronized void save() throws IOException {
+        long[] table = this.table;
+        int capacity = table.length / ENTRY_LONGS;
+        long[] merged = newTable(capacity / 2 + recordedCount);
+        int count = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int base = slot * ENTRY_LONGS;
+            if (table[base] != 0 && put(merged, table[base], table[base + 1], table[base + 2], table[base + 3])) {
+                count++;
+            }
+        }
+        for (int i = 0; i < recordedCount; i++) {
+            int base = i * ENTRY_LONGS;
+            if (put(merged, recorded[base], recorded[base + 1], recorded[base + 2], recorded[base + 3])) {
+                count++;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * ENTRY_LONGS * Long.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(count);
+        for (int i = 0; i < merged.length; i += ENTRY_LONGS) {
+            if (merged[i] != 0) {
+                buffer.putLong(merged[i]).putLong(merged[i + 1]).putLong(merged[i + 2]).putLong(merged[i + 3]);
+            }
+        }
+        buffer.flip();
+
+        Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.table = merged;
+        recorded = new long[INITIAL_RECORDED];
+        recordedCount = 0;
+    }
+
+    /**
+     * @return 上次保存之后是否有新的记录
+     */
+    public synchronized boolean hasUnsavedRecords() {
+        return recordedCount > 0;
+    }
+
+    /**
+     * 按条目数分配负载因子不超过0.5的哈希表
+     */
+    private static long[] newTable(int entries) {
+        int slots = Integer.highestOneBit(Math.max(16, entries * 2 - 1)) << 1;
+        return new long[slots * ENTRY_LONGS];
+    }
+
+    /**
+     * 插入或覆盖条目
+     *
+     * @return 是否新增了一个条目（覆盖返回false）
+     */
+    private static boolean put(long[] table, long key, long size, long lastModified, long fingerprint) {
+        int mask = table.length / ENTRY_LONGS - 1;
+        int slot = (int) mix(key) & mask;
+        while (true) {
+            int base = slot * ENTRY_LONGS;
+            boolean empty = table[base] == 0;
+            if (empty || table[base] == key) {
+                table[base] = key;
+                table[base + 1] = size;
+                table[base + 2] = lastModified;
+                table[base + 3] = fingerprint;
+                return empty;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * 源文件绝对路径的64位FNV-1a哈希，0保留给空槽位
+     */
+    static long pathHash(File source) {
+        String path = source.getAbsolutePath();
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,1101 @@
+package nju.edu.cn.watermark;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * 只重新编码水印所在块的JPEG写出路径
+ *
+ * <p>对基线（Huffman编码、8位精度、单次扫描）JPEG，不做整帧解码：
+ * 熵编码数据被逐个MCU地解出DCT系数，只有与水印矩形相交、且确实被水印像素覆盖的
+ * 8×8块才会经过 反量化 → IDCT → 叠加水印 → DCT → 量化 的过程，其余块的系数原样保留。
+ * 所有APP段（包括EXIF）、量化表和Huffman表按字节复制；第一个受影响MCU之前的熵编码数据
+ * 也按字节复制，之后的部分用原来的Huffman表重新编码。如果文件使用了重启间隔，
+ * 最后一个受影响MCU之后的下一个重启标记起，剩余数据也按字节复制。</p>
+ *
+ * <p>自动颜色的水印需要先知道水印区域的亮度：到达第一个受影响的MCU时，在读取器的副本上向后解码到
+ * 最后一个受影响的MCU，取水印区域内亮度块的DC系数（即8×8块的平均值）求平均，再继续正式的一遍。
+ * 多解码的只有水印所在的几行MCU。</p>
+ *
+ * <p>渐进式、算术编码、12位精度、多次扫描、CMYK/RGB色彩空间等布局不在此路径的处理范围内，
+ * {@link #watermark} 返回false，由调用方改走完整解码的路径。</p>
+ */
+public class JpegBlockWatermarker {
+    
+    /** 之字形扫描序号到自然顺序下标的映射 */
+    private static final int[] ZIGZAG = {
+         0,  1,  8, 16,  9,  2,  3, 10,
+        17, 24, 32, 25, 18, 11,  4,  5,
+        12, 19, 26, 33, 40, 48, 41, 34,
+        27, 20, 13,  6,  7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36,
+        29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46,
+        53, 60, 61, 54, 47, 55, 62, 63
+    };
+    
+    /** IDCT/DCT使用的余弦表：COS[x][u] = C(u)/2 * cos((2x+1)uπ/16) */
+    private static final double[][] COS = new double[8][8];
+    
+    static {
+        for (int x = 0; x < 8; x++) {
+            for (int u = 0; u < 8; u++) {
+                double cu = u == 0 ? Math.sqrt(0.5) : 1.0;
+                COS[x][u] = cu / 2 * Math.cos((2 * x + 1) * u * Math.PI / 16);
+            }
+        }
+    }
+    
+    /**
+     * 给JPEG文件添加水印，只重新编码受影响的块
+     *
+     * @param inputFile 输入JPEG文件
+     * @param outputFile 输出JPEG文件
+     * @param watermarkText 水印文本
+     * @param fontSize 字体大小
+     * @param color 字体颜色
+     * @param position 水印位置
+     * @return 写出成功返回true；文件布局不受支持时返回false且不写任何内容
+     * @throws IOException 如果读写文件失败
+     */
+    public static boolean watermark(File inputFile, File outputFile, String watermarkText, int fontSize,
+                                    Color color, WatermarkRenderer.WatermarkPosition position) throws IOException {
+        byte[] data = Files.readAllBytes(inputFile.toPath());
+        Frame frame = Frame.parse(data);
+        if (frame == null) {
+            return false;
+        }
+        // 灰度JPEG只能表示无彩色的水印，彩色文字交给完整路径（输出为彩色图片）
+        if (frame.components.length == 1 && !isAchromatic(color)) {
+            return false;
+        }
+        // 原样保留的APP1带着方向标签，水印按查看器显示的方向放置
+        WatermarkRenderer.WatermarkStamp stamp = WatermarkRenderer.createStamp(frame.width, frame.height,
+            watermarkText, fontSize, color, position, WatermarkRenderer.MARGIN, -1, frame.orientation);
+        IntFunction<WatermarkRenderer.WatermarkStamp> autoStamp = WatermarkRenderer.isAutoColor(color)
+            ? luminance -> WatermarkRenderer.createStamp(frame.width, frame.height, watermarkText, fontSize,
+                color, position, WatermarkRenderer.MARGIN, luminance, frame.orientation)
+            : null;
+        byte[] output;
+        try {
+            output = new Transcoder(data, frame, stamp, autoStamp).run();
+        } catch (UnsupportedLayoutException e) {
+            return false;
+        }
+        Files.write(outputFile.toPath(), output);
+        return true;
+    }
+    
+    private static boolean isAchromatic(Color color) {
+        return color.getRed() == color.getGreen() && color.getGreen() == color.getBlue();
+    }
+    
+    /**
+     * 熵编码数据中遇到此路径无法处理的情况
+     */
+    private static final class UnsupportedLayoutException extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        UnsupportedLayoutException(String message) {
+            super(message, null, false, false);
+        }
+    }
+    
+    // ------------------------------------------------------------------
+    // 文件头解析
+    // ------------------------------------------------------------------
+    
+    private static final class Component {
+        int id;
+        int h;
+        int v;
+        int[] quant;
+        Huffman dcTable;
+        Huffman acTable;
+    }
+    
+    /**
+     * SOS之前的全部头信息
+     */
+    private static final class Frame {
+        int width;
+        int height;
+        Component[] components;
+        int maxH;
+        int maxV;
+        int restartInterval;
+        int scanStart;
+        int orientation = 1;
+        
+        /**
+         * @return 解析结果；布局不受支持时返回null
+         */
+        static Frame parse(byte[] data) {
+            if (data.length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != 0xD8) {
+                return null;
+            }
+            int[][] quantTables = new int[4][];
+            Huffman[] dcTables = new Huffman[4];
+            Huffman[] acTables = new Huffman[4];
+            Frame frame = new Frame();
+            boolean adobeRgb = false;
+            int pos = 2;
+            while (pos + 4 <= data.length) {
+                if ((data[pos] & 0xFF) != 0xFF) {
+                    return null;
+                }
+                int marker = data[pos + 1] & 0xFF;
+                if (marker == 0xFF) {
+                    pos++;
+                    continue;
+                }
+                if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+                    pos += 2;
+                    continue;
+                }
+                if (marker == 0xD9) {
+                    return null;
+                }
+                int length = u16(data, pos + 2);
+                int start = pos + 4;
+                int end = pos + 2 + length;
+                if (length < 2 || end > data.length) {
+                    return null;
+                }
+                switch (marker) {
+                    case 0xDB:
+                        if (!parseQuantTables(data, start, end, quantTables)) {
+                            return null;
+                        }
+                        break;
+                    case 0xC4:
+                        if (!parseHuffmanTables(data, start, end, dcTables, acTables)) {
+                            return null;
+                        }
+                        break;
+                    case 0xC0:
+                    case 0xC1:
+                        if (!frame.parseFrameHeader(data, start, end, quantTables)) {
+                            return null;
+                        }
+                        break;
+                    case 0xDD:
+                        if (end - start < 2) {
+                            return null;
+                        }
+                        frame.restartInterval = u16(data, start);
+                        break;
+                    case 0xE1:
+                        // XMP等其他APP1段读出1，不覆盖已读到的方向
+                        if (frame.orientation == 1) {
+                            frame.orientation = SourceMetadata.readApp1Orientation(data, start, end);
+                        }
+                        break;
+                    case 0xEE:
+                        // Adobe APP14：transform=0 表示未做YCbCr变换的RGB
+                        if (end - start >= 12 && data[start] == 'A' && data[start + 1] == 'd'
+                                && data[start + 2] == 'o' && data[start + 3] == 'b' && data[start + 4] == 'e') {
+                            adobeRgb = (data[start + 11] & 0xFF) == 0;
+                        }
+                        break;
+                    case 0xDA:
+                        if (frame.components == null || !frame.parseScanHeader(data, start, end, dcTables, acTables)) {
+                            return null;
+                        }
+                        if (frame.components.length == 3 && (adobeRgb || frame.isRgbComponentIds())) {
+                            return null;
+                        }
+                        frame.scanStart = end;
+                        return frame;
+                    default:
+                        // 其他SOF（渐进式、无损、算术编码）一律不支持
+                        if (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                            return null;
+                        }
+                        break;
+                }
+                pos = end;
+            }
+            return null;
+        }
+        
+        private boolean parseFrameHeader(byte[] data, int start, int end, int[][] quantTables) {
+            if (end - start < 6 || data[start] != 8) {
+                return false;
+            }
+            height = u16(data, start + 1);
+            width = u16(data, start + 3);
+            int count = data[start + 5] & 0xFF;
+            if (width == 0 || height == 0 || (count != 1 && count != 3) || end - start < 6 + count * 3) {
+                return false;
+            }
+            components = new Component[count];
+            for (int i = 0; i < count; i++) {
+                int offset = start + 6 + i * 3;
+                Component component = new Component();
+                component.id = data[offset] & 0xFF;
+                component.h = (data[offset + 1] & 0xFF) >> 4;
+                component.v = data[offset + 1] & 0x0F;
+                int tq = data[offset + 2] & 0xFF;
+                if (component.h < 1 || component.v < 1 || tq > 3 || quantTables[tq] == null) {
+                    return false;
+                }
+                component.quant = quantTables[tq];
+                components[i] = component;
+                maxH = Math.max(maxH, component.h);
+                maxV = Math.max(maxV, component.v);
+            }
+            for (Component component : components) {
+                if (maxH % component.h != 0 || maxV % component.v != 0) {
+                    return false;
+                }
+            }
+            if (count == 1) {
+                // 单分量扫描不交错，每个MCU就是一个8×8块
+                components[0].h = 1;
+                components[0].v = 1;
+                maxH = 1;
+                maxV = 1;
+            }
+            return true;
+        }
+        
+        private boolean parseScanHeader(byte[] data, int start, int end, Huffman[] dcTables, Huffman[] acTables) {
+            int count = data[start] & 0xFF;
+            if (count != components.length || end - start != 4 + count * 2) {
+                return false;
+            }
+            Component[] ordered = new Component[count];
+            for (int i = 0; i < count; i++) {
+                int id = data[start + 1 + i * 2] & 0xFF;
+                int tables = data[start + 2 + i * 2] & 0xFF;
+                Component component = null;
+                for (Component candidate : components) {
+                    if (candidate.id == id) {
+                        component = candidate;
+                    }
+                }
+                int td = tables >> 4;
+                int ta = tables & 0x0F;
+                if (component == null || td > 3 || ta > 3 || dcTables[td] == null || acTables[ta] == null) {
+                    return false;
+                }
+                component.dcTable = dcTables[td];
+                component.acTable = acTables[ta];
+                ordered[i] = component;
+            }
+            int spectralStart = data[end - 3] & 0xFF;
+            int spectralEnd = data[end - 2] & 0xFF;
+            int approximation = data[end - 1] & 0xFF;
+            if (spectralStart != 0 || spectralEnd != 63 || approximation != 0) {
+                return false;
+            }
+            // 只处理分量按帧头顺序排列的情况，第一个分量即亮度
+            for (int i = 0; i < count; i++) {
+                if (ordered[i] != components[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        private boolean isRgbComponentIds() {
+            return components[0].id == 'R' && components[1].id == 'G' && components[2].id == 'B';
+        }
+        
+        private static boolean parseQuantTables(byte[] data, int start, int end, int[][] quantTables) {
+            int pos = start;
+            while (pos < end) {
+                int precision = (data[pos] & 0xFF) >> 4;
+                int index = data[pos] & 0x0F;
+                int size = precision == 0 ? 64 : 128;
+                if (index > 3 || precision > 1 || pos + 1 + size > end) {
+                    return false;
+                }
+                int[] table = new int[64];
+                for (int k = 0; k < 64; k++) {
+                    table[k] = precision == 0 ? data[pos + 1 + k] & 0xFF : u16(data, pos + 1 + k * 2);
+                    if (table[k] == 0) {
+                        return false;
+                    }
+                }
+                quantTables[index] = table;
+                pos += 1 + size;
+            }
+            return true;
+        }
+        
+        private static boolean parseHuffmanTables(byte[] data, int start, int end, Huffman[] dcTables, Huffman[] acTables) {
+            int pos = start;
+            while (pos < end) {
+                int tableClass = (data[pos] & 0xFF) >> 4;
+                int index = data[pos] & 0x0F;
+                if (tableClass > 1 || index > 3 || pos + 17 > end) {
+                    return false;
+                }
+                int[] counts = new int[17];
+                int total = 0;
+                for (int length = 1; length <= 16; length++) {
+                    counts[length] = data[pos + length] & 0xFF;
+                    total += counts[length];
+                }
+                if (total > 256 || pos + 17 + total > end) {
+                    return false;
+                }
+                int[] symbols = new int[total];
+                for (int i = 0; i < total; i++) {
+                    symbols[i] = data[pos + 17 + i] & 0xFF;
+                }
+                Huffman table = Huffman.build(counts, symbols);
+                if (table == null) {
+                    return false;
+                }
+                if (tableClass == 0) {
+                    dcTables[index] = table;
+                } else {
+                    acTables[index] = table;
+                }
+                pos += 17 + total;
+            }
+            return true;
+        }
+    }
+    
+    private static int u16(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+    
+    // ------------------------------------------------------------------
+    // Huffman表
+    // ------------------------------------------------------------------
+    
+    private static final class Huffman {
+        private static final int LOOKAHEAD = 9;
+        
+        /** 前LOOKAHEAD位的快速查找表：(码长 << 8) | 符号，0表示码长超过LOOKAHEAD */
+        final int[] lookup = new int[1 << LOOKAHEAD];
+        final int[] maxCode = new int[18];
+        final int[] valueOffset = new int[17];
+        final int[] symbols;
+        /** 编码用：符号到码字与码长，码长为0表示表中没有该符号 */
+        final int[] codes = new int[256];
+        final int[] sizes = new int[256];
+        
+        private Huffman(int[] symbols) {
+            this.symbols = symbols;
+        }
+        
+        static Huffman build(int[] counts, int[] symbols) {
+            Huffman table = new Huffman(symbols);
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                table.valueOffset[length] = k - code;
+                for (int i = 0; i < counts[length]; i++) {
+                    if (code >= (1 << length)) {
+                        return null;
+                    }
+                    int symbol = symbols[k];
+                    table.codes[symbol] = code;
+                    table.sizes[symbol] = length;
+                    if (length <= LOOKAHEAD) {
+                        int shift = LOOKAHEAD - length;
+                        int entry = (length << 8) | symbol;
+                        for (int suffix = 0; suffix < (1 << shift); suffix++) {
+                            table.lookup[(code << shift) | suffix] = entry;
+                        }
+                    }
+                    code++;
+                    k++;
+                }
+                table.maxCode[length] = counts[length] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            table.maxCode[17] = Integer.MAX_VALUE;
+            return table;
+        }
+    }
+    
+    // ------------------------------------------------------------------
+    // 熵编码数据的位读写
+    // ------------------------------------------------------------------
+    
+    /**
+     * 熵编码数据读取器，自动去除0xFF后的填充0x00，遇到标记即停止装载
+     */
+    private static final class BitReader {
+        private final byte[] data;
+        private int pos;
+        private long buffer;
+        private int bitCount;
+        /** 遇到标记后补入的虚拟0字节数，正常数据不应读到这些位 */
+        private int virtualBytes;
+        /** 最近装载的数据字节在文件中的位置，用于把位位置换算回文件偏移 */
+        private final int[] recentOffsets = new int[16];
+        private long loadedBytes;
+        
+        BitReader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+        
+        /**
+         * 复制读取状态，副本向后读取不影响原读取器
+         */
+        BitReader(BitReader other) {
+            this.data = other.data;
+            this.pos = other.pos;
+            this.buffer = other.buffer;
+            this.bitCount = other.bitCount;
+            this.virtualBytes = other.virtualBytes;
+            System.arraycopy(other.recentOffsets, 0, recentOffsets, 0, recentOffsets.length);
+            this.loadedBytes = other.loadedBytes;
+        }
+        
+        private void fill() {
+            while (bitCount <= 56) {
+                int value = 0;
+                if (virtualBytes == 0 && pos < data.length) {
+                    int b = data[pos] & 0xFF;
+                    if (b == 0xFF) {
+                        int next = pos + 1 < data.length ? data[pos + 1] & 0xFF : 0xD9;
+                        if (next == 0x00) {
+                            recentOffsets[(int) (loadedBytes++ & 15)] = pos;
+                            pos += 2;
+                            value = 0xFF;
+                        } else {
+                            virtualBytes++;
+                        }
+                    } else {
+                        recentOffsets[(int) (loadedBytes++ & 15)] = pos;
+                        pos++;
+                        value = b;
+                    }
+                } else {
+                    virtualBytes++;
+                }
+                buffer = (buffer << 8) | value;
+                bitCount += 8;
+            }
+        }
+        
+        int peek(int n) {
+            if (bitCount < n) {
+                fill();
+            }
+            return (int) ((buffer >>> (bitCount - n)) & ((1L << n) - 1));
+        }
+        
+        void skip(int n) {
+            bitCount -= n;
+        }
+        
+        int bits(int n) {
+            int value = peek(n);
+            bitCount -= n;
+            return value;
+        }
+        
+        int decode(Huffman table) throws UnsupportedLayoutException {
+            int entry = table.lookup[peek(Huffman.LOOKAHEAD)];
+            if (entry != 0) {
+                skip(entry >> 8);
+                return entry & 0xFF;
+            }
+            int length = Huffman.LOOKAHEAD + 1;
+            int code = peek(length);
+            while (code > table.maxCode[length]) {
+                length++;
+                if (length > 16) {
+                    throw new UnsupportedLayoutException("无效的Huffman码");
+                }
+                code = peek(length);
+            }
+            skip(length);
+            return table.symbols[table.valueOffset[length] + code];
+        }
+        
+        /**
+         * 读取 s 位幅值并按JPEG规则还原符号
+         */
+        int receiveExtend(int s) {
+            if (s == 0) {
+                return 0;
+            }
+            int value = bits(s);
+            return value < (1 << (s - 1)) ? value - (1 << s) + 1 : value;
+        }
+        
+        /**
+         * 当前读取位置：尚未完全消耗的第一个数据字节的文件偏移，以及该字节已消耗的位数
+         */
+        int[] position() throws UnsupportedLayoutException {
+            long realBits = bitCount - virtualBytes * 8L;
+            if (realBits < 0) {
+                throw new UnsupportedLayoutException("熵编码数据提前结束");
+            }
+            int pendingBytes = (int) ((realBits + 7) / 8);
+            if (pendingBytes == 0) {
+                return new int[] {pos, 0};
+            }
+            int offset = recentOffsets[(int) ((loadedBytes - pendingBytes) & 15)];
+            return new int[] {offset, (int) (pendingBytes * 8L - realBits)};
+        }
+        
+        /**
+         * 读取重启标记：丢弃当前字节剩余的填充位，跳过 RSTn
+         *
+         * @return 重启标记在文件中的位置
+         */
+        int restart() throws UnsupportedLayoutException {
+            if (bitCount - virtualBytes * 8L >= 8) {
+                throw new UnsupportedLayoutException("重启标记前存在多余数据");
+            }
+            if (pos + 1 >= data.length || (data[pos] & 0xFF) != 0xFF
+                    || (data[pos + 1] & 0xF8) != 0xD0) {
+                throw new UnsupportedLayoutException("缺少重启标记");
+            }
+            int markerPos = pos;
+            pos += 2;
+            buffer = 0;
+            bitCount = 0;
+            virtualBytes = 0;
+            return markerPos;
+        }
+        
+        /**
+         * @return 扫描数据结束后第一个标记的位置
+         */
+        int endOfScan() throws UnsupportedLayoutException {
+            if (bitCount - virtualBytes * 8L >= 8) {
+                throw new UnsupportedLayoutException("扫描结束后存在多余数据");
+            }
+            int p = pos;
+            while (p + 1 < data.length) {
+                if ((data[p] & 0xFF) == 0xFF && (data[p + 1] & 0xFF) != 0x00) {
+                    return p;
+                }
+                p++;
+            }
+            throw new UnsupportedLayoutException("缺少EOI标记");
+        }
+    }
+    
+    /**
+     * 输出缓冲区兼熵编码写入器
+     */
+    private static final class BitWriter {
+        private byte[] out;
+        private int length;
+        private int buffer;
+        private int bitCount;
+        
+        BitWriter(int capacity) {
+            out = new byte[capacity];
+        }
+        
+        void copy(byte[] source, int from, int to) {
+            ensure(to - from);
+            System.arraycopy(source, from, out, length, to - from);
+            length += to - from;
+        }
+        
+        void put(int code, int size) {
+            buffer = (buffer << size) | (code & ((1 << size) - 1));
+            bitCount += size;
+            while (bitCount >= 8) {
+                int b = (buffer >> (bitCount - 8)) & 0xFF;
+                ensure(2);
+                out[length++] = (byte) b;
+                if (b == 0xFF) {
+                    out[length++] = 0;
+                }
+                bitCount -= 8;
+            }
+            buffer &= (1 << bitCount) - 1;
+        }
+        
+        /**
+         * 用1补齐到字节边界
+         */
+        void flush() {
+            if (bitCount > 0) {
+                put(0x7F, 8 - bitCount);
+            }
+        }
+        
+        void marker(int marker) {
+            ensure(2);
+            out[length++] = (byte) 0xFF;
+            out[length++] = (byte) marker;
+        }
+        
+        byte[] toByteArray() {
+            return Arrays.copyOf(out, length);
+        }
+        
+        private void ensure(int extra) {
+            if (length + extra > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, length + extra));
+            }
+        }
+    }
+    
+    // ------------------------------------------------------------------
+    // 转码
+    // ------------------------------------------------------------------
+    
+    private static final class Transcoder {
+        private final byte[] data;
+        private final Frame frame;
+        /** 自动颜色时在到达第一个受影响的MCU后按亮度替换，尺寸和位置不变 */
+        private BufferedImage stamp;
+        /** 按水印区域亮度取得水印的函数，不是自动颜色时为null */
+        private final IntFunction<WatermarkRenderer.WatermarkStamp> autoStamp;
+        private final int stampX;
+        private final int stampY;
+        /** 水印与图片范围的交集 */
+        private final Rectangle stampBounds;
+        private final int mcuWidth;
+        private final int mcuHeight;
+        private final int mcusPerRow;
+        private final int mcuRows;
+        /** blocks[c][b][k]：当前MCU中第c个分量第b个块的系数（之字形顺序） */
+        private final int[][][] blocks;
+        
+        Transcoder(byte[] data, Frame frame, WatermarkRenderer.WatermarkStamp stamp,
+                   IntFunction<WatermarkRenderer.WatermarkStamp> autoStamp) {
+            this.data = data;
+            this.frame = frame;
+            this.stamp = stamp.getImage();
+            this.autoStamp = autoStamp;
+            this.stampX = stamp.getX();
+            this.stampY = stamp.getY();
+            this.stampBounds = stamp.getBounds().intersection(new Rectangle(0, 0, frame.width, frame.height));
+            this.mcuWidth = 8 * frame.maxH;
+            this.mcuHeight = 8 * frame.maxV;
+            this.mcusPerRow = (frame.width + mcuWidth - 1) / mcuWidth;
+            this.mcuRows = (frame.height + mcuHeight - 1) / mcuHeight;
+            this.blocks = new int[frame.components.length][][];
+            for (int c = 0; c < frame.components.length; c++) {
+                blocks[c] = new int[frame.components[c].h * frame.components[c].v][64];
+            }
+        }
+        
+        byte[] run() throws UnsupportedLayoutException {
+            if (stampBounds.isEmpty()) {
+                return data.clone();
+            }
+            int firstRow = stampBounds.y / mcuHeight;
+            int lastRow = (stampBounds.y + stampBounds.height - 1) / mcuHeight;
+            int firstColumn = stampBounds.x / mcuWidth;
+            int lastColumn = (stampBounds.x + stampBounds.width - 1) / mcuWidth;
+            int firstAffected = firstRow * mcusPerRow + firstColumn;
+            int lastAffected = lastRow * mcusPerRow + lastColumn;
+            int totalMcus = mcusPerRow * mcuRows;
+            
+            Component[] components = frame.components;
+            BitReader reader = new BitReader(data, frame.scanStart);
+            BitWriter writer = null;
+            int[] predictors = new int[components.length];
+            int[] outputPredictors = new int[components.length];
+            int restartIndex = 0;
+            
+            for (int mcu = 0; mcu < totalMcus; mcu++) {
+                if (frame.restartInterval > 0 && mcu > 0 && mcu % frame.restartInterval == 0) {
+                    if (writer != null && mcu > lastAffected) {
+                        // 之后的重启区间都未受影响，从这个重启标记起按字节复制
+                        writer.flush();
+                        int markerPos = reader.restart();
+                        writer.copy(data, markerPos, data.length);
+                        return writer.toByteArray();
+                    }
+                    reader.restart();
+                    Arrays.fill(predictors, 0);
+                    if (writer != null) {
+                        writer.flush();
+                        writer.marker(0xD0 + (restartIndex & 7));
+                        Arrays.fill(outputPredictors, 0);
+                    }
+                    restartIndex++;
+                }
+                
+                if (mcu == firstAffected) {
+                    if (autoStamp != null) {
+                        int luminance = sampleLuminance(new BitReader(reader), predictors.clone(), mcu, lastAffected,
+                            firstRow, lastRow, firstColumn, lastColumn);
+                        stamp = autoStamp.apply(luminance).getImage();
+                    }
+                    int[] position = reader.position();
+                    writer = new BitWriter(data.length + 4096);
+                    writer.copy(data, 0, position[0]);
+                    if (position[1] > 0) {
+                        writer.put((data[position[0]] & 0xFF) >> (8 - position[1]), position[1]);
+                    }
+                    System.arraycopy(predictors, 0, outputPredictors, 0, predictors.length);
+                }
+                
+                for (int c = 0; c < components.length; c++) {
+                    for (int[] block : blocks[c]) {
+                        predictors[c] = decodeBlock(reader, components[c], block, predictors[c]);
+                    }
+                }
+                
+                if (writer != null) {
+                    int row = mcu / mcusPerRow;
+                    int column = mcu % mcusPerRow;
+                    if (row >= firstRow && row <= lastRow && column >= firstColumn && column <= lastColumn) {
+                        applyStamp(column * mcuWidth, row * mcuHeight);
+                    }
+                    for (int c = 0; c < components.length; c++) {
+                        for (int[] block : blocks[c]) {
+                            outputPredictors[c] = encodeBlock(writer, components[c], block, outputPredictors[c]);
+                        }
+                    }
+                }
+            }
+            
+            int trailer = reader.endOfScan();
+            if (trailer + 1 >= data.length || (data[trailer + 1] & 0xFF) != 0xD9) {
+                // 多次扫描或DNL标记
+                throw new UnsupportedLayoutException("扫描之后不是EOI");
+            }
+            writer.flush();
+            writer.copy(data, trailer, data.length);
+            return writer.toByteArray();
+        }
+        
+        /**
+         * 从第一个受影响的MCU向后解码到最后一个，求水印区域内亮度块的平均值
+         *
+         * <p>只用到每个亮度块的DC系数：反量化后的DC除以8就是块内像素的平均值（减去128的电平偏移）。
+         * 解码结果写在 blocks 中，正式的一遍随后会重新解码第一个MCU，覆盖这些内容。</p>
+         *
+         * @param reader 位于 firstMcu 开头的读取器副本
+         * @param predictors DC预测值的副本
+         * @return 平均亮度 (0-255)
+         */
+        private int sampleLuminance(BitReader reader, int[] predictors, int firstMcu, int lastMcu,
+                                    int firstRow, int lastRow, int firstColumn, int lastColumn)
+                throws UnsupportedLayoutException {
+            Component[] components = frame.components;
+            Component luma = components[0];
+            int blockWidth = 8 * (frame.maxH / luma.h);
+            int blockHeight = 8 * (frame.maxV / luma.v);
+            long sum = 0;
+            int count = 0;
+            for (int mcu = firstMcu; mcu <= lastMcu; mcu++) {
+                if (frame.restartInterval > 0 && mcu > firstMcu && mcu % frame.restartInterval == 0) {
+                    reader.restart();
+                    Arrays.fill(predictors, 0);
+                }
+                for (int c = 0; c < components.length; c++) {
+                    for (int[] block : blocks[c]) {
+                        predictors[c] = decodeBlock(reader, components[c], block, predictors[c]);
+                    }
+                }
+                int row = mcu / mcusPerRow;
+                int column = mcu % mcusPerRow;
+                if (row < firstRow || row > lastRow || column < firstColumn || column > lastColumn) {
+                    continue;
+                }
+                for (int b = 0; b < blocks[0].length; b++) {
+                    int x = column * mcuWidth + (b % luma.h) * blockWidth;
+                    int y = row * mcuHeight + (b / luma.h) * blockHeight;
+                    if (stampBounds.intersects(x, y, blockWidth, blockHeight)) {
+                        sum += blocks[0][b][0] * luma.quant[0];
+                        count++;
+                    }
+                }
+            }
+            if (count == 0) {
+                return 0;
+            }
+            return Math.max(0, Math.min(255, (int) (128 + sum / (8L * count))));
+        }
+        
+        private int decodeBlock(BitReader reader, Component component, int[] block, int predictor)
+                throws UnsupportedLayoutException {
+            Arrays.fill(block, 0);
+            int dc = predictor + reader.receiveExtend(reader.decode(component.dcTable));
+            block[0] = dc;
+            for (int k = 1; k < 64; ) {
+                int symbol = reader.decode(component.acTable);
+                int run = symbol >> 4;
+                int size = symbol & 0x0F;
+                if (size == 0) {
+                    if (run != 15) {
+                        break;
+                    }
+                    k += 16;
+                    continue;
+                }
+                k += run;
+                if (k > 63) {
+                    throw new UnsupportedLayoutException("AC系数越界");
+                }
+                block[k++] = reader.receiveExtend(size);
+            }
+            return dc;
+        }
+        
+        private int encodeBlock(BitWriter writer, Component component, int[] block, int predictor)
+                throws UnsupportedLayoutException {
+            int diff = block[0] - predictor;
+            int size = magnitude(diff);
+            emit(writer, component.dcTable, size);
+            if (size > 0) {
+                writer.put(diff < 0 ? diff - 1 : diff, size);
+            }
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                int value = block[k];
+                if (value == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15) {
+                    emit(writer, component.acTable, 0xF0);
+                    run -= 16;
+                }
+                size = magnitude(value);
+                emit(writer, component.acTable, (run << 4) | size);
+                writer.put(value < 0 ? value - 1 : value, size);
+                run = 0;
+            }
+            if (run > 0) {
+                emit(writer, component.acTable, 0x00);
+            }
+            return block[0];
+        }
+        
+        private static void emit(BitWriter writer, Huffman table, int symbol) throws UnsupportedLayoutException {
+            int size = table.sizes[symbol];
+            if (size == 0) {
+                // 经过优化的Huffman表可能不含新系数需要的符号
+                throw new UnsupportedLayoutException("Huffman表缺少符号");
+            }
+            writer.put(table.codes[symbol], size);
+        }
+        
+        private static int magnitude(int value) {
+            return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+        }
+        
+        /**
+         * 把水印叠加到一个MCU上，只重新量化确实被改动的块
+         *
+         * @param mcuX MCU左上角像素横坐标
+         * @param mcuY MCU左上角像素纵坐标
+         */
+        private void applyStamp(int mcuX, int mcuY) {
+            int x0 = Math.max(mcuX, stampBounds.x);
+            int y0 = Math.max(mcuY, stampBounds.y);
+            int x1 = Math.min(mcuX + mcuWidth, stampBounds.x + stampBounds.width);
+            int y1 = Math.min(mcuY + mcuHeight, stampBounds.y + stampBounds.height);
+            if (!hasCoverage(x0, y0, x1, y1)) {
+                return;
+            }
+            
+            Component[] components = frame.components;
+            int count = components.length;
+            // 各分量在本MCU内的采样平面
+            double[][] planes = new double[count][];
+            double[][] sums = new double[count][];
+            int[][] hits = new int[count][];
+            boolean[][] touched = new boolean[count][];
+            for (int c = 0; c < count; c++) {
+                Component component = components[c];
+                int planeWidth = component.h * 8;
+                double[] plane = new double[planeWidth * component.v * 8];
+                for (int b = 0; b < blocks[c].length; b++) {
+                    inverseDct(blocks[c][b], component.quant, plane, planeWidth, (b % component.h) * 8, (b / component.h) * 8);
+                }
+                planes[c] = plane;
+                sums[c] = new double[plane.length];
+                hits[c] = new int[plane.length];
+                touched[c] = new boolean[plane.length];
+            }
+            
+            int[] scaleX = new int[count];
+            int[] scaleY = new int[count];
+            for (int c = 0; c < count; c++) {
+                scaleX[c] = frame.maxH / components[c].h;
+                scaleY[c] = frame.maxV / components[c].v;
+            }
+            
+            double[] pixel = new double[count];
+            int[] index = new int[count];
+            for (int y = 0; y < mcuHeight; y++) {
+                for (int x = 0; x < mcuWidth; x++) {
+                    int px = mcuX + x;
+                    int py = mcuY + y;
+                    for (int c = 0; c < count; c++) {
+                        index[c] = (y / scaleY[c]) * components[c].h * 8 + x / scaleX[c];
+                        pixel[c] = planes[c][index[c]];
+                    }
+                    boolean changed = false;
+                    if (px >= x0 && px < x1 && py >= y0 && py < y1) {
+                        int argb = stamp.getRGB(px - stampX, py - stampY);
+                        int alpha = argb >>> 24;
+                        if (alpha != 0) {
+                            blend(pixel, argb, alpha / 255.0);
+                            changed = true;
+                        }
+                    }
+                    for (int c = 0; c < count; c++) {
+                        sums[c][index[c]] += pixel[c];
+                        hits[c][index[c]]++;
+                        touched[c][index[c]] |= changed;
+                    }
+                }
+            }
+            
+            double[] samples = new double[64];
+            for (int c = 0; c < count; c++) {
+                Component component = components[c];
+                int planeWidth = component.h * 8;
+                for (int b = 0; b < blocks[c].length; b++) {
+                    int bx = (b % component.h) * 8;
+                    int by = (b / component.h) * 8;
+                    boolean dirty = false;
+                    for (int y = 0; y < 8 && !dirty; y++) {
+                        for (int x = 0; x < 8; x++) {
+                            if (touched[c][(by + y) * planeWidth + bx + x]) {
+                                dirty = true;
+                                break;
+                            }
+                        }
+                    }
+                    if (!dirty) {
+                        continue;
+                    }
+                    for (int y = 0; y < 8; y++) {
+                        for (int x = 0; x < 8; x++) {
+                            int i = (by + y) * planeWidth + bx + x;
+                            samples[y * 8 + x] = hits[c][i] > 0 ? sums[c][i] / hits[c][i] : planes[c][i];
+                        }
+                    }
+                    forwardDct(samples, component.quant, blocks[c][b]);
+                }
+            }
+        }
+        
+        /**
+         * 区域内是否有不透明度非0的水印像素
+         */
+        private boolean hasCoverage(int x0, int y0, int x1, int y1) {
+            for (int y = y0; y < y1; y++) {
+                for (int x = x0; x < x1; x++) {
+                    if ((stamp.getRGB(x - stampX, y - stampY) >>> 24) != 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        
+        /**
+         * 在RGB空间按 SrcOver 规则混合水印像素，分量值为JFIF YCbCr（或灰度）
+         */
+        private static void blend(double[] pixel, int argb, double alpha) {
+            double sr = (argb >> 16) & 0xFF;
+            double sg = (argb >> 8) & 0xFF;
+            double sb = argb & 0xFF;
+            if (pixel.length == 1) {
+                double luma = 0.299 * sr + 0.587 * sg + 0.114 * sb;
+                pixel[0] = luma * alpha + pixel[0] * (1 - alpha);
+                return;
+            }
+            double yy = pixel[0];
+            double cb = pixel[1] - 128;
+            double cr = pixel[2] - 128;
+            double r = clamp(yy + 1.402 * cr);
+            double g = clamp(yy - 0.344136 * cb - 0.714136 * cr);
+            double b = clamp(yy + 1.772 * cb);
+            r = sr * alpha + r * (1 - alpha);
+            g = sg * alpha + g * (1 - alpha);
+            b = sb * alpha + b * (1 - alpha);
+            pixel[0] = 0.299 * r + 0.587 * g + 0.114 * b;
+            pixel[1] = -0.168736 * r - 0.331264 * g + 0.5 * b + 128;
+            pixel[2] = 0.5 * r - 0.418688 * g - 0.081312 * b + 128;
+        }
+        
+        private static double clamp(double value) {
+            return value < 0 ? 0 : (value > 255 ? 255 : value);
+        }
+        
+        /**
+         * 反量化并做二维IDCT，结果写入采样平面（已加回128电平偏移并截断到0-255）
+         */
+        private static void inverseDct(int[] coefficients, int[] quant, double[] plane, int planeWidth, int offsetX, int offsetY) {
+            double[] f = new double[64];
+            for (int k = 0; k < 64; k++) {
+                f[ZIGZAG[k]] = coefficients[k] * (double) quant[k];
+            }
+            double[] temp = new double[64];
+            for (int v = 0; v < 8; v++) {
+                for (int x = 0; x < 8; x++) {
+                    double sum = 0;
+                    for (int u = 0; u < 8; u++) {
+                        sum += COS[x][u] * f[v * 8 + u];
+                    }
+                    temp[v * 8 + x] = sum;
+                }
+            }
+            for (int x = 0; x < 8; x++) {
+                for (int y = 0; y < 8; y++) {
+                    double sum = 0;
+                    for (int v = 0; v < 8; v++) {
+                        sum += COS[y][v] * temp[v * 8 + x];
+                    }
+                    plane[(offsetY + y) * planeWidth + offsetX + x] = clamp(sum + 128);
+                }
+            }
+        }
+        
+        /**
+         * 二维DCT并按原量化表量化，结果写回之字形顺序的系数块
+         */
+        private static void forwardDct(double[] samples, int[] quant, int[] coefficients) {
+            double[] temp = new double[64];
+            for (int y = 0; y < 8; y++) {
+                for (int u = 0; u < 8; u++) {
+                    double sum = 0;
+                    for (int x = 0; x < 8; x++) {
+                        sum += COS[x][u] * (samples[y * 8 + x] - 128);
+                    }
+                    temp[y * 8 + u] = sum;
+                }
+            }
+            for (int u = 0; u < 8; u++) {
+                for (int v = 0; v < 8; v++) {
+                    double sum = 0;
+                    for (int y = 0; y < 8; y++) {
+                        sum += COS[y][v] * temp[y * 8 + u];
+                    }
+                    int k = ZIG_INDEX[v * 8 + u];
+                    int value = (int) Math.round(sum / quant[k]);
+                    // 基线JPEG的DC差值最多11位、AC系数最多10位
+                    int limit = k == 0 ? 2047 : 1023;
+                    coefficients[k] = Math.max(-limit, Math.min(limit, value));
+                }
+            }
+        }
+    }
+    
+    /** 自然顺序下标到之字形序号的映射 */
+    private static final int[] ZIG_INDEX = new int[64];
+    
+    static {
+        for (int k = 0; k < 64; k++) {
+            ZIG_INDEX[ZIGZAG[k]] = k;
+        }
+    }
+}
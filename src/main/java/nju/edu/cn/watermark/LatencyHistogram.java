@@ -0,0 +1,106 @@
+package nju.edu.cn.watermark;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 固定桶的对数延迟直方图，可被多个线程并发记录
+ *
+ * <p>每个2的幂区间再均分为8个桶，相对误差不超过12.5%，覆盖1纳秒到数百年，共 {@value #BUCKETS} 个桶。
+ * 记录只是一次数组下标计算和原子自增，不分配对象，可以放在每张图片的处理路径上。</p>
+ */
+public class LatencyHistogram {
+    
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * 记录一次耗时
+     *
+     * @param nanos 耗时（纳秒），负数按0记录
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        total.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+    
+    /**
+     * @return 记录次数
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+    
+    /**
+     * @return 所有记录的耗时之和（纳秒）
+     */
+    public long getTotalNanos() {
+        return total.get();
+    }
+    
+    /**
+     * @return 最大耗时（纳秒）
+     */
+    public long getMaxNanos() {
+        return max.get();
+    }
+    
+    /**
+     * 估算分位数，返回所在桶的上界（不超过最大值）
+     *
+     * @param quantile 0到1之间的分位，例如0.95
+     * @return 耗时（纳秒），没有记录时返回0
+     */
+    public long getPercentileNanos(double quantile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+    
+    /**
+     * 小于8的值各占一个桶；更大的值按最高位所在的2的幂区间和其后3位确定桶
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+    
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lower = (long) (SUB_BUCKETS + sub) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,103 @@
+package nju.edu.cn.watermark;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 按字节计量的内存预算，用于限制流水线中同时驻留的解码帧
+ * 
+ * <p>与按文件数量限制的队列不同，一张5000万像素的照片会占用远多于一张截图的份额。
+ * 单个请求超过总预算时按总预算计算，保证它在其他图片全部释放后仍能被接纳，即独占整个预算。</p>
+ * 
+ * <p>申请按到达顺序接纳：排在前面的大图在等待空间时，后来的小图不能插队，
+ * 否则源源不断的小图会让大图一直等不到足够的空间。预算充足时申请不会等待。</p>
+ */
+public class MemoryBudget {
+    
+    private final long capacity;
+    private long used;
+    private long nextTicket;
+    private long servingTicket;
+    private final Set<Long> abandoned = new HashSet<>();
+    
+    /**
+     * @param capacity 预算总字节数
+     */
+    public MemoryBudget(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("内存预算必须大于0: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+    
+    /**
+     * 按JVM最大堆的一定比例创建默认预算
+     */
+    public static MemoryBudget fromMaxHeap(double fraction) {
+        return new MemoryBudget((long) (Runtime.getRuntime().maxMemory() * fraction));
+    }
+    
+    /**
+     * 申请内存份额，预算不足时阻塞等待
+     * 
+     * @param bytes 申请的字节数
+     * @return 实际记账的字节数，释放时需原样传回 {@link #release(long)}
+     * @throws InterruptedException 等待期间线程被中断
+     */
+    public synchronized long acquire(long bytes) throws InterruptedException {
+        long granted = Math.min(Math.max(bytes, 0), capacity);
+        long ticket = nextTicket++;
+        try {
+            while (ticket != servingTicket || (used > 0 && used + granted > capacity)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            // 放弃排队：把自己的号码让出去，避免后面的申请永远等不到
+            abandon(ticket);
+            throw e;
+        }
+        advance();
+        used += granted;
+        return granted;
+    }
+    
+    /**
+     * 归还之前申请的份额
+     * 
+     * @param granted {@link #acquire(long)} 的返回值
+     */
+    public synchronized void release(long granted) {
+        used -= granted;
+        notifyAll();
+    }
+    
+    /**
+     * 被中断的申请离开队列。号码还没轮到时无法直接移除，记下它，轮到时跳过
+     */
+    private void abandon(long ticket) {
+        if (ticket == servingTicket) {
+            advance();
+        } else {
+            abandoned.add(ticket);
+        }
+    }
+    
+    /**
+     * 轮到下一个号码，跳过已放弃的号码，并唤醒等待者
+     */
+    private void advance() {
+        servingTicket++;
+        while (abandoned.remove(servingTicket)) {
+            servingTicket++;
+        }
+        notifyAll();
+    }
+    
+    public long getCapacity() {
+        return capacity;
+    }
+    
+    public synchronized long getUsed() {
+        return used;
+    }
+}
@@ -0,0 +1,239 @@
+package nju.edu.cn.watermark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 输出文件的目录布局，以及先写临时文件再原子改名的写出方式
+ *
+ * <p>支持四种布局：</p>
+ * <ul>
+ *   <li>平铺：全部输出放在输出目录下（之前版本的行为）</li>
+ *   <li>镜像：按源文件相对输入目录的路径建立同样的子目录</li>
+ *   <li>日期：按拍摄日期放入 {@code yyyy/MM/dd} 子目录</li>
+ *   <li>哈希：按相对路径的哈希分散到两级共 65536 个子目录，单个目录不会积累过多文件</li>
+ * </ul>
+ *
+ * <p>除镜像布局外，不同子目录中的同名文件会落到同一个输出目录。输入目录下直接存放的文件使用原名，
+ * 子目录中的文件在扩展名前加上由相对路径算出的后缀，例如 {@code IMG_0001_3fa2c19b.jpg}，不会互相覆盖。
+ * 文件名只取决于源文件的相对路径，与处理顺序无关：并行的线程、增量运行和监视模式中新增的文件
+ * 都不会占用或覆盖其他源文件的输出。</p>
+ *
+ * <p>所有输出先写到同一目录下以 {@value #TEMP_PREFIX} 开头的临时文件，写完后原子地改名为最终文件名，
+ * 并发的工作线程或中途崩溃的运行不会在最终文件名下留下写了一半的文件。</p>
+ */
+public class OutputLayout {
+    
+    /**
+     * 输出目录布局
+     */
+    public enum Mode {
+        FLAT("平铺"),
+        MIRROR("镜像源目录"),
+        DATE("按拍摄日期"),
+        HASH("哈希分片");
+        
+        private final String description;
+        
+        Mode(String description) {
+            this.description = description;
+        }
+        
+        public String getDescription() {
+            return description;
+        }
+    }
+    
+    /** 临时文件名的前缀，以点开头在多数系统上默认隐藏 */
+    static final String TEMP_PREFIX = ".wm-";
+    
+    private final Path outputDir;
+    private final Path inputRoot;
+    private final Mode mode;
+    /** 已占用的输出路径（小写，兼容不区分大小写的文件系统）到占用它的源文件相对路径 */
+    private final Map<String, String> claimedNames = new ConcurrentHashMap<>();
+    /** 已确认存在的输出子目录，避免每个文件都访问一次文件系统 */
+    private final Set<Path> createdDirs = ConcurrentHashMap.newKeySet();
+    private final AtomicLong tempCounter = new AtomicLong();
+    
+    /**
+     * @param outputDir 输出目录
+     * @param inputPath 输入文件或目录，镜像和哈希布局按相对它的路径计算
+     * @param mode 目录布局
+     */
+    public OutputLayout(File outputDir, File inputPath, Mode mode) {
+        this.outputDir = outputDir.toPath().toAbsolutePath().normalize();
+        Path input = inputPath.toPath().toAbsolutePath().normalize();
+        this.inputRoot = inputPath.isFile() ? input.getParent() : input;
+        this.mode = mode;
+        createdDirs.add(this.outputDir);
+    }
+    
+    public File getOutputDir() {
+        return outputDir.toFile();
+    }
+    
+    public Mode getMode() {
+        return mode;
+    }
+    
+    /**
+     * @return 输出路径是否取决于拍摄日期，是时必须先读出EXIF才能确定输出文件
+     */
+    public boolean needsDateTaken() {
+        return mode == Mode.DATE;
+    }
+    
+    /**
+     * 确定源文件的输出文件；同一个源文件在一次运行中应只调用一次，结果由调用方保存
+     *
+     * @param source 源文件
+     * @param dateTaken 拍摄日期（yyyy-MM-dd），只有日期布局使用
+     * @return 输出文件
+     */
+    public File resolve(File source, String dateTaken) {
+        String relative = relativePath(source);
+        if (mode == Mode.MIRROR) {
+            // 相对路径各不相同，输出路径也不会冲突
+            return outputDir.resolve(relative).toFile();
+        }
+        Path dir;
+        switch (mode) {
+            case DATE:
+                dir = dateTaken == null || dateTaken.length() != 10
+                    ? outputDir.resolve("unknown")
+                    : outputDir.resolve(dateTaken.substring(0, 4))
+                        .resolve(dateTaken.substring(5, 7))
+                        .resolve(dateTaken.substring(8, 10));
+                break;
+            case HASH:
+                String hex = hex(pathHash(relative));
+                dir = outputDir.resolve(hex.substring(0, 2)).resolve(hex.substring(2, 4));
+                break;
+            default:
+                dir = outputDir;
+                break;
+        }
+        return dir.resolve(claimName(dir, source.getName(), relative)).toFile();
+    }
+    
+    /**
+     * 多版本输出时某个版本的输出文件：输出目录下以版本名命名的子目录中，与 {@link #resolve} 结果相同的相对位置
+     *
+     * @param output {@link #resolve} 返回的输出文件
+     * @param rendition 输出版本
+     * @return 这个版本的输出文件；{@link Rendition#original()} 直接返回 output
+     */
+    public File forRendition(File output, Rendition rendition) {
+        if (rendition.getName() == null) {
+            return output;
+        }
+        return outputDir.resolve(rendition.getName()).resolve(outputDir.relativize(output.toPath())).toFile();
+    }
+    
+    /**
+     * {@link #forRendition} 的逆运算：由某个版本的输出文件得到 {@link #resolve} 的结果
+     */
+    public File fromRendition(File renditionOutput, Rendition rendition) {
+        if (rendition.getName() == null) {
+            return renditionOutput;
+        }
+        Path relative = outputDir.resolve(rendition.getName()).relativize(renditionOutput.toPath().toAbsolutePath());
+        return outputDir.resolve(relative).toFile();
+    }
+    
+    /**
+     * 在目录中为源文件占用一个文件名：子目录中的文件加上由相对路径算出的后缀，输入目录下的文件使用原名
+     */
+    private String claimName(Path dir, String name, String relative) {
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        String suffix = hex(pathHash(relative)).substring(8);
+        String candidate = relative.indexOf('/') < 0 ? name : base + "_" + suffix + extension;
+        for (int attempt = 1; ; attempt++) {
+            String key = outputDir.relativize(dir.resolve(candidate)).toString().toLowerCase(Locale.ROOT);
+            String owner = claimedNames.putIfAbsent(key, relative);
+            if (owner == null || owner.equals(relative)) {
+                return candidate;
+            }
+            // 只有后缀的哈希恰好相同，或原名本身就带着同样的后缀时才会走到这里，追加序号
+            candidate = base + "_" + suffix + "_" + attempt + extension;
+        }
+    }
+    
+    /**
+     * 准备写出输出文件：确保所在目录存在，返回同一目录下的临时文件
+     *
+     * @param target 最终的输出文件
+     * @return 临时文件，写完后交给 {@link #commit(File, File)}
+     * @throws IOException 如果无法创建输出目录
+     */
+    public File prepare(File target) throws IOException {
+        Path dir = target.toPath().getParent();
+        if (!createdDirs.contains(dir)) {
+            Files.createDirectories(dir);
+            createdDirs.add(dir);
+        }
+        // 临时文件保留原扩展名，编码器按扩展名选择格式
+        return dir.resolve(TEMP_PREFIX + tempCounter.incrementAndGet() + "-" + target.getName()).toFile();
+    }
+    
+    /**
+     * 把写完的临时文件改名为最终的输出文件，已有的同名输出被替换
+     *
+     * @param temp {@link #prepare(File)} 返回的临时文件
+     * @param target 最终的输出文件
+     * @throws IOException 如果改名失败
+     */
+    public static void commit(File temp, File target) throws IOException {
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /**
+     * 删除没有写完的临时文件
+     */
+    public static void discard(File temp) {
+        try {
+            Files.deleteIfExists(temp.toPath());
+        } catch (IOException ignored) {
+            // 留下的临时文件不影响已有的输出
+        }
+    }
+    
+    /**
+     * 源文件相对输入目录的路径，统一以 / 分隔，使哈希与平台无关
+     */
+    private String relativePath(File source) {
+        Path path = source.toPath().toAbsolutePath().normalize();
+        if (inputRoot == null || !path.startsWith(inputRoot)) {
+            return source.getName();
+        }
+        return inputRoot.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+    
+    private static long pathHash(String relative) {
+        byte[] bytes = relative.getBytes(StandardCharsets.UTF_8);
+        return ContentHash.hash(bytes, 0, bytes.length);
+    }
+    
+    private static String hex(long value) {
+        String hex = Long.toHexString(value);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+}
@@ -3,6 +3,7 @@ package nju.edu.cn.watermark;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -10,6 +11,11 @@ import java.util.List;
  */
 public class PhotoWatermarkTool {
     
+    /**
+     * 解码帧内存预算占最大堆的比例
+     */
+    private static final double DEFAULT_MEMORY_FRACTION = 0.6;
+    
     public static void main(String[] args) {
         System.out.println("=== 图片水印工具 ===");
         System.out.println("基于EXIF拍摄时间为图片添加日期水印\n");
@@ -20,25 +26,22 @@ public class PhotoWatermarkTool {
             System.exit(1);
         }
         
+        if (options.getServePort() > 0) {
+            serve(options);
+            return;
+        }
+        
         // 获取输入路径
         File inputPath = new File(options.getInputPath());
         if (!inputPath.exists()) {
             System.err.println("错误: 输入路径不存在: " + options.getInputPath());
             System.exit(1);
         }
-        
-        // 收集所有图片文件
-        List<File> imageFiles = new ArrayList<>();
-        collectImageFiles(inputPath, imageFiles);
-        
-        if (imageFiles.isEmpty()) {
-            System.out.println("在指定路径中未找到支持的图片文件。");
-            System.out.println("支持的格式: JPG, JPEG, PNG, TIFF, BMP");
-            System.exit(0);
+        if (options.isWatch() && !inputPath.isDirectory()) {
+            System.err.println("错误: 监视模式的输入路径必须是目录: " + options.getInputPath());
+            System.exit(1);
         }
         
-        System.out.println("找到 " + imageFiles.size() + " 个图片文件");
-        
         // 创建输出目录
         File outputDir = createOutputDirectory(inputPath);
         if (outputDir == null) {
@@ -46,76 +49,383 @@ public class PhotoWatermarkTool {
             System.exit(1);
         }
         
-        System.out.println("输出目录: " + outputDir.getAbsolutePath());
-        System.out.println("水印设置: 字体大小=" + options.getFontSize() + 
-                         ", 颜色=" + getColorDescription(options.getColor()) + 
-                         ", 位置=" + options.getPosition().getDescription());
-        System.out.println();
+        boolean verbose = options.getLogLevel() != ResultLog.Level.QUIET;
+        if (verbose) {
+            System.out.println("输出目录: " + outputDir.getAbsolutePath());
+            System.out.println("水印设置: 字体大小=" + options.getFontSize() + 
+                             ", 颜色=" + getColorDescription(options.getColor()) + 
+                             ", 位置=" + options.getPosition().getDescription() +
+                             ", 文本=" + options.getTemplate());
+            System.out.println("编码参数: " + options.getEncoderSettings().getDescription());
+            System.out.println("输出布局: " + options.getOutputLayout().getDescription());
+            if (options.hasRenditions()) {
+                StringBuilder descriptions = new StringBuilder();
+                for (Rendition rendition : options.getRenditions()) {
+                    descriptions.append(descriptions.length() > 0 ? "、" : "").append(rendition.getDescription());
+                }
+                System.out.println("输出版本: " + descriptions);
+            }
+            System.out.println("并行度: 每阶段 " + options.getParallelism() + " 个线程");
+        }
+        
+        if (options.getPreviewCount() > 0) {
+            preview(options, inputPath, outputDir);
+            return;
+        }
+        
+        MemoryBudget memoryBudget = createMemoryBudget(options);
+        ResultLog resultLog = openResultLog(options);
+        if (verbose) {
+            System.out.println();
+        }
         
-        // 处理每个图片文件
-        int successCount = 0;
-        int skippedCount = 0;
-        int errorCount = 0;
+        // 边遍历边处理：发现的文件直接进入流水线，输出目录本身不参与遍历
+        IncrementalManifest manifest = IncrementalManifest.load(outputDir);
+        DedupIndex dedupIndex = options.getDedupMode() == CommandLineOptions.DedupMode.OFF
+            ? null : DedupIndex.load(outputDir, DedupIndex.DEFAULT_MAX_ENTRIES);
+        OutputLayout layout = new OutputLayout(outputDir, inputPath, options.getOutputLayout());
+        RunJournal journal = options.isWatch() ? null : openJournal(outputDir, options);
+        BatchPipeline pipeline = new BatchPipeline(layout, options, memoryBudget, manifest, dedupIndex, journal,
+            resultLog);
+        PipelineMetrics metrics = pipeline.getMetrics();
+        if (options.getProgressInterval() > 0) {
+            metrics.startProgress(options.getProgressInterval(), pipeline.getStatistics());
+        }
+        FolderWatcher watcher = null;
+        if (options.isWatch()) {
+            // 先注册监视再遍历已有文件，遍历期间到达的文件不会遗漏
+            BatchPipeline.warmUp(options);
+            try {
+                watcher = new FolderWatcher(inputPath, outputDir, options.getWatchSettleMillis(), pipeline::submit,
+                    () -> saveManifestWhenIdle(pipeline, manifest, dedupIndex));
+            } catch (IOException e) {
+                System.err.println("无法监视输入目录: " + e.getMessage());
+                System.exit(1);
+            }
+            stopOnShutdown(watcher);
+        }
+        ImageFileWalker walker = new ImageFileWalker(outputDir);
+        BatchStatistics statistics;
+        boolean completed = false;
+        try {
+            try {
+                walker.walk(inputPath, pipeline::submit);
+            } catch (IOException e) {
+                System.err.println("遍历输入路径失败: " + e.getMessage());
+            }
+            if (watcher != null) {
+                System.out.println("正在监视 " + inputPath.getAbsolutePath() + "，新图片写完后自动处理，按 Ctrl+C 退出");
+                watcher.run();
+            }
+            statistics = pipeline.awaitCompletion();
+            completed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("处理被中断");
+            statistics = pipeline.getStatistics();
+        } finally {
+            pipeline.shutdown();
+            metrics.stop();
+            closeResultLog(resultLog);
+        }
         
-        for (File imageFile : imageFiles) {
+        // 没有新记录时不写文件，没有任何图片的运行才能删掉空的输出目录
+        if (manifest.hasUnsavedRecords()) {
             try {
-                ProcessResult result = processImage(imageFile, outputDir, options);
-                switch (result) {
-                    case SUCCESS:
-                        successCount++;
-                        System.out.println("✓ " + imageFile.getName() + " - 处理成功");
-                        break;
-                    case SKIPPED_NO_EXIF:
-                        skippedCount++;
-                        System.out.println("⚠ " + imageFile.getName() + " - 跳过（无EXIF拍摄时间）");
-                        break;
-                    case ERROR:
-                        errorCount++;
-                        break;
-                }
-            } catch (Exception e) {
-                errorCount++;
-                System.err.println("✗ " + imageFile.getName() + " - 处理失败: " + e.getMessage());
+                manifest.save();
+            } catch (IOException e) {
+                System.err.println("保存增量清单失败: " + e.getMessage());
+                completed = false;
             }
         }
+        if (dedupIndex != null && dedupIndex.hasUnsavedChanges()) {
+            saveDedupIndex(dedupIndex);
+        }
+        closeJournal(journal, completed);
         
-        // 打印处理结果统计
-        System.out.println("\n=== 处理完成 ===");
-        System.out.println("总计: " + imageFiles.size() + " 个文件");
-        System.out.println("成功: " + successCount + " 个");
-        System.out.println("跳过: " + skippedCount + " 个");
-        System.out.println("失败: " + errorCount + " 个");
+        int discovered = statistics.getDiscoveredCount();
+        if (discovered == 0 && !options.isWatch()) {
+            // 没有任何图片时不留下空的输出目录
+            outputDir.delete();
+            System.out.println("在指定路径中未找到支持的图片文件。");
+            System.out.println("支持的格式: JPG, JPEG, PNG, TIFF, BMP");
+            System.exit(0);
+        }
+        if (verbose) {
+            printSummary(statistics, metrics);
+        }
         
-        if (successCount > 0) {
+        // 运行报告与输出目录并列，不混入输出的图片
+        File reportFile = new File(outputDir.getParentFile(), outputDir.getName() + "_report.json");
+        try {
+            metrics.writeReport(reportFile, inputPath, outputDir, options.getParallelism(), statistics);
+            if (verbose) {
+                System.out.println("运行报告: " + reportFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            System.err.println("写入运行报告失败: " + e.getMessage());
+        }
+        
+        if (verbose && statistics.getSuccessCount() > 0) {
             System.out.println("\n已处理的图片保存在: " + outputDir.getAbsolutePath());
         }
     }
     
     /**
-     * 处理结果枚举
+     * 打印处理结果统计
      */
-    private enum ProcessResult {
-        SUCCESS,
-        SKIPPED_NO_EXIF,
-        ERROR
+    private static void printSummary(BatchStatistics statistics, PipelineMetrics metrics) {
+        int successCount = statistics.getSuccessCount();
+        System.out.println("\n=== 处理完成 ===");
+        System.out.println("总计: " + statistics.getDiscoveredCount() + " 个文件"
+            + (statistics.getResumedCount() > 0
+                ? "（其中 " + statistics.getResumedCount() + " 个已在上次中断的运行中处理）" : ""));
+        System.out.println("成功: " + successCount + " 个"
+            + (statistics.getDeduplicatedCount() > 0
+                ? "（其中 " + statistics.getDeduplicatedCount() + " 个与已处理的图片内容相同，直接复用输出）" : ""));
+        int fastRejections = statistics.getHeaderProbeSkippedCount();
+        System.out.println("跳过: " + statistics.getSkippedCount() + " 个"
+            + (fastRejections > 0 ? "（其中 " + fastRejections + " 个仅凭文件头判定无拍摄日期）" : ""));
+        if (statistics.getUpToDateCount() > 0) {
+            System.out.println("已是最新: " + statistics.getUpToDateCount() + " 个");
+        }
+        System.out.println("失败: " + statistics.getErrorCount() + " 个");
+        GlyphSpriteCache glyphCache = GlyphSpriteCache.shared();
+        if (glyphCache.getHitCount() + glyphCache.getMissCount() > 0) {
+            System.out.println("水印缓存: 命中 " + glyphCache.getHitCount() + " 次，未命中 " + glyphCache.getMissCount() + " 次");
+        }
+        System.out.println(String.format("耗时: %.1f 秒，%.1f 张/秒，堆峰值 %dMB",
+            metrics.getElapsedSeconds(),
+            statistics.getProcessedSuccessCount() / Math.max(metrics.getElapsedSeconds(), 1e-9),
+            metrics.getPeakHeapBytes() / (1024 * 1024)));
+        for (String line : metrics.formatStageLines()) {
+            System.out.println("  " + line);
+        }
+    }
+    
+    /**
+     * 预览模式：均匀抽取图片生成联系表，写在输出目录中，不处理其余图片
+     */
+    private static void preview(CommandLineOptions options, File inputPath, File outputDir) {
+        long start = System.nanoTime();
+        List<File> files = new ArrayList<>();
+        try {
+            new ImageFileWalker(outputDir).walk(inputPath, (file, attributes) -> files.add(file));
+        } catch (IOException e) {
+            System.err.println("遍历输入路径失败: " + e.getMessage());
+        }
+        if (files.isEmpty()) {
+            outputDir.delete();
+            System.out.println("在指定路径中未找到支持的图片文件。");
+            System.out.println("支持的格式: JPG, JPEG, PNG, TIFF, BMP");
+            return;
+        }
+        // 按路径排序，同一目录多次预览抽中的图片相同
+        Collections.sort(files);
+        List<File> samples = ContactSheet.sample(files, options.getPreviewCount());
+        System.out.println("预览: 从 " + files.size() + " 个图片中抽取 " + samples.size() + " 个\n");
+        
+        ContactSheet sheet;
+        try {
+            sheet = ContactSheet.create(samples, options);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("处理被中断");
+            return;
+        }
+        File sheetFile = new File(outputDir, outputDir.getName() + "_preview.jpg");
+        try {
+            WatermarkRenderer.writeImage(sheet.getImage(), sheetFile, options.getEncoderSettings());
+        } catch (IOException e) {
+            System.err.println("写入联系表失败: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("联系表: " + sheetFile.getAbsolutePath());
+        if (sheet.getSkippedCount() > 0) {
+            System.out.println("其中 " + sheet.getSkippedCount() + " 个没有EXIF拍摄时间，正式处理时将跳过");
+        }
+        if (sheet.getErrorCount() > 0) {
+            System.out.println("其中 " + sheet.getErrorCount() + " 个无法读取");
+        }
+        System.out.println(String.format("耗时: %.1f 秒", (System.nanoTime() - start) / 1e9));
+    }
+    
+    /**
+     * 按命令行选项创建解码帧的内存预算，并打印预算与最大堆
+     */
+    private static MemoryBudget createMemoryBudget(CommandLineOptions options) {
+        MemoryBudget memoryBudget = options.getMaxMemory() > 0
+            ? new MemoryBudget(options.getMaxMemory())
+            : MemoryBudget.fromMaxHeap(DEFAULT_MEMORY_FRACTION);
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        if (options.getLogLevel() != ResultLog.Level.QUIET) {
+            System.out.println("内存预算: " + (memoryBudget.getCapacity() >> 20) + "MB（最大堆 " + (maxHeap >> 20) + "MB）");
+        }
+        if (memoryBudget.getCapacity() > maxHeap) {
+            System.err.println("警告: 内存预算超过JVM最大堆，可能发生内存不足，可用 -Xmx 增大堆");
+        }
+        return memoryBudget;
+    }
+    
+    /**
+     * HTTP服务模式：服务线程不是守护线程，主线程返回后继续运行，按 Ctrl+C 停止并打印汇总
+     */
+    private static void serve(CommandLineOptions options) {
+        System.out.println("默认水印设置: 字体大小=" + options.getFontSize() +
+                         ", 颜色=" + getColorDescription(options.getColor()) +
+                         ", 位置=" + options.getPosition().getDescription() +
+                         ", 文本=" + options.getTemplate());
+        System.out.println("编码参数: " + options.getEncoderSettings().getDescription());
+        System.out.println("编码线程: " + options.getParallelism() + " 个");
+        MemoryBudget memoryBudget = createMemoryBudget(options);
+        WatermarkServer server;
+        try {
+            server = new WatermarkServer(options, memoryBudget);
+        } catch (IOException e) {
+            System.err.println("无法启动服务: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        BatchPipeline.warmUp(options);
+        server.start();
+        System.out.println("服务已启动: http://" + options.getBindAddress() + ":" + server.getAddress().getPort()
+            + "/watermark，按 Ctrl+C 停止");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(2);
+            BatchStatistics statistics = server.getStatistics();
+            PipelineMetrics metrics = server.getMetrics();
+            System.out.println("\n=== 服务已停止 ===");
+            System.out.println("请求: " + statistics.getDiscoveredCount() + " 个，成功 " + statistics.getSuccessCount()
+                + " 个，无EXIF " + statistics.getSkippedCount() + " 个，失败 " + statistics.getErrorCount() + " 个");
+            if (server.getBatchCount() > 0) {
+                System.out.println(String.format("批量编码: %d 批，平均每批 %.1f 张",
+                    server.getBatchCount(), (double) server.getBatchedImageCount() / server.getBatchCount()));
+            }
+            for (String line : metrics.formatStageLines()) {
+                System.out.println("  " + line);
+            }
+        }, "watermark-shutdown"));
     }
     
     /**
-     * 递归收集所有图片文件
+     * 监视模式下按 Ctrl+C 时停止监视，等主线程处理完已提交的文件、打印汇总之后JVM才退出
      */
-    private static void collectImageFiles(File path, List<File> imageFiles) {
-        if (path.isFile()) {
-            if (ExifReader.isSupportedImageFile(path)) {
-                imageFiles.add(path);
+    private static void stopOnShutdown(FolderWatcher watcher) {
+        Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                watcher.close();
+                mainThread.join();
+            } catch (IOException | InterruptedException ignored) {
+                // 正在退出，无需处理
             }
-        } else if (path.isDirectory()) {
-            File[] files = path.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    collectImageFiles(file, imageFiles);
-                }
+        }, "watermark-shutdown"));
+    }
+    
+    /**
+     * 监视模式下空闲时保存增量清单和去重索引，常驻进程被强行终止时也不会丢失太多记录
+     */
+    private static void saveManifestWhenIdle(BatchPipeline pipeline, IncrementalManifest manifest,
+                                             DedupIndex dedupIndex) {
+        if (!pipeline.isIdle()) {
+            return;
+        }
+        if (manifest.hasUnsavedRecords()) {
+            try {
+                manifest.save();
+            } catch (IOException e) {
+                System.err.println("保存增量清单失败: " + e.getMessage());
             }
         }
+        if (dedupIndex != null && dedupIndex.hasUnsavedChanges()) {
+            saveDedupIndex(dedupIndex);
+        }
+    }
+    
+    /**
+     * 按命令行选项打开逐文件结果的输出
+     */
+    private static ResultLog openResultLog(CommandLineOptions options) {
+        File recordFile = options.getResultLogPath() == null ? null : new File(options.getResultLogPath());
+        try {
+            return ResultLog.open(options.getLogLevel(), recordFile);
+        } catch (IOException e) {
+            System.err.println("无法创建结果记录文件: " + e.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+    
+    /**
+     * 输出剩余的状态行并关闭结果记录文件，之后才能打印汇总
+     */
+    private static void closeResultLog(ResultLog resultLog) {
+        try {
+            resultLog.close();
+        } catch (IOException e) {
+            System.err.println("写入结果记录文件失败: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 打开运行日志；指定 --resume 时沿用中断的运行的记录，否则重新开始
+     */
+    private static RunJournal openJournal(File outputDir, CommandLineOptions options) {
+        // 输出布局不同时输出位置不同，一并计入
+        long settings = 31 * options.getRenderFingerprint() + options.getOutputLayout().ordinal();
+        if (!options.isResume() && RunJournal.exists(outputDir)) {
+            System.out.println("提示: 上次运行没有正常结束，可使用 --resume 跳过其中已处理的文件");
+        }
+        try {
+            RunJournal journal = RunJournal.open(outputDir, settings, options.isResume());
+            if (options.isResume()) {
+                System.out.println(journal.getResumedCount() > 0
+                    ? "从中断的运行恢复: " + journal.getResumedCount() + " 个文件已处理，将直接跳过"
+                    : "没有可恢复的运行日志，处理全部图片");
+            }
+            return journal;
+        } catch (IOException e) {
+            System.err.println("无法创建运行日志，本次运行被中断后将无法恢复: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * 提交并关闭运行日志；运行正常结束、增量清单已保存时删除日志，否则保留供 --resume 使用
+     */
+    private static void closeJournal(RunJournal journal, boolean completed) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+            if (completed) {
+                journal.delete();
+            }
+        } catch (IOException e) {
+            System.err.println("写入运行日志失败: " + e.getMessage());
+        }
+    }
+    
+    private static void saveDedupIndex(DedupIndex dedupIndex) {
+        if (dedupIndex == null) {
+            return;
+        }
+        try {
+            dedupIndex.save();
+        } catch (IOException e) {
+            System.err.println("保存去重索引失败: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 处理结果枚举
+     */
+    public enum ProcessResult {
+        SUCCESS,
+        SKIPPED_NO_EXIF,
+        SKIPPED_UP_TO_DATE,
+        ERROR
     }
     
     /**
@@ -142,42 +452,11 @@ public class PhotoWatermarkTool {
         return outputDir;
     }
     
-    /**
-     * 处理单个图片文件
-     */
-    private static ProcessResult processImage(File imageFile, File outputDir, CommandLineOptions options) {
-        try {
-            // 读取EXIF拍摄时间
-            String dateTaken = ExifReader.getDateTaken(imageFile);
-            if (dateTaken == null) {
-                return ProcessResult.SKIPPED_NO_EXIF;
-            }
-            
-            // 创建输出文件
-            File outputFile = new File(outputDir, imageFile.getName());
-            
-            // 添加水印
-            WatermarkRenderer.addWatermark(
-                imageFile,
-                outputFile,
-                dateTaken,
-                options.getFontSize(),
-                options.getColor(),
-                options.getPosition()
-            );
-            
-            return ProcessResult.SUCCESS;
-            
-        } catch (IOException e) {
-            System.err.println("✗ " + imageFile.getName() + " - 处理失败: " + e.getMessage());
-            return ProcessResult.ERROR;
-        }
-    }
-    
     /**
      * 获取颜色描述
      */
     private static String getColorDescription(java.awt.Color color) {
+        if (WatermarkRenderer.isAutoColor(color)) return "自动";
         if (color.equals(java.awt.Color.WHITE)) return "白色";
         if (color.equals(java.awt.Color.BLACK)) return "黑色";
         if (color.equals(java.awt.Color.RED)) return "红色";
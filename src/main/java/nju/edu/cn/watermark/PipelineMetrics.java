@@ -0,0 +1,347 @@
+package nju.edu.cn.watermark;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 流水线运行指标：各阶段耗时直方图、读写字节数、吞吐量和堆内存峰值
+ *
+ * <p>记录接口只做计数，不分配对象；汇总、打印和写JSON报告只在运行结束或定时输出进度时进行。
+ * 堆峰值取每次GC前的堆占用和运行结束时的占用中的最大值，不需要额外的采样线程。</p>
+ */
+public class PipelineMetrics {
+    
+    /**
+     * 计时的处理阶段
+     */
+    public enum Stage {
+        EXIF("exif", "EXIF"),
+        DEDUP("dedup", "去重"),
+        DECODE("decode", "解码"),
+        JPEG_BLOCKS("jpegBlocks", "JPEG按块"),
+        STREAMING("streaming", "分条流式"),
+        RENDER("render", "绘制"),
+        ENCODE("encode", "编码");
+        
+        private final String key;
+        private final String description;
+        
+        Stage(String key, String description) {
+            this.key = key;
+            this.description = description;
+        }
+        
+        public String getKey() {
+            return key;
+        }
+        
+        public String getDescription() {
+            return description;
+        }
+    }
+    
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final AtomicLong peakHeapBytes = new AtomicLong();
+    private final Instant startTime = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private long endNanos;
+    
+    /** 堆内存池的名称，GC通知中的Metaspace、CodeHeap等非堆内存池不计入堆峰值 */
+    private final Set<String> heapPools = new HashSet<>();
+    private final List<NotificationEmitter> gcEmitters = new ArrayList<>();
+    private final NotificationListener gcListener = this::onGarbageCollection;
+    private ScheduledExecutorService progressTicker;
+    
+    public PipelineMetrics() {
+        for (Stage stage : Stage.values()) {
+            histograms[stage.ordinal()] = new LatencyHistogram();
+        }
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool.getName());
+            }
+        }
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(gcListener, null, null);
+                gcEmitters.add(emitter);
+            }
+        }
+    }
+    
+    /**
+     * 记录一个阶段从 startNanos 到现在的耗时
+     *
+     * @param stage 阶段
+     * @param startNanos 阶段开始时 {@link System#nanoTime()} 的值
+     */
+    public void recordSince(Stage stage, long startNanos) {
+        record(stage, System.nanoTime() - startNanos);
+    }
+    
+    /**
+     * 记录一个阶段的耗时
+     *
+     * @param stage 阶段
+     * @param nanos 耗时（纳秒）
+     */
+    public void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+    
+    public void addBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+    
+    public void addBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+    
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+    
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+    
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+    
+    /**
+     * @return 观察到的堆占用峰值（字节）
+     */
+    public long getPeakHeapBytes() {
+        samplePeakHeap(currentHeapBytes());
+        return peakHeapBytes.get();
+    }
+    
+    /**
+     * @return 从创建到 {@link #stop()}（未停止时为现在）经过的秒数
+     */
+    public double getElapsedSeconds() {
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        return (end - startNanos) / 1e9;
+    }
+    
+    /**
+     * 每隔固定秒数在标准输出打印一行进度
+     *
+     * @param intervalSeconds 间隔秒数
+     * @param statistics 结果统计
+     */
+    public synchronized void startProgress(int intervalSeconds, BatchStatistics statistics) {
+        progressTicker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "watermark-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progressTicker.scheduleAtFixedRate(() -> System.out.println(formatProgressLine(statistics)),
+            intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * 停止计时、进度输出和GC监听
+     */
+    public synchronized void stop() {
+        if (endNanos == 0) {
+            endNanos = System.nanoTime();
+        }
+        if (progressTicker != null) {
+            progressTicker.shutdownNow();
+            progressTicker = null;
+        }
+        for (NotificationEmitter emitter : gcEmitters) {
+            try {
+                emitter.removeNotificationListener(gcListener);
+            } catch (Exception ignored) {
+                // 监听器已经不在，无需处理
+            }
+        }
+        gcEmitters.clear();
+        samplePeakHeap(currentHeapBytes());
+    }
+    
+    /**
+     * 进度行，例如 "[进度] 已处理 120/3400，35.2 张/秒，堆 812MB"
+     */
+    String formatProgressLine(BatchStatistics statistics) {
+        return String.format(Locale.ROOT, "[进度] 已处理 %d/%d，%.1f 张/秒，堆 %dMB",
+            statistics.getTotalCount(), statistics.getDiscoveredCount(),
+            (statistics.getTotalCount() - statistics.getResumedCount()) / Math.max(getElapsedSeconds(), 1e-9),
+            currentHeapBytes() / (1024 * 1024));
+    }
+    
+    /**
+     * 各阶段耗时摘要，每个有记录的阶段一行
+     */
+    List<String> formatStageLines() {
+        List<String> lines = new ArrayList<>();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = getHistogram(stage);
+            long count = histogram.getCount();
+            if (count == 0) {
+                continue;
+            }
+            lines.add(String.format(Locale.ROOT, "%s: %d 次，p50 %.1fms，p95 %.1fms，p99 %.1fms，最大 %.1fms",
+                stage.getDescription(), count,
+                toMillis(histogram.getPercentileNanos(0.50)),
+                toMillis(histogram.getPercentileNanos(0.95)),
+                toMillis(histogram.getPercentileNanos(0.99)),
+                toMillis(histogram.getMaxNanos())));
+        }
+        return lines;
+    }
+    
+    /**
+     * 写出JSON格式的运行报告
+     *
+     * @param reportFile 报告文件
+     * @param inputPath 输入路径
+     * @param outputDir 输出目录
+     * @param parallelism 每阶段线程数
+     * @param statistics 结果统计
+     * @throws IOException 如果写入失败
+     */
+    public void writeReport(File reportFile, File inputPath, File outputDir, int parallelism,
+                            BatchStatistics statistics) throws IOException {
+        double elapsed = getElapsedSeconds();
+        StringBuilder json = new StringBuilder(2048);
+        json.append("{\n");
+        json.append("  \"inputPath\": ").append(quote(inputPath.getAbsolutePath())).append(",\n");
+        json.append("  \"outputDir\": ").append(quote(outputDir.getAbsolutePath())).append(",\n");
+        json.append("  \"startTime\": ").append(quote(startTime.toString())).append(",\n");
+        json.append("  \"elapsedSeconds\": ").append(format(elapsed)).append(",\n");
+        json.append("  \"threadsPerStage\": ").append(parallelism).append(",\n");
+        json.append("  \"files\": {\n");
+        json.append("    \"discovered\": ").append(statistics.getDiscoveredCount()).append(",\n");
+        json.append("    \"success\": ").append(statistics.getSuccessCount()).append(",\n");
+        json.append("    \"deduplicated\": ").append(statistics.getDeduplicatedCount()).append(",\n");
+        json.append("    \"resumed\": ").append(statistics.getResumedCount()).append(",\n");
+        json.append("    \"skippedNoExif\": ").append(statistics.getSkippedCount()).append(",\n");
+        json.append("    \"skippedByHeaderProbe\": ").append(statistics.getHeaderProbeSkippedCount()).append(",\n");
+        json.append("    \"skippedUpToDate\": ").append(statistics.getUpToDateCount()).append(",\n");
+        json.append("    \"failed\": ").append(statistics.getErrorCount()).append("\n");
+        json.append("  },\n");
+        json.append("  \"imagesPerSecond\": ").append(format(statistics.getProcessedSuccessCount() / Math.max(elapsed, 1e-9))).append(",\n");
+        json.append("  \"bytesRead\": ").append(getBytesRead()).append(",\n");
+        json.append("  \"bytesWritten\": ").append(getBytesWritten()).append(",\n");
+        json.append("  \"peakHeapBytes\": ").append(getPeakHeapBytes()).append(",\n");
+        json.append("  \"maxHeapBytes\": ").append(Runtime.getRuntime().maxMemory()).append(",\n");
+        json.append("  \"stages\": {");
+        Stage[] stages = Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            LatencyHistogram histogram = getHistogram(stages[i]);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    ").append(quote(stages[i].getKey())).append(": {");
+            json.append("\"count\": ").append(histogram.getCount());
+            json.append(", \"totalMs\": ").append(format(toMillis(histogram.getTotalNanos())));
+            json.append(", \"p50Ms\": ").append(format(toMillis(histogram.getPercentileNanos(0.50))));
+            json.append(", \"p95Ms\": ").append(format(toMillis(histogram.getPercentileNanos(0.95))));
+            json.append(", \"p99Ms\": ").append(format(toMillis(histogram.getPercentileNanos(0.99))));
+            json.append(", \"maxMs\": ").append(format(toMillis(histogram.getMaxNanos())));
+            json.append("}");
+        }
+        json.append("\n  }\n");
+        json.append("}\n");
+        Files.write(reportFile.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private void onGarbageCollection(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info =
+            GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        long used = 0;
+        for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageBeforeGc().entrySet()) {
+            if (heapPools.contains(pool.getKey())) {
+                used += pool.getValue().getUsed();
+            }
+        }
+        samplePeakHeap(used);
+    }
+    
+    private void samplePeakHeap(long used) {
+        long current = peakHeapBytes.get();
+        while (used > current && !peakHeapBytes.compareAndSet(current, used)) {
+            current = peakHeapBytes.get();
+        }
+    }
+    
+    private static long currentHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+    
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+    
+    /**
+     * 转为JSON字符串字面量
+     */
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,254 @@
+package nju.edu.cn.watermark;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 一种输出版本：名称（输出子目录）、长边上限和水印字体大小
+ *
+ * <p>同一张图片的多个版本共用一次解码。缩小的版本从解码帧逐级减半缩放（每一步双线性插值），
+ * 比一步缩到目标尺寸清晰，也比高质量的一步缩放快得多。没有指定字体大小的缩小版本按自身尺寸确定字号，
+ * 缩略图上的水印不会大到盖住画面，也不会小到看不清。</p>
+ *
+ * <p>命令行写法为 {@code 名称[:长边[:字体大小]]}，多个版本以逗号分隔，例如
+ * {@code full,web:2048,thumb:320:12}；长边为空或0表示保持原尺寸。
+ * 也可以写成 {@code @文件}，从文件中每行读取一个版本，{@code #} 开头的行是注释。</p>
+ */
+public final class Rendition {
+    
+    /** 按尺寸确定字号时，字号与短边的比例 */
+    private static final double DERIVED_FONT_RATIO = 1.0 / 40;
+    private static final int MIN_DERIVED_FONT_SIZE = 10;
+    private static final int MAX_FONT_SIZE = 200;
+    
+    private static final Rendition ORIGINAL = new Rendition(null, 0, 0);
+    
+    private final String name;
+    private final int maxEdge;
+    private final int fontSize;
+    
+    private Rendition(String name, int maxEdge, int fontSize) {
+        this.name = name;
+        this.maxEdge = maxEdge;
+        this.fontSize = fontSize;
+    }
+    
+    /**
+     * @return 未指定版本时的唯一版本：原尺寸，直接写在输出目录下，使用命令行的字体大小
+     */
+    public static Rendition original() {
+        return ORIGINAL;
+    }
+    
+    /**
+     * 解析版本列表
+     *
+     * @param value 逗号分隔的版本，或 {@code @文件}
+     * @return 版本列表
+     * @throws IOException 如果版本文件无法读取
+     * @throws IllegalArgumentException 如果写法无效或名称重复
+     */
+    public static List<Rendition> parseList(String value) throws IOException {
+        List<String> specs = new ArrayList<>();
+        if (value.startsWith("@")) {
+            Path file = Paths.get(value.substring(1));
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String trimmed = line.trim();
+                if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                    specs.add(trimmed);
+                }
+            }
+        } else {
+            for (String spec : value.split(",")) {
+                if (!spec.trim().isEmpty()) {
+                    specs.add(spec.trim());
+                }
+            }
+        }
+        if (specs.isEmpty()) {
+            throw new IllegalArgumentException("没有指定任何输出版本");
+        }
+        List<Rendition> renditions = new ArrayList<>(specs.size());
+        Set<String> names = new HashSet<>();
+        for (String spec : specs) {
+            Rendition rendition = parse(spec);
+            if (!names.add(rendition.name.toLowerCase())) {
+                throw new IllegalArgumentException("输出版本名称重复: " + rendition.name);
+            }
+            renditions.add(rendition);
+        }
+        return Collections.unmodifiableList(renditions);
+    }
+    
+    /**
+     * 解析单个版本，写法为 {@code 名称[:长边[:字体大小]]}
+     *
+     * @throws IllegalArgumentException 如果写法无效
+     */
+    static Rendition parse(String spec) {
+        String[] parts = spec.split(":", -1);
+        String name = parts[0].trim();
+        if (parts.length > 3 || !name.matches("[A-Za-z0-9_-]+")) {
+            throw new IllegalArgumentException("无效的输出版本: " + spec + "（写法: 名称[:长边[:字体大小]]，名称只能包含字母、数字、_ 和 -）");
+        }
+        int maxEdge = parts.length > 1 ? parseNumber(parts[1], spec) : 0;
+        int fontSize = parts.length > 2 ? parseNumber(parts[2], spec) : 0;
+        if (fontSize > MAX_FONT_SIZE) {
+            throw new IllegalArgumentException("输出版本的字体大小必须在1-" + MAX_FONT_SIZE + "之间: " + spec);
+        }
+        return new Rendition(name, maxEdge, fontSize);
+    }
+    
+    private static int parseNumber(String value, String spec) {
+        if (value.trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            int number = Integer.parseInt(value.trim());
+            if (number < 0) {
+                throw new IllegalArgumentException("输出版本的尺寸和字体大小不能为负数: " + spec);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("无效的输出版本: " + spec);
+        }
+    }
+    
+    /**
+     * @return 版本名称，也是输出子目录名；{@link #original()} 为null，直接写在输出目录下
+     */
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * @return 长边上限（像素），0表示保持原尺寸
+     */
+    public int getMaxEdge() {
+        return maxEdge;
+    }
+    
+    /**
+     * @param width 源图片宽度
+     * @param height 源图片高度
+     * @return 该尺寸的源图片在这个版本中是否需要缩小
+     */
+    public boolean isScaled(int width, int height) {
+        return maxEdge > 0 && Math.max(width, height) > maxEdge;
+    }
+    
+    /**
+     * 这个版本的水印字体大小：指定了就用指定的；原尺寸版本用命令行的字体大小；
+     * 限制了长边的版本按输出的短边确定
+     *
+     * @param width 输出宽度
+     * @param height 输出高度
+     * @param defaultFontSize 命令行指定的字体大小
+     * @return 字体大小
+     */
+    public int fontSizeFor(int width, int height, int defaultFontSize) {
+        if (fontSize > 0) {
+            return fontSize;
+        }
+        if (maxEdge == 0) {
+            return defaultFontSize;
+        }
+        long derived = Math.round(Math.min(width, height) * DERIVED_FONT_RATIO);
+        return (int) Math.max(MIN_DERIVED_FONT_SIZE, Math.min(MAX_FONT_SIZE, derived));
+    }
+    
+    /**
+     * 估算生成各版本额外占用的内存（不含解码帧本身）
+     *
+     * <p>各缩小版本的结果在编码完成前同时驻留，每个最多 长边² × 4 字节；缩放过程中最大的临时副本
+     * 是解码帧第一次减半的结果，不超过解码帧的一半。多个不缩放的版本不能在同一帧上各画一次水印，
+     * 第一个之外的每个都复制一份整帧。</p>
+     *
+     * @param renditions 输出版本
+     * @param decodedBytes 解码帧的估算大小
+     * @return 额外占用的字节数
+     */
+    public static long estimateFootprint(List<Rendition> renditions, long decodedBytes) {
+        long total = 0;
+        int unscaled = 0;
+        for (Rendition rendition : renditions) {
+            if (rendition.maxEdge == 0) {
+                unscaled++;
+            } else {
+                total += (long) rendition.maxEdge * rendition.maxEdge * 4;
+            }
+        }
+        long copies = Math.max(0, unscaled - 1) * decodedBytes;
+        return (total == 0 ? 0 : total + decodedBytes / 2) + copies;
+    }
+    
+    /**
+     * 参与渲染设置指纹的值，版本不同时增量清单和去重索引不会误用之前的输出
+     */
+    long fingerprint() {
+        long hash = name == null ? 0 : name.hashCode();
+        hash = 31 * hash + maxEdge;
+        return 31 * hash + fontSize;
+    }
+    
+    /**
+     * 逐级减半缩小到长边不超过 {@link #getMaxEdge()}
+     *
+     * <p>每一步用双线性插值把宽高各缩小一半，最后一步缩到目标尺寸；源图片不被修改。
+     * 带透明通道的图片保留透明通道，其他图片缩放为 TYPE_INT_RGB，之后绘制水印不需要再转换。</p>
+     *
+     * @param source 解码帧
+     * @return 缩小后的新图片
+     */
+    public BufferedImage downscale(BufferedImage source) {
+        return downscale(source, maxEdge);
+    }
+    
+    /**
+     * 逐级减半缩小到长边不超过指定值，做法同 {@link #downscale(BufferedImage)}
+     *
+     * @param source 源图片
+     * @param maxEdge 长边上限（像素），须小于源图片的长边
+     * @return 缩小后的新图片
+     */
+    static BufferedImage downscale(BufferedImage source, int maxEdge) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        double scale = (double) maxEdge / Math.max(width, height);
+        int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(height * scale));
+        int type = source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = source;
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            BufferedImage next = new BufferedImage(width, height, type);
+            Graphics2D g2d = next.createGraphics();
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2d.drawImage(current, 0, 0, width, height, null);
+            g2d.dispose();
+            current = next;
+        } while (width != targetWidth || height != targetHeight);
+        return current;
+    }
+    
+    /**
+     * @return 版本的说明，例如 "web（长边2048，字体自动）"
+     */
+    public String getDescription() {
+        return (name == null ? "原图" : name)
+            + "（" + (maxEdge == 0 ? "原尺寸" : "长边" + maxEdge)
+            + "，字体" + (fontSize > 0 ? String.valueOf(fontSize) : maxEdge == 0 ? "同 -s" : "自动") + "）";
+    }
+}
@@ -0,0 +1,371 @@
+package nju.edu.cn.watermark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 逐文件处理结果的异步输出：控制台状态行，以及可选的CSV/JSONL结果文件
+ *
+ * <p>工作线程只把结果追加到内存中的列表，不格式化字符串，也不竞争 {@code System.out} 的锁；
+ * 后台线程每隔 {@value #FLUSH_INTERVAL_MILLIS} 毫秒把积累的结果一次格式化，控制台和结果文件各写一次。
+ * 积压超过 {@value #MAX_PENDING} 条时工作线程短暂等待，输出跟不上时不会无限占用内存。</p>
+ *
+ * <p>控制台输出分三级：安静（只输出失败的文件）、汇总（同安静，另外打印最后的汇总）、逐文件（每个文件一行，默认）。
+ * 结果文件按扩展名选择格式，每个文件一条记录：源路径、结果、拍摄日期、各阶段耗时、写出字节数和说明。
+ * 汇总信息要在 {@link #close()} 之后打印，保证它出现在所有状态行之后。</p>
+ */
+public class ResultLog {
+    
+    /**
+     * 控制台输出级别
+     */
+    public enum Level {
+        QUIET("安静"),
+        SUMMARY("只输出汇总"),
+        FILE("逐文件");
+        
+        private final String description;
+        
+        Level(String description) {
+            this.description = description;
+        }
+        
+        public String getDescription() {
+            return description;
+        }
+    }
+    
+    private static final long FLUSH_INTERVAL_MILLIS = 100;
+    private static final int MAX_PENDING = 16384;
+    private static final PipelineMetrics.Stage[] STAGES = PipelineMetrics.Stage.values();
+    
+    private final Level level;
+    private final BufferedWriter recordWriter;
+    private final boolean jsonLines;
+    
+    /** 工作线程追加结果的列表，到达刷新间隔时与 spare 交换 */
+    private List<Entry> active = new ArrayList<>();
+    private List<Entry> spare = new ArrayList<>();
+    private boolean closed;
+    private IOException failure;
+    private final Thread writer;
+    
+    private ResultLog(Level level, BufferedWriter recordWriter, boolean jsonLines) {
+        this.level = level;
+        this.recordWriter = recordWriter;
+        this.jsonLines = jsonLines;
+        this.writer = new Thread(this::writeLoop, "watermark-result-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+    
+    /**
+     * 打开结果输出
+     *
+     * @param level 控制台输出级别
+     * @param recordFile 结果文件，扩展名为 .csv 或 .jsonl；为null时不写
+     * @return 结果输出
+     * @throws IOException 如果结果文件无法创建
+     * @throws IllegalArgumentException 如果结果文件的扩展名不受支持
+     */
+    public static ResultLog open(Level level, File recordFile) throws IOException {
+        if (recordFile == null) {
+            return new ResultLog(level, null, false);
+        }
+        boolean jsonLines = isJsonLines(recordFile.getName());
+        BufferedWriter out = Files.newBufferedWriter(recordFile.toPath(), StandardCharsets.UTF_8);
+        if (!jsonLines) {
+            StringBuilder header = new StringBuilder("path,status,dateTaken");
+            for (PipelineMetrics.Stage stage : STAGES) {
+                header.append(',').append(stage.getKey()).append("Ms");
+            }
+            out.write(header.append(",outputBytes,message\n").toString());
+        }
+        return new ResultLog(level, out, jsonLines);
+    }
+    
+    /**
+     * 按扩展名判断结果文件的格式
+     *
+     * @param fileName 结果文件名
+     * @return JSONL返回true，CSV返回false
+     * @throws IllegalArgumentException 如果扩展名不是 .csv 或 .jsonl
+     */
+    static boolean isJsonLines(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".jsonl")) {
+            return true;
+        }
+        if (name.endsWith(".csv")) {
+            return false;
+        }
+        throw new IllegalArgumentException("结果文件的扩展名必须是 .csv 或 .jsonl: " + fileName);
+    }
+    
+    public Level getLevel() {
+        return level;
+    }
+    
+    /**
+     * @return 是否写结果文件；不写时调用方不必收集各阶段耗时
+     */
+    public boolean hasRecordFile() {
+        return recordWriter != null;
+    }
+    
+    /**
+     * 追加一个文件的处理结果，只写入内存，由后台线程输出
+     *
+     * @param result 处理结果
+     * @param source 源文件
+     * @param message 结果说明
+     * @param dateTaken 拍摄日期，没有时为null
+     * @param stageNanos 各阶段耗时（按 {@link PipelineMetrics.Stage} 的序号），不写结果文件时可以为null
+     * @param bytesWritten 写出的字节数
+     * @param completed 包括这个文件在内已完成的文件数
+     * @param discovered 已发现的文件数
+     */
+    public void record(PhotoWatermarkTool.ProcessResult result, File source, String message, String dateTaken,
+                       long[] stageNanos, long bytesWritten, int completed, int discovered) {
+        if (recordWriter == null && level != Level.FILE && result != PhotoWatermarkTool.ProcessResult.ERROR) {
+            return;
+        }
+        Entry entry = new Entry(result, source, message, dateTaken, stageNanos, bytesWritten, completed, discovered);
+        synchronized (this) {
+            while (active.size() >= MAX_PENDING && !closed) {
+                notifyAll();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (closed) {
+                return;
+            }
+            active.add(entry);
+        }
+    }
+    
+    /**
+     * 后台输出线程：到达刷新间隔或积压过多时交换列表，在锁外格式化并写出
+     */
+    private void writeLoop() {
+        StringBuilder out = new StringBuilder(8192);
+        StringBuilder err = new StringBuilder(1024);
+        StringBuilder records = new StringBuilder(8192);
+        while (true) {
+            List<Entry> batch;
+            synchronized (this) {
+                try {
+                    if (!closed && active.size() < MAX_PENDING) {
+                        wait(FLUSH_INTERVAL_MILLIS);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (active.isEmpty()) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                batch = active;
+                active = spare;
+                spare = batch;
+                notifyAll();
+            }
+            for (Entry entry : batch) {
+                appendConsoleLine(entry, out, err);
+                if (recordWriter != null) {
+                    if (jsonLines) {
+                        appendJsonLine(entry, records);
+                    } else {
+                        appendCsvLine(entry, records);
+                    }
+                }
+            }
+            batch.clear();
+            flush(System.out, out);
+            flush(System.err, err);
+            if (records.length() > 0) {
+                try {
+                    recordWriter.append(records);
+                    recordWriter.flush();
+                } catch (IOException e) {
+                    synchronized (this) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+                records.setLength(0);
+            }
+        }
+    }
+    
+    private void appendConsoleLine(Entry entry, StringBuilder out, StringBuilder err) {
+        if (level != Level.FILE && entry.result != PhotoWatermarkTool.ProcessResult.ERROR) {
+            return;
+        }
+        StringBuilder target;
+        String mark;
+        switch (entry.result) {
+            case SUCCESS:
+                target = out;
+                mark = "✓ ";
+                break;
+            case ERROR:
+                target = err;
+                mark = "✗ ";
+                break;
+            default:
+                target = out;
+                mark = "⚠ ";
+                break;
+        }
+        target.append(mark).append('[').append(entry.completed).append('/').append(entry.discovered).append("] ")
+            .append(entry.source.getName()).append(" - ").append(entry.message).append('\n');
+    }
+    
+    private static void appendCsvLine(Entry entry, StringBuilder line) {
+        appendCsvField(line, entry.source.getPath()).append(',');
+        line.append(entry.result.name()).append(',');
+        if (entry.dateTaken != null) {
+            line.append(entry.dateTaken);
+        }
+        for (PipelineMetrics.Stage stage : STAGES) {
+            line.append(',');
+            long nanos = entry.stageNanos == null ? 0 : entry.stageNanos[stage.ordinal()];
+            if (nanos > 0) {
+                appendMillis(line, nanos);
+            }
+        }
+        line.append(',').append(entry.bytesWritten).append(',');
+        appendCsvField(line, entry.message).append('\n');
+    }
+    
+    private static void appendJsonLine(Entry entry, StringBuilder line) {
+        line.append("{\"path\": ").append(PipelineMetrics.quote(entry.source.getPath()));
+        line.append(", \"status\": \"").append(entry.result.name()).append('"');
+        line.append(", \"dateTaken\": ").append(entry.dateTaken == null ? "null" : "\"" + entry.dateTaken + "\"");
+        line.append(", \"stagesMs\": {");
+        boolean first = true;
+        if (entry.stageNanos != null) {
+            for (PipelineMetrics.Stage stage : STAGES) {
+                long nanos = entry.stageNanos[stage.ordinal()];
+                if (nanos > 0) {
+                    line.append(first ? "" : ", ").append('"').append(stage.getKey()).append("\": ");
+                    appendMillis(line, nanos);
+                    first = false;
+                }
+            }
+        }
+        line.append("}, \"outputBytes\": ").append(entry.bytesWritten);
+        line.append(", \"message\": ").append(PipelineMetrics.quote(entry.message)).append("}\n");
+    }
+    
+    /**
+     * 以毫秒写出耗时，保留三位小数，不经过 {@link String#format}
+     */
+    private static void appendMillis(StringBuilder line, long nanos) {
+        long micros = nanos / 1000;
+        long fraction = micros % 1000;
+        line.append(micros / 1000).append('.');
+        if (fraction < 100) {
+            line.append(fraction < 10 ? "00" : "0");
+        }
+        line.append(fraction);
+    }
+    
+    /**
+     * 按RFC 4180写出CSV字段：含逗号、引号或换行时加引号，引号写两次
+     */
+    private static StringBuilder appendCsvField(StringBuilder line, String value) {
+        boolean quoted = false;
+        for (int i = 0; i < value.length() && !quoted; i++) {
+            char c = value.charAt(i);
+            quoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quoted) {
+            return line.append(value);
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            line.append(c == '"' ? "\"\"" : String.valueOf(c));
+        }
+        return line.append('"');
+    }
+    
+    private static void flush(PrintStream stream, StringBuilder text) {
+        if (text.length() > 0) {
+            stream.print(text);
+            stream.flush();
+            text.setLength(0);
+        }
+    }
+    
+    /**
+     * 输出剩余的结果并关闭结果文件；之后追加的结果被丢弃
+     *
+     * @throws IOException 如果写入结果文件失败
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (recordWriter == null) {
+            return;
+        }
+        try {
+            recordWriter.close();
+        } finally {
+            synchronized (this) {
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        }
+    }
+    
+    /**
+     * 一个文件的处理结果，格式化推迟到后台线程
+     */
+    private static final class Entry {
+        final PhotoWatermarkTool.ProcessResult result;
+        final File source;
+        final String message;
+        final String dateTaken;
+        final long[] stageNanos;
+        final long bytesWritten;
+        final int completed;
+        final int discovered;
+        
+        Entry(PhotoWatermarkTool.ProcessResult result, File source, String message, String dateTaken,
+              long[] stageNanos, long bytesWritten, int completed, int discovered) {
+            this.result = result;
+            this.source = source;
+            this.message = message;
+            this.dateTaken = dateTaken;
+            this.stageNanos = stageNanos;
+            this.bytesWritten = bytesWritten;
+            this.completed = completed;
+            this.discovered = discovered;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package nju.edu.cn.watermark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 批处理运行日志：每处理完一个文件追加一条记录，进程被强行终止后可以用 {@code --resume} 接着处理
+ *
+ * <p>每条记录固定25字节：处理结果、源路径哈希、文件大小、修改时间。记录先追加到内存缓冲区，
+ * 由后台线程每隔 {@value #COMMIT_INTERVAL_MILLIS} 毫秒把这段时间内的全部记录一次写入并 fsync（组提交），
+ * 工作线程不等待磁盘。进程被终止时最多丢失最后一个提交间隔内的记录，这些文件在恢复时重新处理；
+ * 输出文件是原子改名写出的，重新处理不会留下损坏的文件。</p>
+ *
+ * <p>日志头记录了渲染设置和输出布局，恢复时设置不同则不能沿用。运行正常结束、增量清单保存之后日志即被删除，
+ * 只有中断的运行会留下日志。</p>
+ */
+public class RunJournal {
+
+    public static final String FILE_NAME = ".watermark-journal";
+
+    private static final int MAGIC = 0x574D4A4C; // "WMJL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 25;
+    private static final int ENTRY_LONGS = 4;
+    private static final long COMMIT_INTERVAL_MILLIS = 200;
+    private static final int BUFFER_SIZE = RECORD_SIZE * 4096;
+
+    private static final PhotoWatermarkTool.ProcessResult[] RESULTS = PhotoWatermarkTool.ProcessResult.values();
+
+    private final Path file;
+    private final FileChannel channel;
+
+    /** 上次中断的运行留下的记录：路径哈希、大小、修改时间、结果序号，加载后只读 */
+    private final long[] resumed;
+    private final int mask;
+    private final int resumedCount;
+
+    /** 工作线程追加记录的缓冲区，写满或到达提交间隔时与 spare 交换 */
+    private ByteBuffer active = newBuffer();
+    private ByteBuffer spare = newBuffer();
+    private boolean closed;
+    private IOException failure;
+    private final Thread committer;
+
+    private RunJournal(Path file, FileChannel channel, long[] resumed, int resumedCount) {
+        this.file = file;
+        this.channel = channel;
+        this.resumed = resumed;
+        this.mask = resumed.length / ENTRY_LONGS - 1;
+        this.resumedCount = resumedCount;
+        this.committer = new Thread(this::commitLoop, "watermark-journal");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * 打开输出目录中的运行日志
+     *
+     * @param outputDir 输出目录
+     * @param settings 渲染设置和输出布局的指纹，恢复时必须与日志头一致
+     * @param resume 是否沿用上次中断的运行留下的记录；为false时清空日志
+     * @return 运行日志
+     * @throws IOException 如果日志无法创建
+     */
+    public static RunJournal open(File outputDir, long settings, boolean resume) throws IOException {
+        Path file = outputDir.toPath().resolve(FILE_NAME);
+        long[] table = newTable(0);
+        int count = 0;
+        if (resume && Files.isRegularFile(file)) {
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(in, header);
+                header.flip();
+                if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                    System.err.println("忽略无法识别的运行日志: " + file);
+                } else if (header.getLong() != settings) {
+                    System.err.println("水印设置或输出布局与中断的运行不同，不沿用其运行日志");
+                } else {
+                    // 最后一条记录可能只写了一半，只读取完整的记录
+                    int records = (int) ((in.size() - HEADER_SIZE) / RECORD_SIZE);
+                    table = newTable(records);
+                    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                    int read = 0;
+                    while (read < records) {
+                        buffer.clear();
+                        buffer.limit(Math.min(records - read, BUFFER_SIZE / RECORD_SIZE) * RECORD_SIZE);
+                        readFully(in, buffer);
+                        buffer.flip();
+                        while (buffer.remaining() >= RECORD_SIZE) {
+                            int result = buffer.get();
+                            long pathHash = buffer.getLong();
+                            long size = buffer.getLong();
+                            long lastModified = buffer.getLong();
+                            if (result >= 0 && result < RESULTS.length && put(table, pathHash, size, lastModified, result)) {
+                                count++;
+                            }
+                            read++;
+                        }
+                    }
+                    FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE);
+                    out.truncate(HEADER_SIZE + (long) records * RECORD_SIZE);
+                    out.position(out.size());
+                    return new RunJournal(file, out, table, count);
+                }
+            }
+        }
+        FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(settings).flip();
+        while (header.hasRemaining()) {
+            out.write(header);
+        }
+        out.force(false);
+        return new RunJournal(file, out, table, count);
+    }
+
+    /**
+     * @param outputDir 输出目录
+     * @return 输出目录中是否留有中断的运行的日志
+     */
+    public static boolean exists(File outputDir) {
+        return Files.isRegularFile(outputDir.toPath().resolve(FILE_NAME));
+    }
+
+    /**
+     * @return 沿用的上次运行的记录数
+     */
+    public int getResumedCount() {
+        return resumedCount;
+    }
+
+    /**
+     * 查找上次中断的运行中已处理过的文件
+     *
+     * @param source 源文件
+     * @param size 文件大小
+     * @param lastModified 修改时间（毫秒）
+     * @return 上次的处理结果；没有记录或文件已变化时返回null
+     */
+    public PhotoWatermarkTool.ProcessResult findResumed(File source, long size, long lastModified) {
+        if (resumedCount == 0) {
+            return null;
+        }
+        long key = IncrementalManifest.pathHash(source);
+        int slot = (int) mix(key) & mask;
+        while (true) {
+            int base = slot * ENTRY_LONGS;
+            long current = resumed[base];
+            if (current == 0) {
+                return null;
+            }
+            if (current == key) {
+                return resumed[base + 1] == size && resumed[base + 2] == lastModified
+                        ? RESULTS[(int) resumed[base + 3]] : null;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * 追加一条处理结果；只写入内存缓冲区，由后台线程组提交。缓冲区写满且上一批仍在写入时短暂阻塞
+     *
+     * @param result 处理结果
+     * @param source 源文件
+     * @param size 文件大小
+     * @param lastModified 修改时间（毫秒）
+     */
+    public void append(PhotoWatermarkTool.ProcessResult result, File source, long size, long lastModified) {
+        long pathHash = IncrementalManifest.pathHash(source);
+        synchronized (this) {
+            while (active.remaining() < RECORD_SIZE && !closed) {
+                notifyAll();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (closed) {
+                return;
+            }
+            active.put((byte) result.ordinal()).putLong(pathHash).putLong(size).putLong(lastModified);
+        }
+    }
+
+    /**
+     * 后台提交线程：到达提交间隔或缓冲区写满时，交换缓冲区，在锁外写入并 fsync
+     */
+    private void commitLoop() {
+        while (true) {
+            ByteBuffer batch;
+            synchronized (this) {
+                try {
+                    if (!closed && active.remaining() >= RECORD_SIZE) {
+                        wait(COMMIT_INTERVAL_MILLIS);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (active.position() == 0) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                batch = active;
+                active = spare;
+                spare = batch;
+                notifyAll();
+            }
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * 提交剩余的记录并关闭日志
+     *
+     * @throws IOException 如果写入失败
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } finally {
+            synchronized (this) {
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        }
+    }
+
+    /**
+     * 运行正常结束后删除日志
+     *
+     * @throws IOException 如果删除失败
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static ByteBuffer newBuffer() {
+        return ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // 继续读取
+        }
+    }
+
+    private static long[] newTable(int entries) {
+        int slots = Integer.highestOneBit(Math.max(16, entries * 2 - 1)) << 1;
+        return new long[slots * ENTRY_LONGS];
+    }
+
+    /**
+     * 插入或覆盖条目，同一文件有多条记录时以最后一条为准
+     *
+     * @return 是否新增了条目
+     */
+    private static boolean put(long[] table, long key, long size, long lastModified, long result) {
+        int mask = table.length / ENTRY_LONGS - 1;
+        int slot = (int) mix(key) & mask;
+        while (true) {
+            int base = slot * ENTRY_LONGS;
+            boolean empty = table[base] == 0;
+            if (empty || table[base] == key) {
+                table[base] = key;
+                table[base + 1] = size;
+                table[base + 2] = lastModified;
+                table[base + 3] = result;
+                return empty;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,486 @@
+package nju.edu.cn.watermark;
+
+import org.w3c.dom.Node;
+
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.plugins.tiff.BaselineTIFFTagSet;
+import javax.imageio.plugins.tiff.ExifGPSTagSet;
+import javax.imageio.plugins.tiff.ExifParentTIFFTagSet;
+import javax.imageio.plugins.tiff.ExifTIFFTagSet;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.plugins.tiff.TIFFTag;
+import javax.imageio.plugins.tiff.TIFFTagSet;
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 源图片中要原样带到输出文件的元数据块
+ *
+ * <p>由 {@link ExifFastReader} 在读取拍摄日期的同一次扫描中取出，之后不再打开源文件：</p>
+ * <ul>
+ *   <li>JPEG：APP1段（EXIF、XMP），作为原始字节交给编码器写在SOF之前。
+ *       APP2中的ICC配置不带出：JPEG解码器总是按配置把像素转换为sRGB</li>
+ *   <li>PNG：eXIf 块原样写出；iCCP 块只拆出配置名，压缩的配置数据原样写出</li>
+ *   <li>TIFF：IFD0中的描述、分辨率、XMP、IPTC、ICC条目，以及EXIF和GPS子IFD中的全部条目。
+ *       TIFF条目的偏移量是相对于文件的，无法整体拷贝，写出时按类型把值还原成数组交给编码器重新排布</li>
+ * </ul>
+ *
+ * <p>解码器已经按内嵌的ICC配置转换过颜色时（见 {@link #forDecodedImage}），输出像素已是sRGB，
+ * 不再带上原来的配置。</p>
+ *
+ * <p>EXIF方向（Orientation）随其他条目一起带出，像素仍按源文件的存储方向排列，
+ * 水印按 {@link #outputOrientation} 换算到显示方向定位（见 {@link WatermarkRenderer.WatermarkStamp#toStored}）。</p>
+ */
+public class SourceMetadata {
+    
+    /** TIFF条目所在的IFD */
+    static final int IFD0 = 0;
+    static final int EXIF_IFD = 1;
+    static final int GPS_IFD = 2;
+    
+    static final int PNG_EXIF = 0x65584966;
+    static final int PNG_ICCP = 0x69434350;
+    static final int TIFF_TAG_ICC_PROFILE = 34675;
+    static final int TIFF_TAG_ORIENTATION = 274;
+    
+    private static final int JPEG_APP1 = 0xE1;
+    private static final int TIFF_SHORT = 3;
+    
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private static final String PNG_METADATA_FORMAT = "javax_imageio_png_1.0";
+    private static final int[] TIFF_TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+    
+    private final String format;
+    private final boolean littleEndian;
+    private final List<Block> blocks;
+    private long byteCount;
+    
+    SourceMetadata(String format, boolean littleEndian) {
+        this(format, littleEndian, new ArrayList<>());
+    }
+    
+    private SourceMetadata(String format, boolean littleEndian, List<Block> blocks) {
+        this.format = format;
+        this.littleEndian = littleEndian;
+        this.blocks = blocks;
+    }
+    
+    /**
+     * @return 源图片的格式（jpg/png/tiff），只有输出为同一格式时才带上这些元数据
+     */
+    public String getFormat() {
+        return format;
+    }
+    
+    public boolean isEmpty() {
+        return blocks.isEmpty();
+    }
+    
+    /**
+     * @return TIFF条目是否为小端字节序
+     */
+    boolean isLittleEndian() {
+        return littleEndian;
+    }
+    
+    /**
+     * @return 已收集的数据字节数
+     */
+    long getByteCount() {
+        return byteCount;
+    }
+    
+    /**
+     * 读取IFD0中的EXIF方向
+     *
+     * @return 方向 (1-8)，1表示按存储方向显示；没有方向标签或值不合法时返回1
+     */
+    public int getOrientation() {
+        for (Block block : blocks) {
+            if ("tiff".equals(format)) {
+                if (block.ifd == IFD0 && block.tag == TIFF_TAG_ORIENTATION && block.type == TIFF_SHORT
+                        && block.data.length >= 2) {
+                    ByteBuffer value = ByteBuffer.wrap(block.data)
+                        .order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                    return validOrientation(value.getChar(0));
+                }
+            } else if (block.tag == PNG_EXIF) {
+                return readOrientation(block.data, 0, block.data.length);
+            } else if (block.tag == JPEG_APP1 && isExifSegment(block.data, 0, block.data.length)) {
+                return readOrientation(block.data, 6, block.data.length);
+            }
+        }
+        return 1;
+    }
+    
+    /**
+     * 输出文件中会带上的EXIF方向，与 {@link EncoderSettings#write} 是否写出元数据的判断一致
+     *
+     * @param metadata 源图片的元数据块，可以为null
+     * @param format 输出格式
+     * @return 方向 (1-8)；不写元数据时输出按存储方向显示，返回1
+     */
+    static int outputOrientation(SourceMetadata metadata, String format) {
+        if (metadata == null || metadata.isEmpty() || !format.equals(metadata.format)) {
+            return 1;
+        }
+        return metadata.getOrientation();
+    }
+    
+    /**
+     * 从TIFF结构（EXIF数据）的IFD0中读取方向标签，只读取这一个条目
+     *
+     * @param data 数据
+     * @param offset TIFF头在数据中的位置，IFD中的偏移量都相对于它
+     * @param end 数据的结束位置
+     * @return 方向 (1-8)，没有、结构异常或值不合法时返回1
+     */
+    static int readOrientation(byte[] data, int offset, int end) {
+        if (end - offset < 8) {
+            return 1;
+        }
+        ByteBuffer tiff = ByteBuffer.wrap(data, offset, end - offset).slice();
+        if (data[offset] == 'I' && data[offset + 1] == 'I') {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (data[offset] != 'M' || data[offset + 1] != 'M') {
+            return 1;
+        }
+        long ifd = tiff.getInt(4) & 0xFFFFFFFFL;
+        if (tiff.getChar(2) != 42 || ifd + 2 > tiff.limit()) {
+            return 1;
+        }
+        int count = tiff.getChar((int) ifd);
+        for (int i = 0; i < count; i++) {
+            int entry = (int) ifd + 2 + i * 12;
+            if (entry + 12 > tiff.limit()) {
+                return 1;
+            }
+            if (tiff.getChar(entry) == TIFF_TAG_ORIENTATION) {
+                return tiff.getChar(entry + 2) == TIFF_SHORT ? validOrientation(tiff.getChar(entry + 8)) : 1;
+            }
+        }
+        return 1;
+    }
+    
+    /**
+     * 从JPEG的APP1段读取EXIF方向
+     *
+     * @param data 数据
+     * @param start 段内容（标记和长度之后）的开始位置
+     * @param end 段的结束位置
+     * @return 方向 (1-8)；不是EXIF段（例如XMP）或没有方向标签时返回1
+     */
+    static int readApp1Orientation(byte[] data, int start, int end) {
+        return isExifSegment(data, start, end) ? readOrientation(data, start + 6, end) : 1;
+    }
+    
+    private static boolean isExifSegment(byte[] data, int start, int end) {
+        return end - start >= 6 && data[start] == 'E' && data[start + 1] == 'x' && data[start + 2] == 'i'
+            && data[start + 3] == 'f' && data[start + 4] == 0 && data[start + 5] == 0;
+    }
+    
+    private static int validOrientation(int orientation) {
+        return orientation >= 1 && orientation <= 8 ? orientation : 1;
+    }
+    
+    /**
+     * 按解码结果决定是否保留ICC配置
+     *
+     * <p>TIFF解码器遇到内嵌的ICC配置会直接以该色彩空间解码，绘制前再转换为sRGB；
+     * 解码结果不是标准色彩空间时，说明颜色已经按配置转换过，原来的配置不能再用。
+     * PNG解码器忽略 iCCP，像素保持原值，配置照常保留。</p>
+     *
+     * @param colorModel 解码结果的颜色模型
+     * @return 需要去掉ICC配置时返回新的对象，否则返回自身
+     */
+    public SourceMetadata forDecodedImage(ColorModel colorModel) {
+        ColorSpace space = colorModel.getColorSpace();
+        if (space == ColorSpace.getInstance(ColorSpace.CS_sRGB)
+                || space == ColorSpace.getInstance(ColorSpace.CS_GRAY)
+                || space == ColorSpace.getInstance(ColorSpace.CS_LINEAR_RGB)) {
+            return this;
+        }
+        return withoutColorProfile();
+    }
+    
+    /**
+     * @return 去掉ICC配置后的元数据
+     */
+    SourceMetadata withoutColorProfile() {
+        List<Block> kept = new ArrayList<>(blocks.size());
+        for (Block block : blocks) {
+            if (block.tag != PNG_ICCP && block.tag != TIFF_TAG_ICC_PROFILE) {
+                kept.add(block);
+            }
+        }
+        if (kept.size() == blocks.size()) {
+            return this;
+        }
+        SourceMetadata stripped = new SourceMetadata(format, littleEndian, kept);
+        for (Block block : kept) {
+            stripped.byteCount += block.data.length;
+        }
+        return stripped;
+    }
+    
+    void addSegment(int tag, byte[] data) {
+        blocks.add(new Block(IFD0, tag, 0, 0, data));
+        byteCount += data.length;
+    }
+    
+    void addTiffEntry(int ifd, int tag, int type, int count, byte[] value) {
+        blocks.add(new Block(ifd, tag, type, count, value));
+        byteCount += value.length;
+    }
+    
+    /**
+     * 把元数据并入编码器的图像元数据
+     *
+     * @param metadata 编码器为待写图片生成的默认图像元数据，会被修改
+     * @return 写入时使用的图像元数据
+     * @throws IIOInvalidTreeException 如果元数据无法合并
+     */
+    IIOMetadata mergeInto(IIOMetadata metadata) throws IIOInvalidTreeException {
+        switch (format) {
+            case "jpg":
+                return mergeJpeg(metadata);
+            case "png":
+                return mergePng(metadata);
+            case "tiff":
+                return mergeTiff(metadata);
+            default:
+                return metadata;
+        }
+    }
+    
+    /**
+     * 以 unknown 节点插在 markerSequence 最前面，编码器把字节数组原样写成段，紧跟在JFIF段之后
+     */
+    private IIOMetadata mergeJpeg(IIOMetadata metadata) throws IIOInvalidTreeException {
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA_FORMAT);
+        Node sequence = root.getElementsByTagName("markerSequence").item(0);
+        Node first = sequence.getFirstChild();
+        for (Block block : blocks) {
+            IIOMetadataNode segment = new IIOMetadataNode("unknown");
+            segment.setAttribute("MarkerTag", Integer.toString(block.tag));
+            segment.setUserObject(block.data);
+            sequence.insertBefore(segment, first);
+        }
+        metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+        return metadata;
+    }
+    
+    /**
+     * eXIf 作为未知块原样写在IDAT之前；iCCP 由编码器写在PLTE之前，配置数据保持压缩状态
+     */
+    private IIOMetadata mergePng(IIOMetadata metadata) throws IIOInvalidTreeException {
+        IIOMetadataNode root = new IIOMetadataNode(PNG_METADATA_FORMAT);
+        IIOMetadataNode unknownChunks = new IIOMetadataNode("UnknownChunks");
+        for (Block block : blocks) {
+            if (block.tag == PNG_ICCP) {
+                // 配置名 + NUL + 压缩方法 + 压缩数据
+                int nameLength = 0;
+                while (nameLength < block.data.length && block.data[nameLength] != 0) {
+                    nameLength++;
+                }
+                if (nameLength + 2 > block.data.length) {
+                    continue;
+                }
+                byte[] compressed = new byte[block.data.length - nameLength - 2];
+                System.arraycopy(block.data, nameLength + 2, compressed, 0, compressed.length);
+                IIOMetadataNode iccp = new IIOMetadataNode("iCCP");
+                iccp.setAttribute("profileName", new String(block.data, 0, nameLength, StandardCharsets.ISO_8859_1));
+                iccp.setAttribute("compressionMethod", "deflate");
+                iccp.setUserObject(compressed);
+                root.appendChild(iccp);
+            } else {
+                IIOMetadataNode chunk = new IIOMetadataNode("UnknownChunk");
+                chunk.setAttribute("type", "eXIf");
+                chunk.setUserObject(block.data);
+                unknownChunks.appendChild(chunk);
+            }
+        }
+        if (unknownChunks.hasChildNodes()) {
+            root.appendChild(unknownChunks);
+        }
+        metadata.mergeTree(PNG_METADATA_FORMAT, root);
+        return metadata;
+    }
+    
+    private IIOMetadata mergeTiff(IIOMetadata metadata) throws IIOInvalidTreeException {
+        TIFFDirectory root = TIFFDirectory.createFromMetadata(metadata);
+        TIFFDirectory exif = null;
+        TIFFDirectory gps = null;
+        for (Block block : blocks) {
+            switch (block.ifd) {
+                case EXIF_IFD:
+                    if (exif == null) {
+                        exif = new TIFFDirectory(new TIFFTagSet[] {ExifTIFFTagSet.getInstance()},
+                            ExifParentTIFFTagSet.getInstance().getTag(ExifParentTIFFTagSet.TAG_EXIF_IFD_POINTER));
+                    }
+                    addTiffField(exif, ExifTIFFTagSet.getInstance(), block);
+                    break;
+                case GPS_IFD:
+                    if (gps == null) {
+                        gps = new TIFFDirectory(new TIFFTagSet[] {ExifGPSTagSet.getInstance()},
+                            ExifParentTIFFTagSet.getInstance().getTag(ExifParentTIFFTagSet.TAG_GPS_INFO_IFD_POINTER));
+                    }
+                    addTiffField(gps, ExifGPSTagSet.getInstance(), block);
+                    break;
+                default:
+                    addTiffField(root, BaselineTIFFTagSet.getInstance(), block);
+                    break;
+            }
+        }
+        // 子IFD由编码器写出并回填偏移量，这里的偏移量只是占位
+        if (exif != null || gps != null) {
+            root.addTagSet(ExifParentTIFFTagSet.getInstance());
+        }
+        if (exif != null) {
+            root.addTIFFField(new TIFFField(exif.getParentTag(), TIFFTag.TIFF_LONG, 1L, exif));
+        }
+        if (gps != null) {
+            root.addTIFFField(new TIFFField(gps.getParentTag(), TIFFTag.TIFF_LONG, 1L, gps));
+        }
+        return root.getAsMetadata();
+    }
+    
+    /**
+     * 按TIFF类型把原始字节还原成 {@link TIFFField} 需要的数组
+     */
+    private void addTiffField(TIFFDirectory directory, TIFFTagSet tagSet, Block block) {
+        TIFFTag tag = tagSet.getTag(block.tag);
+        if (tag == null || !tag.isDataTypeOK(block.type)) {
+            tag = new TIFFTag("Tag" + block.tag, block.tag, 1 << block.type);
+        }
+        ByteBuffer value = ByteBuffer.wrap(block.data).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        int count = block.count;
+        Object data;
+        switch (block.type) {
+            case TIFFTag.TIFF_BYTE:
+            case TIFFTag.TIFF_SBYTE:
+            case TIFFTag.TIFF_UNDEFINED:
+                data = block.data;
+                break;
+            case TIFFTag.TIFF_ASCII: {
+                List<String> strings = new ArrayList<>();
+                int start = 0;
+                for (int i = 0; i <= block.data.length; i++) {
+                    if (i == block.data.length || block.data[i] == 0) {
+                        if (i > start || i < block.data.length) {
+                            strings.add(new String(block.data, start, i - start, StandardCharsets.ISO_8859_1));
+                        }
+                        start = i + 1;
+                    }
+                }
+                data = strings.toArray(new String[0]);
+                count = strings.size();
+                break;
+            }
+            case TIFFTag.TIFF_SHORT: {
+                char[] shorts = new char[count];
+                for (int i = 0; i < count; i++) {
+                    shorts[i] = value.getChar();
+                }
+                data = shorts;
+                break;
+            }
+            case TIFFTag.TIFF_SSHORT: {
+                short[] shorts = new short[count];
+                for (int i = 0; i < count; i++) {
+                    shorts[i] = value.getShort();
+                }
+                data = shorts;
+                break;
+            }
+            case TIFFTag.TIFF_LONG: {
+                long[] longs = new long[count];
+                for (int i = 0; i < count; i++) {
+                    longs[i] = value.getInt() & 0xFFFFFFFFL;
+                }
+                data = longs;
+                break;
+            }
+            case TIFFTag.TIFF_SLONG: {
+                int[] ints = new int[count];
+                for (int i = 0; i < count; i++) {
+                    ints[i] = value.getInt();
+                }
+                data = ints;
+                break;
+            }
+            case TIFFTag.TIFF_RATIONAL: {
+                long[][] rationals = new long[count][2];
+                for (int i = 0; i < count; i++) {
+                    rationals[i][0] = value.getInt() & 0xFFFFFFFFL;
+                    rationals[i][1] = value.getInt() & 0xFFFFFFFFL;
+                }
+                data = rationals;
+                break;
+            }
+            case TIFFTag.TIFF_SRATIONAL: {
+                int[][] rationals = new int[count][2];
+                for (int i = 0; i < count; i++) {
+                    rationals[i][0] = value.getInt();
+                    rationals[i][1] = value.getInt();
+                }
+                data = rationals;
+                break;
+            }
+            case TIFFTag.TIFF_FLOAT: {
+                float[] floats = new float[count];
+                for (int i = 0; i < count; i++) {
+                    floats[i] = value.getFloat();
+                }
+                data = floats;
+                break;
+            }
+            case TIFFTag.TIFF_DOUBLE: {
+                double[] doubles = new double[count];
+                for (int i = 0; i < count; i++) {
+                    doubles[i] = value.getDouble();
+                }
+                data = doubles;
+                break;
+            }
+            default:
+                return;
+        }
+        directory.addTIFFField(new TIFFField(tag, block.type, count, data));
+    }
+    
+    /**
+     * @return TIFF类型每个值的字节数，不支持的类型返回0
+     */
+    static int tiffTypeSize(int type) {
+        return type > 0 && type < TIFF_TYPE_SIZES.length ? TIFF_TYPE_SIZES[type] : 0;
+    }
+    
+    /**
+     * 一个元数据块：JPEG段或PNG块时 tag 是段标记或块类型，data 是段/块的数据；
+     * TIFF条目时 tag 是标签号，data 是按源文件字节序排列的原始值
+     */
+    private static final class Block {
+        final int ifd;
+        final int tag;
+        final int type;
+        final int count;
+        final byte[] data;
+        
+        Block(int ifd, int tag, int type, int count, byte[] data) {
+            this.ifd = ifd;
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,821 @@
+package nju.edu.cn.watermark;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.function.IntFunction;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 按条带流式处理超大PNG和TIFF图片，内存占用只与条带大小有关，与图片尺寸无关
+ *
+ * <p>输出仍然由ImageIO的PNG/TIFF编码器完成，但交给编码器的不是整帧图片，
+ * 而是一个按需解码的 {@link RenderedImage}：编码器逐行索取像素时，才从源文件读出所在的条带，
+ * 与水印矩形相交的条带在交出之前叠加水印，其余条带原样交出。同一时刻只有一个条带驻留在内存中。
+ * 自动颜色的水印按第一个与水印矩形相交的条带中、水印区域那几行的亮度选择颜色。</p>
+ *
+ * <ul>
+ *   <li>PNG：自带逐行解码器（Inflater + 行过滤还原），按文件顺序只读一遍；
+ *       支持非隔行扫描的8位及以下灰度、调色板、RGB和带透明通道的图片</li>
+ *   <li>TIFF：通过 {@link ImageReadParam#setSourceRegion} 每次只读一个条带，条带高度与文件中的条带对齐</li>
+ * </ul>
+ *
+ * <p>输出统一为8位RGB（源图带透明度时为RGBA）。16位、隔行扫描等布局，以及文件中单个条带（或瓦片行）
+ * 就超过条带字节数的TIFF返回false，由调用方走整帧解码路径。</p>
+ */
+public class StreamingWatermarker {
+    
+    /** 单个条带的目标字节数 */
+    private static final long STRIP_BYTES = 8L * 1024 * 1024;
+    
+    private static final ColorModel RGB = new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF);
+    private static final ColorModel ARGB = ColorModel.getRGBdefault();
+    
+    /**
+     * 估算流式处理占用的内存：一个条带，加上解码器和编码器各自的缓冲，按条带大小的两倍计
+     *
+     * @return 字节数
+     */
+    public static long estimateFootprint() {
+        return STRIP_BYTES * 2;
+    }
+    
+    /**
+     * 流式地给图片加水印
+     *
+     * @param inputFile 输入图片，PNG或TIFF
+     * @param outputFile 输出图片，格式与输入相同
+     * @param format 格式（png/tiff）
+     * @param watermarkText 水印文本
+     * @param fontSize 字体大小
+     * @param color 字体颜色
+     * @param position 水印位置
+     * @param settings 编码参数
+     * @param metadata 要带到输出文件的元数据块，可以为null
+     * @return 已写出返回true；格式或布局不受支持时返回false，不会创建输出文件
+     * @throws IOException 如果读写失败
+     */
+    public static boolean watermark(File inputFile, File outputFile, String format, String watermarkText,
+                                    int fontSize, Color color, WatermarkRenderer.WatermarkPosition position,
+                                    EncoderSettings settings, SourceMetadata metadata) throws IOException {
+        RowSource source;
+        if ("png".equals(format)) {
+            source = PngRowSource.open(inputFile);
+        } else if ("tiff".equals(format)) {
+            source = ReaderRowSource.open(inputFile);
+        } else {
+            return false;
+        }
+        if (source == null) {
+            return false;
+        }
+        try {
+            int width = source.getWidth();
+            int height = source.getHeight();
+            // 输出带着源图片的方向标签时，水印按查看器显示的方向放置
+            int orientation = SourceMetadata.outputOrientation(metadata, format);
+            WatermarkRenderer.WatermarkStamp stamp = WatermarkRenderer.createStamp(width, height, watermarkText,
+                fontSize, color, position, WatermarkRenderer.MARGIN, -1, orientation);
+            IntFunction<WatermarkRenderer.WatermarkStamp> autoStamp = WatermarkRenderer.isAutoColor(color)
+                ? luminance -> WatermarkRenderer.createStamp(width, height, watermarkText, fontSize,
+                    color, position, WatermarkRenderer.MARGIN, luminance, orientation)
+                : null;
+            StripImage image = new StripImage(source, stamp, autoStamp);
+            WatermarkRenderer.writeImage(image, outputFile, settings,
+                metadata == null ? null : source.adjustMetadata(metadata));
+            return true;
+        } catch (StreamingException e) {
+            throw (IOException) e.getCause();
+        } finally {
+            source.close();
+        }
+    }
+    
+    /**
+     * 按行提供ARGB像素的源图
+     */
+    private interface RowSource extends Closeable {
+        int getWidth();
+        
+        int getHeight();
+        
+        boolean hasAlpha();
+        
+        /**
+         * 条带高度的建议值（行数）
+         */
+        int getStripHeight();
+        
+        /**
+         * 读取从 y 开始的若干行
+         *
+         * @param y 起始行
+         * @param rows 行数
+         * @param argb 输出，每行 width 个像素，紧密排列
+         */
+        void readRows(int y, int rows, int[] argb) throws IOException;
+        
+        /**
+         * 按解码方式决定带出的元数据：解码时已按ICC配置转换过颜色的，去掉配置
+         */
+        SourceMetadata adjustMetadata(SourceMetadata metadata);
+    }
+    
+    /**
+     * 按条带按需解码的图片，编码器通过 {@link #getData(Rectangle)} 逐行索取像素
+     */
+    private static final class StripImage implements RenderedImage {
+        private final RowSource source;
+        private WatermarkRenderer.WatermarkStamp stamp;
+        /** 自动颜色时按亮度取得水印的函数，选定颜色后置为null */
+        private IntFunction<WatermarkRenderer.WatermarkStamp> autoStamp;
+        private final int width;
+        private final int height;
+        private final int stripHeight;
+        private final ColorModel colorModel;
+        private final int[] strip;
+        private int stripY = -1;
+        private int stripRows;
+        
+        StripImage(RowSource source, WatermarkRenderer.WatermarkStamp stamp,
+                   IntFunction<WatermarkRenderer.WatermarkStamp> autoStamp) {
+            this.source = source;
+            this.stamp = stamp;
+            this.autoStamp = autoStamp;
+            this.width = source.getWidth();
+            this.height = source.getHeight();
+            this.stripHeight = source.getStripHeight();
+            this.colorModel = source.hasAlpha() ? ARGB : RGB;
+            this.strip = new int[width * stripHeight];
+        }
+        
+        @Override
+        public Raster getData(Rectangle rect) {
+            Rectangle bounds = rect.intersection(new Rectangle(0, 0, width, height));
+            try {
+                if (bounds.x == 0 && bounds.width == width) {
+                    loadStrip(bounds.y);
+                    if (bounds.y + bounds.height <= stripY + stripRows) {
+                        // 常见情况：整行且落在当前条带内，直接包装条带数组
+                        DataBufferInt buffer = new DataBufferInt(strip, strip.length, (bounds.y - stripY) * width);
+                        return Raster.createPackedRaster(buffer, width, bounds.height, width,
+                            masks(), new Point(0, bounds.y));
+                    }
+                }
+                WritableRaster raster = colorModel.createCompatibleWritableRaster(bounds.width, bounds.height)
+                    .createWritableTranslatedChild(bounds.x, bounds.y);
+                int[] row = new int[bounds.width];
+                for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+                    loadStrip(y);
+                    System.arraycopy(strip, (y - stripY) * width + bounds.x, row, 0, bounds.width);
+                    raster.setDataElements(bounds.x, y, bounds.width, 1, row);
+                }
+                return raster;
+            } catch (IOException e) {
+                throw new StreamingException(e);
+            }
+        }
+        
+        /**
+         * 确保第 y 行在当前条带中，否则读取以 y 开始的条带并叠加水印
+         */
+        private void loadStrip(int y) throws IOException {
+            if (y >= stripY && y < stripY + stripRows) {
+                return;
+            }
+            stripY = y;
+            stripRows = Math.min(stripHeight, height - y);
+            source.readRows(stripY, stripRows, strip);
+            applyStamp();
+        }
+        
+        private void applyStamp() {
+            if (autoStamp != null) {
+                Rectangle area = stamp.getBounds().intersection(new Rectangle(0, stripY, width, stripRows));
+                if (area.isEmpty()) {
+                    return;
+                }
+                stamp = autoStamp.apply(WatermarkRenderer.sampleLuminance(strip, -stripY * width, width, area));
+                autoStamp = null;
+            }
+            BufferedImage stampImage = stamp.getImage();
+            int[] stampPixels = ((DataBufferInt) stampImage.getRaster().getDataBuffer()).getData();
+            int stampWidth = stampImage.getWidth();
+            int x0 = Math.max(0, stamp.getX());
+            int x1 = Math.min(width, stamp.getX() + stampWidth);
+            int y0 = Math.max(stripY, stamp.getY());
+            int y1 = Math.min(stripY + stripRows, stamp.getY() + stampImage.getHeight());
+            boolean alpha = colorModel == ARGB;
+            for (int y = y0; y < y1; y++) {
+                int stampRow = (y - stamp.getY()) * stampWidth - stamp.getX();
+                int row = (y - stripY) * width;
+                for (int x = x0; x < x1; x++) {
+                    int src = stampPixels[stampRow + x];
+                    if ((src >>> 24) != 0) {
+                        strip[row + x] = blend(src, strip[row + x], alpha);
+                    }
+                }
+            }
+        }
+        
+        private int[] masks() {
+            return colorModel == ARGB
+                ? new int[] {0x00FF0000, 0x0000FF00, 0x000000FF, 0xFF000000}
+                : new int[] {0x00FF0000, 0x0000FF00, 0x000000FF};
+        }
+        
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+        
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            Rectangle bounds = raster == null ? new Rectangle(0, 0, width, height) : raster.getBounds();
+            WritableRaster target = raster != null ? raster : colorModel.createCompatibleWritableRaster(width, height);
+            for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+                target.setRect(getData(new Rectangle(bounds.x, y, bounds.width, 1)));
+            }
+            return target;
+        }
+        
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+        
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+        
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+        
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+        
+        @Override
+        public SampleModel getSampleModel() {
+            return colorModel.createCompatibleSampleModel(width, stripHeight);
+        }
+        
+        @Override
+        public int getWidth() {
+            return width;
+        }
+        
+        @Override
+        public int getHeight() {
+            return height;
+        }
+        
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+        
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+        
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+        
+        @Override
+        public int getNumYTiles() {
+            return (height + stripHeight - 1) / stripHeight;
+        }
+        
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+        
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+        
+        @Override
+        public int getTileWidth() {
+            return width;
+        }
+        
+        @Override
+        public int getTileHeight() {
+            return stripHeight;
+        }
+        
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+        
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+        
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            return getData(new Rectangle(0, tileY * stripHeight, width, Math.min(stripHeight, height - tileY * stripHeight)));
+        }
+    }
+    
+    /**
+     * 非预乘ARGB的 SrcOver 混合；目标不带透明通道时按不透明处理
+     */
+    private static int blend(int src, int dst, boolean dstHasAlpha) {
+        int srcAlpha = src >>> 24;
+        int dstAlpha = dstHasAlpha ? dst >>> 24 : 255;
+        int dstWeight = (dstAlpha * (255 - srcAlpha) + 127) / 255;
+        int outAlpha = srcAlpha + dstWeight;
+        if (outAlpha == 0) {
+            return 0;
+        }
+        int half = outAlpha / 2;
+        int r = (((src >> 16) & 0xFF) * srcAlpha + ((dst >> 16) & 0xFF) * dstWeight + half) / outAlpha;
+        int g = (((src >> 8) & 0xFF) * srcAlpha + ((dst >> 8) & 0xFF) * dstWeight + half) / outAlpha;
+        int b = ((src & 0xFF) * srcAlpha + (dst & 0xFF) * dstWeight + half) / outAlpha;
+        return (outAlpha << 24) | (r << 16) | (g << 8) | b;
+    }
+    
+    /**
+     * 编码器回调中无法抛出受检异常，读取失败时用它包装，在 {@link #watermark} 外层还原
+     */
+    private static final class StreamingException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        StreamingException(IOException cause) {
+            super(cause);
+        }
+    }
+    
+    /**
+     * 通过 {@link ImageReader} 按区域读取的源图，用于TIFF
+     */
+    private static final class ReaderRowSource implements RowSource {
+        private final ImageInputStream stream;
+        private final ImageReader reader;
+        private final int width;
+        private final int height;
+        private final int stripHeight;
+        private final boolean alpha;
+        private final ColorModel rawColorModel;
+        
+        private ReaderRowSource(ImageInputStream stream, ImageReader reader) throws IOException {
+            this.stream = stream;
+            this.reader = reader;
+            this.width = reader.getWidth(0);
+            this.height = reader.getHeight(0);
+            ImageTypeSpecifier type = reader.getRawImageType(0);
+            this.alpha = type != null && type.getColorModel().hasAlpha();
+            this.rawColorModel = type == null ? null : type.getColorModel();
+            // 条带高度取文件中条带（或瓦片）高度的整数倍，避免同一个压缩条带被解码多次
+            int fileStrip = Math.max(1, Math.min(reader.getTileHeight(0), height));
+            int rows = (int) Math.max(1, STRIP_BYTES / ((long) width * 4));
+            this.stripHeight = Math.min(height, Math.max(fileStrip, rows / fileStrip * fileStrip));
+        }
+        
+        static ReaderRowSource open(File file) throws IOException {
+            ImageInputStream stream = ImageIO.createImageInputStream(file);
+            if (stream == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                stream.close();
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                ReaderRowSource source = new ReaderRowSource(stream, reader);
+                if ((long) source.stripHeight * source.width * 4 > STRIP_BYTES) {
+                    // 只有一个条带或瓦片很高的文件无法按条带读取，占用会超出 estimateFootprint 预留的内存
+                    source.close();
+                    return null;
+                }
+                return source;
+            } catch (IOException | RuntimeException e) {
+                reader.dispose();
+                stream.close();
+                throw e;
+            }
+        }
+        
+        @Override
+        public int getWidth() {
+            return width;
+        }
+        
+        @Override
+        public int getHeight() {
+            return height;
+        }
+        
+        @Override
+        public boolean hasAlpha() {
+            return alpha;
+        }
+        
+        @Override
+        public int getStripHeight() {
+            return stripHeight;
+        }
+        
+        @Override
+        public void readRows(int y, int rows, int[] argb) throws IOException {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, y, width, rows));
+            BufferedImage strip = reader.read(0, param);
+            strip.getRGB(0, 0, width, rows, argb, 0, width);
+        }
+        
+        @Override
+        public SourceMetadata adjustMetadata(SourceMetadata metadata) {
+            return rawColorModel == null ? metadata.withoutColorProfile() : metadata.forDecodedImage(rawColorModel);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            stream.close();
+        }
+    }
+    
+    /**
+     * PNG逐行解码器：把IDAT数据串成一个流交给 {@link Inflater}，逐行还原过滤
+     */
+    private static final class PngRowSource implements RowSource {
+        private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+        private static final int IHDR = 0x49484452;
+        private static final int PLTE = 0x504C5445;
+        private static final int TRNS = 0x74524E53;
+        private static final int IDAT = 0x49444154;
+        
+        private final File file;
+        private final int width;
+        private final int height;
+        private final int bitDepth;
+        private final int colorType;
+        private final int channels;
+        private final int[] palette;
+        private final int transparentKey;
+        private final boolean alpha;
+        private final int bytesPerPixel;
+        private final int rowBytes;
+        
+        private DataInputStream input;
+        private InflaterInputStream pixels;
+        private byte[] previous;
+        private byte[] current;
+        private int nextRow;
+        
+        private PngRowSource(File file, int width, int height, int bitDepth, int colorType,
+                             int[] palette, boolean translucentPalette, int transparentKey) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+            this.bitDepth = bitDepth;
+            this.colorType = colorType;
+            this.channels = colorType == 2 ? 3 : colorType == 4 ? 2 : colorType == 6 ? 4 : 1;
+            this.palette = palette;
+            this.transparentKey = transparentKey;
+            this.alpha = colorType == 4 || colorType == 6 || transparentKey >= 0 || translucentPalette;
+            this.bytesPerPixel = Math.max(1, channels * bitDepth / 8);
+            this.rowBytes = (int) (((long) width * channels * bitDepth + 7) / 8);
+        }
+        
+        /**
+         * 读取文件头和IDAT之前的块，布局不受支持时返回null
+         */
+        static PngRowSource open(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readLong() != SIGNATURE || in.readInt() != 13 || in.readInt() != IHDR) {
+                    return null;
+                }
+                int width = in.readInt();
+                int height = in.readInt();
+                int bitDepth = in.readUnsignedByte();
+                int colorType = in.readUnsignedByte();
+                int compression = in.readUnsignedByte();
+                int filter = in.readUnsignedByte();
+                int interlace = in.readUnsignedByte();
+                in.readInt();
+                boolean supportedDepth = colorType == 0 || colorType == 3
+                    ? bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8
+                    : bitDepth == 8 && (colorType == 2 || colorType == 4 || colorType == 6);
+                if (width <= 0 || height <= 0 || !supportedDepth || compression != 0 || filter != 0 || interlace != 0) {
+                    return null;
+                }
+                
+                int[] palette = null;
+                int paletteEntries = 0;
+                boolean translucentPalette = false;
+                int transparentKey = -1;
+                // 文件中尚未读取的字节：已读过签名、IHDR块，以及每轮开头下一个块的长度和类型
+                long remaining = file.length() - 41;
+                while (true) {
+                    int length = in.readInt();
+                    int type = in.readInt();
+                    if (type == IDAT) {
+                        break;
+                    }
+                    // 块数据加上CRC不能超出文件的剩余部分
+                    if (length < 0 || length + 4L > remaining) {
+                        throw new IOException("PNG文件已损坏：块长度无效 (" + length + ")");
+                    }
+                    remaining -= length + 12L;
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    in.readInt();
+                    if (type == PLTE) {
+                        palette = new int[256];
+                        paletteEntries = Math.min(length / 3, 256);
+                        for (int i = 0; i < paletteEntries; i++) {
+                            palette[i] = 0xFF000000 | (data[i * 3] & 0xFF) << 16
+                                | (data[i * 3 + 1] & 0xFF) << 8 | (data[i * 3 + 2] & 0xFF);
+                        }
+                    } else if (type == TRNS) {
+                        if (colorType == 3 && palette != null) {
+                            for (int i = 0; i < Math.min(length, 256); i++) {
+                                palette[i] = (palette[i] & 0x00FFFFFF) | (data[i] & 0xFF) << 24;
+                                // 只看调色板中实际存在的条目，全透明的黑色（0x00000000）也算半透明
+                                translucentPalette |= i < paletteEntries && (data[i] & 0xFF) != 0xFF;
+                            }
+                        } else if (colorType == 0 && length >= 2) {
+                            transparentKey = ((data[0] & 0xFF) << 8 | (data[1] & 0xFF)) & ((1 << bitDepth) - 1);
+                        } else if (colorType == 2 && length >= 6) {
+                            transparentKey = (data[1] & 0xFF) << 16 | (data[3] & 0xFF) << 8 | (data[5] & 0xFF);
+                        }
+                    }
+                }
+                if (colorType == 3 && palette == null) {
+                    return null;
+                }
+                return new PngRowSource(file, width, height, bitDepth, colorType, palette, translucentPalette,
+                    transparentKey);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+        
+        @Override
+        public int getWidth() {
+            return width;
+        }
+        
+        @Override
+        public int getHeight() {
+            return height;
+        }
+        
+        @Override
+        public boolean hasAlpha() {
+            return alpha;
+        }
+        
+        @Override
+        public int getStripHeight() {
+            return (int) Math.max(1, Math.min(height, STRIP_BYTES / ((long) width * 4)));
+        }
+        
+        @Override
+        public void readRows(int y, int rows, int[] argb) throws IOException {
+            if (pixels == null || y < nextRow) {
+                // 编码器回头索取之前的行时从头重新解码
+                restart();
+            }
+            while (nextRow < y) {
+                nextRow();
+            }
+            for (int i = 0; i < rows; i++) {
+                nextRow();
+                toArgb(argb, i * width);
+            }
+        }
+        
+        @Override
+        public SourceMetadata adjustMetadata(SourceMetadata metadata) {
+            // 像素按原值交出，不做色彩转换
+            return metadata;
+        }
+        
+        private void restart() throws IOException {
+            close();
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            // 跳到第一个IDAT块的数据开头
+            input.readLong();
+            while (true) {
+                int length = input.readInt();
+                int type = input.readInt();
+                if (type == IDAT) {
+                    pixels = new InflaterInputStream(new IdatStream(input, length), new Inflater(), 64 * 1024);
+                    break;
+                }
+                input.skipNBytes(length + 4L);
+            }
+            previous = new byte[rowBytes];
+            current = new byte[rowBytes];
+            nextRow = 0;
+        }
+        
+        /**
+         * 解压并还原一行的过滤，结果在 {@link #current} 中
+         */
+        private void nextRow() throws IOException {
+            int filter = pixels.read();
+            if (filter < 0) {
+                throw new EOFException("PNG图像数据不完整");
+            }
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+            readFully(pixels, current);
+            switch (filter) {
+                case 0:
+                    break;
+                case 1:
+                    for (int i = bytesPerPixel; i < rowBytes; i++) {
+                        current[i] += current[i - bytesPerPixel];
+                    }
+                    break;
+                case 2:
+                    for (int i = 0; i < rowBytes; i++) {
+                        current[i] += previous[i];
+                    }
+                    break;
+                case 3:
+                    for (int i = 0; i < rowBytes; i++) {
+                        int left = i >= bytesPerPixel ? current[i - bytesPerPixel] & 0xFF : 0;
+                        current[i] += (byte) ((left + (previous[i] & 0xFF)) >>> 1);
+                    }
+                    break;
+                case 4:
+                    for (int i = 0; i < rowBytes; i++) {
+                        int left = i >= bytesPerPixel ? current[i - bytesPerPixel] & 0xFF : 0;
+                        int upLeft = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+                        current[i] += (byte) paeth(left, previous[i] & 0xFF, upLeft);
+                    }
+                    break;
+                default:
+                    throw new IOException("未知的PNG行过滤类型: " + filter);
+            }
+            nextRow++;
+        }
+        
+        private static int paeth(int left, int up, int upLeft) {
+            int estimate = left + up - upLeft;
+            int distanceLeft = Math.abs(estimate - left);
+            int distanceUp = Math.abs(estimate - up);
+            int distanceUpLeft = Math.abs(estimate - upLeft);
+            if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+                return left;
+            }
+            return distanceUp <= distanceUpLeft ? up : upLeft;
+        }
+        
+        /**
+         * 把 {@link #current} 中的一行转换为ARGB
+         */
+        private void toArgb(int[] argb, int offset) {
+            byte[] row = current;
+            switch (colorType) {
+                case 2:
+                    for (int x = 0, i = 0; x < width; x++, i += 3) {
+                        int rgb = (row[i] & 0xFF) << 16 | (row[i + 1] & 0xFF) << 8 | (row[i + 2] & 0xFF);
+                        argb[offset + x] = (rgb == transparentKey ? 0 : 0xFF000000) | rgb;
+                    }
+                    break;
+                case 6:
+                    for (int x = 0, i = 0; x < width; x++, i += 4) {
+                        argb[offset + x] = (row[i + 3] & 0xFF) << 24 | (row[i] & 0xFF) << 16
+                            | (row[i + 1] & 0xFF) << 8 | (row[i + 2] & 0xFF);
+                    }
+                    break;
+                case 4:
+                    for (int x = 0, i = 0; x < width; x++, i += 2) {
+                        int gray = row[i] & 0xFF;
+                        argb[offset + x] = (row[i + 1] & 0xFF) << 24 | gray << 16 | gray << 8 | gray;
+                    }
+                    break;
+                default:
+                    // 灰度或调色板，位深1/2/4/8
+                    int mask = (1 << bitDepth) - 1;
+                    int scale = 255 / mask;
+                    for (int x = 0; x < width; x++) {
+                        int bit = x * bitDepth;
+                        int value = ((row[bit >>> 3] & 0xFF) >>> (8 - bitDepth - (bit & 7))) & mask;
+                        if (colorType == 3) {
+                            argb[offset + x] = palette[value];
+                        } else {
+                            int gray = value * scale;
+                            argb[offset + x] = (value == transparentKey ? 0 : 0xFF000000) | gray << 16 | gray << 8 | gray;
+                        }
+                    }
+                    break;
+            }
+        }
+        
+        private static void readFully(InputStream in, byte[] buffer) throws IOException {
+            int read = 0;
+            while (read < buffer.length) {
+                int count = in.read(buffer, read, buffer.length - read);
+                if (count < 0) {
+                    throw new EOFException("PNG图像数据不完整");
+                }
+                read += count;
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (input != null) {
+                input.close();
+                input = null;
+            }
+            if (pixels != null) {
+                pixels.close();
+                pixels = null;
+            }
+        }
+    }
+    
+    /**
+     * 把连续的IDAT块拼成一个数据流，遇到其他块时结束
+     */
+    private static final class IdatStream extends InputStream {
+        private final DataInputStream input;
+        private int remaining;
+        private boolean finished;
+        
+        IdatStream(DataInputStream input, int firstLength) {
+            this.input = input;
+            this.remaining = firstLength;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            while (remaining == 0) {
+                if (finished) {
+                    return -1;
+                }
+                // 跳过CRC，读下一个块头
+                input.readInt();
+                int nextLength = input.readInt();
+                int type = input.readInt();
+                if (type != PngRowSource.IDAT) {
+                    finished = true;
+                    return -1;
+                }
+                remaining = nextLength;
+            }
+            int count = input.read(buffer, offset, Math.min(length, remaining));
+            if (count < 0) {
+                throw new EOFException("PNG图像数据不完整");
+            }
+            remaining -= count;
+            return count;
+        }
+    }
+}
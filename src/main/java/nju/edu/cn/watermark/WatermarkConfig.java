@@ -0,0 +1,244 @@
+package nju.edu.cn.watermark;
+
+import java.awt.Color;
+
+/**
+ * {@link WatermarkEngine} 的不可变配置：水印样式、编码参数、元数据处理方式和资源上限
+ *
+ * <p>用 {@link #builder()} 逐项设置，未设置的项取与命令行相同的默认值；
+ * 也可以用 {@link #fromOptions(CommandLineOptions)} 从解析好的命令行选项得到。</p>
+ */
+public final class WatermarkConfig {
+    
+    private final int fontSize;
+    private final Color color;
+    private final WatermarkRenderer.WatermarkPosition position;
+    private final WatermarkTemplate template;
+    private final EncoderSettings encoderSettings;
+    private final String outputFormat;
+    private final boolean stripMetadata;
+    private final boolean reencodeJpeg;
+    private final int parallelism;
+    private final long maxMemory;
+    
+    private WatermarkConfig(Builder builder) {
+        this.fontSize = builder.fontSize;
+        this.color = builder.color;
+        this.position = builder.position;
+        this.template = builder.template;
+        this.encoderSettings = builder.encoderSettings;
+        this.outputFormat = builder.outputFormat;
+        this.stripMetadata = builder.stripMetadata;
+        // 按块处理的路径沿用原图的量化表和采样方式并保留元数据，满足不了这两类设置
+        this.reencodeJpeg = builder.reencodeJpeg || !builder.encoderSettings.isJpegDefault() || builder.stripMetadata;
+        this.parallelism = builder.parallelism;
+        this.maxMemory = builder.maxMemory;
+    }
+    
+    public static Builder builder() {
+        return new Builder();
+    }
+    
+    /**
+     * 取命令行选项中的水印样式、编码参数、元数据处理方式、线程数和内存预算
+     *
+     * @param options 解析好的命令行选项
+     * @return 配置
+     */
+    public static WatermarkConfig fromOptions(CommandLineOptions options) {
+        return builder()
+            .fontSize(options.getFontSize())
+            .color(options.getColor())
+            .position(options.getPosition())
+            .template(options.getTemplate())
+            .encoderSettings(options.getEncoderSettings())
+            .stripMetadata(options.isStripMetadata())
+            .reencodeJpeg(options.isReencodeJpeg())
+            .parallelism(options.getParallelism())
+            .maxMemory(options.getMaxMemory())
+            .build();
+    }
+    
+    public int getFontSize() {
+        return fontSize;
+    }
+    
+    public Color getColor() {
+        return color;
+    }
+    
+    public WatermarkRenderer.WatermarkPosition getPosition() {
+        return position;
+    }
+    
+    /**
+     * @return 水印文本模板
+     */
+    public WatermarkTemplate getTemplate() {
+        return template;
+    }
+    
+    public EncoderSettings getEncoderSettings() {
+        return encoderSettings;
+    }
+    
+    /**
+     * @return 内存中处理时的输出格式（png/jpg/bmp/tiff），null表示与输入相同
+     */
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+    
+    public boolean isStripMetadata() {
+        return stripMetadata;
+    }
+    
+    public boolean isReencodeJpeg() {
+        return reencodeJpeg;
+    }
+    
+    /**
+     * @return 异步批量处理的线程数
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+    
+    /**
+     * @return 同时驻留的解码帧的内存预算（字节），0表示按JVM最大堆的默认比例
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+    
+    /**
+     * {@link WatermarkConfig} 的构建器，参数超出范围时立即抛出 {@link IllegalArgumentException}
+     */
+    public static final class Builder {
+        private int fontSize = 24;
+        private Color color = WatermarkRenderer.AUTO_COLOR;
+        private WatermarkRenderer.WatermarkPosition position = WatermarkRenderer.WatermarkPosition.BOTTOM_RIGHT;
+        private WatermarkTemplate template = WatermarkTemplate.DEFAULT;
+        private EncoderSettings encoderSettings = EncoderSettings.DEFAULT;
+        private String outputFormat;
+        private boolean stripMetadata;
+        private boolean reencodeJpeg;
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+        private long maxMemory;
+        
+        private Builder() {
+        }
+        
+        /**
+         * @param fontSize 字体大小 (1-200)
+         */
+        public Builder fontSize(int fontSize) {
+            if (fontSize <= 0 || fontSize > 200) {
+                throw new IllegalArgumentException("字体大小必须在1-200之间");
+            }
+            this.fontSize = fontSize;
+            return this;
+        }
+        
+        /**
+         * @param color 字体颜色，{@link WatermarkRenderer#AUTO_COLOR} 表示按水印处的背景亮度自动选择（默认）
+         */
+        public Builder color(Color color) {
+            this.color = require(color, "字体颜色");
+            return this;
+        }
+        
+        public Builder position(WatermarkRenderer.WatermarkPosition position) {
+            this.position = require(position, "水印位置");
+            return this;
+        }
+        
+        /**
+         * @param template 水印文本模板，默认 {@link WatermarkTemplate#DEFAULT} 只输出拍摄日期
+         */
+        public Builder template(WatermarkTemplate template) {
+            this.template = require(template, "水印模板");
+            return this;
+        }
+        
+        /**
+         * @param template 水印文本模板，如 "{date:yyyy/MM/dd} {time}"，在这里编译一次
+         * @throws IllegalArgumentException 如果模板不合法
+         */
+        public Builder template(String template) {
+            return template(WatermarkTemplate.compile(template));
+        }
+        
+        public Builder encoderSettings(EncoderSettings encoderSettings) {
+            this.encoderSettings = require(encoderSettings, "编码参数");
+            return this;
+        }
+        
+        /**
+         * @param outputFormat 内存中处理时的输出格式（png/jpg/jpeg/bmp/tiff/tif），null表示与输入相同；
+         *                     写文件时总是按输出文件的扩展名确定格式
+         */
+        public Builder outputFormat(String outputFormat) {
+            if (outputFormat == null) {
+                this.outputFormat = null;
+                return this;
+            }
+            String format = WatermarkRenderer.normalizeFormat(outputFormat);
+            if (!"png".equals(format) && !"jpg".equals(format) && !"bmp".equals(format) && !"tiff".equals(format)) {
+                throw new IllegalArgumentException("不支持的输出格式: " + outputFormat + "（可选 jpg、png、bmp、tiff）");
+            }
+            this.outputFormat = format;
+            return this;
+        }
+        
+        /**
+         * @param stripMetadata 为true时不把源图片的EXIF、ICC等元数据块写入输出
+         */
+        public Builder stripMetadata(boolean stripMetadata) {
+            this.stripMetadata = stripMetadata;
+            return this;
+        }
+        
+        /**
+         * @param reencodeJpeg 为true时JPEG总是完整解码再编码，不走只重新编码水印所在块的路径；
+         *                     设置了非默认的JPEG编码参数或不保留元数据时，构建时总是视为true
+         */
+        public Builder reencodeJpeg(boolean reencodeJpeg) {
+            this.reencodeJpeg = reencodeJpeg;
+            return this;
+        }
+        
+        /**
+         * @param parallelism 异步批量处理的线程数 (1-64)
+         */
+        public Builder parallelism(int parallelism) {
+            if (parallelism <= 0 || parallelism > 64) {
+                throw new IllegalArgumentException("线程数必须在1-64之间");
+            }
+            this.parallelism = parallelism;
+            return this;
+        }
+        
+        /**
+         * @param maxMemory 同时驻留的解码帧的内存预算（字节），0表示按JVM最大堆的默认比例
+         */
+        public Builder maxMemory(long maxMemory) {
+            if (maxMemory < 0) {
+                throw new IllegalArgumentException("内存上限不能为负数");
+            }
+            this.maxMemory = maxMemory;
+            return this;
+        }
+        
+        public WatermarkConfig build() {
+            return new WatermarkConfig(this);
+        }
+        
+        private static <T> T require(T value, String name) {
+            if (value == null) {
+                throw new IllegalArgumentException(name + "不能为空");
+            }
+            return value;
+        }
+    }
+}
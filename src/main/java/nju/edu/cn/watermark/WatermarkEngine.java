@@ -0,0 +1,379 @@
+package nju.edu.cn.watermark;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 可在程序中直接使用的水印引擎，不经过命令行和控制台
+ *
+ * <p>引擎按 {@link WatermarkConfig} 创建一次，之后在任意线程中并发调用：</p>
+ * <ul>
+ *   <li>内存中处理：输入为 {@code byte[]}、{@link ByteBuffer} 或 {@link InputStream}，
+ *       编码结果在 {@link WatermarkResult#getBytes()} 中，或直接写到调用方的 {@link OutputStream}</li>
+ *   <li>按路径处理：{@link #watermark(Path, Path)} 写出到目标文件，格式由扩展名决定，
+ *       先写同一目录下的临时文件再原子改名；JPEG到JPEG默认只重新编码水印所在的块</li>
+ *   <li>异步：{@link #watermarkAsync} 和 {@link #watermarkAll(Map)} 在引擎自己的固定线程池中处理，
+ *       返回 {@link CompletableFuture}</li>
+ * </ul>
+ *
+ * <p>创建时预热字体、字形缓存和各格式的编解码器。同步调用在调用方线程中执行，
+ * 编解码器取自各线程的 {@link ImageCodecPool}；所有调用共用一个 {@link MemoryBudget}，
+ * 同时解码的大图不会超出预算。每次调用都返回 {@link WatermarkResult}，失败和跳过不抛出异常，
+ * 也不向控制台输出。用完后调用 {@link #close()} 停止线程池。</p>
+ */
+public class WatermarkEngine implements AutoCloseable {
+    
+    private static final double DEFAULT_MEMORY_FRACTION = 0.6;
+    
+    private final WatermarkConfig config;
+    private final MemoryBudget memoryBudget;
+    private final long maxDecodableBytes = (long) (Runtime.getRuntime().maxMemory() * 0.9);
+    private final ExecutorService executor;
+    private final AtomicLong tempCounter = new AtomicLong();
+    
+    /**
+     * 创建引擎并预热
+     *
+     * @param config 配置
+     */
+    public WatermarkEngine(WatermarkConfig config) {
+        this.config = config;
+        this.memoryBudget = config.getMaxMemory() > 0
+            ? new MemoryBudget(config.getMaxMemory())
+            : MemoryBudget.fromMaxHeap(DEFAULT_MEMORY_FRACTION);
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(config.getParallelism(), runnable -> {
+            Thread thread = new Thread(runnable, "watermark-engine-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        BatchPipeline.warmUp(config.getFontSize(), config.getColor(), config.getPosition());
+    }
+    
+    public WatermarkConfig getConfig() {
+        return config;
+    }
+    
+    /**
+     * 处理内存中的图片
+     *
+     * @param image 图片文件的全部字节，不会被修改
+     * @return 结果，成功时带有编码后的字节
+     */
+    public WatermarkResult watermark(byte[] image) {
+        return watermark(ByteBuffer.wrap(image));
+    }
+    
+    /**
+     * 处理内存中的图片，直接从缓冲区解码，不复制输入
+     *
+     * @param image 从 position 到 limit 为图片文件的字节；缓冲区的位置不会改变
+     * @return 结果，成功时带有编码后的字节
+     */
+    public WatermarkResult watermark(ByteBuffer image) {
+        try (ImageInputStream stream = new ByteBufferImageInputStream(image.slice())) {
+            return encodeToBytes(stream);
+        } catch (IOException e) {
+            return failure(e);
+        }
+    }
+    
+    /**
+     * 处理流中的图片，输入只在内存中缓存一次
+     *
+     * @param image 图片流，读到结尾，不会被关闭
+     * @return 结果，成功时带有编码后的字节
+     */
+    public WatermarkResult watermark(InputStream image) {
+        try (ImageInputStream stream = new MemoryCacheImageInputStream(image)) {
+            return encodeToBytes(stream);
+        } catch (IOException e) {
+            return failure(e);
+        }
+    }
+    
+    /**
+     * 处理流中的图片，编码结果直接写到输出流，不在内存中保留
+     *
+     * <p>只有结果为成功时输出流中才有内容；编码中途失败时输出流中可能已有部分数据。</p>
+     *
+     * @param image 图片流，不会被关闭
+     * @param output 输出流，不会被关闭
+     * @return 结果，不带编码后的字节
+     */
+    public WatermarkResult watermark(InputStream image, OutputStream output) {
+        try (ImageInputStream stream = new MemoryCacheImageInputStream(image)) {
+            return process(stream, config.getOutputFormat(), (rendered, format, metadata) -> {
+                try (ImageOutputStream out = new MemoryCacheImageOutputStream(output)) {
+                    config.getEncoderSettings().write(rendered, format, out, metadata);
+                }
+            });
+        } catch (IOException e) {
+            return failure(e);
+        }
+    }
+    
+    /**
+     * 处理图片文件并写出到目标文件，目标所在目录不存在时创建
+     *
+     * <p>输出格式由目标文件的扩展名决定。输出先写到同一目录下的临时文件，成功后原子改名，
+     * 已有的目标文件被替换；跳过或失败时目标文件保持原样。</p>
+     *
+     * @param source 源图片文件
+     * @param target 输出文件
+     * @return 结果，成功时带有输出文件
+     */
+    public WatermarkResult watermark(Path source, Path target) {
+        String format = WatermarkRenderer.getImageFormat(target.getFileName().toString());
+        File sourceFile = source.toFile();
+        Path dir = target.toAbsolutePath().getParent();
+        File temp = dir.resolve(OutputLayout.TEMP_PREFIX + tempCounter.incrementAndGet() + "-" + target.getFileName())
+            .toFile();
+        try {
+            WatermarkResult result;
+            try (ImageInputStream stream = ImageIO.createImageInputStream(sourceFile)) {
+                if (stream == null) {
+                    return WatermarkResult.failed("处理失败: 无法读取文件 " + source, null);
+                }
+                Files.createDirectories(dir);
+                result = process(stream, format, new Sink() {
+                    
+                    @Override
+                    public boolean writeWithoutDecoding(String watermarkText)
+                            throws IOException, InterruptedException {
+                        if (config.isReencodeJpeg() || !"jpg".equals(format)) {
+                            return false;
+                        }
+                        // 与批处理相同：只重新编码水印所在的块，非JPEG或布局不受支持时返回false
+                        long granted = memoryBudget.acquire(sourceFile.length() * 2);
+                        try {
+                            return JpegBlockWatermarker.watermark(sourceFile, temp, watermarkText,
+                                config.getFontSize(), config.getColor(), config.getPosition());
+                        } finally {
+                            memoryBudget.release(granted);
+                        }
+                    }
+                    
+                    @Override
+                    public void write(RenderedImage image, String outputFormat, SourceMetadata metadata)
+                            throws IOException {
+                        WatermarkRenderer.writeImage(image, temp, config.getEncoderSettings(), metadata);
+                    }
+                });
+            }
+            if (!result.isSuccess()) {
+                return result;
+            }
+            OutputLayout.commit(temp, target.toFile());
+            return result.withOutput(target);
+        } catch (IOException e) {
+            return failure(e);
+        } finally {
+            OutputLayout.discard(temp);
+        }
+    }
+    
+    /**
+     * 在引擎的线程池中处理内存中的图片
+     *
+     * @param image 图片文件的全部字节，处理完成前不能修改
+     * @return 结果的future，不会以异常完成
+     */
+    public CompletableFuture<WatermarkResult> watermarkAsync(byte[] image) {
+        return CompletableFuture.supplyAsync(() -> watermark(image), executor);
+    }
+    
+    /**
+     * 在引擎的线程池中处理图片文件
+     *
+     * @param source 源图片文件
+     * @param target 输出文件
+     * @return 结果的future，不会以异常完成
+     */
+    public CompletableFuture<WatermarkResult> watermarkAsync(Path source, Path target) {
+        return CompletableFuture.supplyAsync(() -> watermark(source, target), executor);
+    }
+    
+    /**
+     * 批量处理图片文件，各文件在引擎的线程池中并行处理
+     *
+     * @param jobs 源文件到输出文件，不同源文件的输出文件不能相同
+     * @return 全部完成后得到的结果，顺序与 jobs 的迭代顺序相同
+     */
+    public CompletableFuture<List<WatermarkResult>> watermarkAll(Map<Path, Path> jobs) {
+        List<CompletableFuture<WatermarkResult>> futures = new ArrayList<>(jobs.size());
+        for (Map.Entry<Path, Path> job : jobs.entrySet()) {
+            futures.add(watermarkAsync(job.getKey(), job.getValue()));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<WatermarkResult> results = new ArrayList<>(futures.size());
+            for (CompletableFuture<WatermarkResult> future : futures) {
+                results.add(future.join());
+            }
+            return results;
+        });
+    }
+    
+    /**
+     * 停止接受异步任务，等待已提交的任务完成；同步调用不受影响
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // 继续等待已提交的任务
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private WatermarkResult encodeToBytes(ImageInputStream stream) {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        WatermarkResult result = process(stream, config.getOutputFormat(), (image, format, metadata) -> {
+            try (ImageOutputStream out = new MemoryCacheImageOutputStream(encoded)) {
+                config.getEncoderSettings().write(image, format, out, metadata);
+            }
+        });
+        return result.isSuccess() ? result.withData(encoded.toByteArray()) : result;
+    }
+    
+    /**
+     * 读取EXIF、解码、绘制水印并交给 sink 编码；与HTTP服务相同，EXIF从流的开头读取后回到起点解码
+     *
+     * @param stream 位于起点的图片流
+     * @param requestedFormat 输出格式，null表示与输入相同
+     * @param sink 写出方式
+     */
+    private WatermarkResult process(ImageInputStream stream, String requestedFormat, Sink sink) {
+        try {
+            ImageReader reader = ImageCodecPool.getReader(stream);
+            if (reader == null) {
+                return WatermarkResult.failed("处理失败: 无法识别的图片格式", null);
+            }
+            ExifReader.ExifInfo exif = ExifReader.readExif(stream,
+                !config.isStripMetadata() && !"bmp".equals(requestedFormat));
+            String watermarkText = config.getTemplate().format(exif.getCaptureTime());
+            if (watermarkText == null) {
+                return WatermarkResult.skipped("跳过（无EXIF拍摄时间）");
+            }
+            if (sink.writeWithoutDecoding(watermarkText)) {
+                return WatermarkResult.success(watermarkText, requestedFormat);
+            }
+            
+            long granted = 0;
+            try {
+                reader.setInput(stream, true, true);
+                String format = requestedFormat != null
+                    ? requestedFormat : WatermarkRenderer.normalizeFormat(reader.getFormatName());
+                long estimate = WatermarkRenderer.estimateFootprint(reader, format);
+                if (estimate > maxDecodableBytes) {
+                    return WatermarkResult.failed(String.format("处理失败: 解码约需 %dMB 内存，超过JVM最大堆 %dMB",
+                        estimate >> 20, Runtime.getRuntime().maxMemory() >> 20), null);
+                }
+                granted = memoryBudget.acquire(estimate);
+                BufferedImage image = reader.read(0, reader.getDefaultReadParam());
+                SourceMetadata metadata = exif.getMetadata() == null
+                    ? null : exif.getMetadata().forDecodedImage(image.getColorModel());
+                image = WatermarkRenderer.renderWatermark(image, format, watermarkText, config.getFontSize(),
+                    config.getColor(), config.getPosition(), WatermarkRenderer.MARGIN,
+                    SourceMetadata.outputOrientation(metadata, format));
+                sink.write(image, format, metadata);
+                return WatermarkResult.success(watermarkText, format);
+            } finally {
+                reader.reset();
+                memoryBudget.release(granted);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failure(e);
+        } catch (Exception | OutOfMemoryError e) {
+            return failure(e);
+        }
+    }
+    
+    private static WatermarkResult failure(Throwable e) {
+        String reason = e instanceof OutOfMemoryError ? "内存不足 (" + e.getMessage() + ")" : e.getMessage();
+        return WatermarkResult.failed("处理失败: " + reason, e);
+    }
+    
+    /**
+     * 绘制了水印的图片的写出方式
+     */
+    private interface Sink {
+        
+        /**
+         * 不解码整帧直接写出，例如JPEG只重新编码水印所在的块
+         *
+         * @return 已写出返回true；不支持时返回false，之后走完整解码路径
+         */
+        default boolean writeWithoutDecoding(String watermarkText) throws IOException, InterruptedException {
+            return false;
+        }
+        
+        void write(RenderedImage image, String format, SourceMetadata metadata) throws IOException;
+    }
+    
+    /**
+     * 直接读取 {@link ByteBuffer} 的图片流，不像 {@link MemoryCacheImageInputStream} 那样再缓存一份
+     */
+    private static final class ByteBufferImageInputStream extends ImageInputStreamImpl {
+        private final ByteBuffer buffer;
+        
+        ByteBufferImageInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        @Override
+        public int read() {
+            if (streamPos >= buffer.limit()) {
+                return -1;
+            }
+            bitOffset = 0;
+            return buffer.get((int) streamPos++) & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (streamPos >= buffer.limit()) {
+                return len == 0 ? 0 : -1;
+            }
+            bitOffset = 0;
+            int count = (int) Math.min(len, buffer.limit() - streamPos);
+            buffer.get((int) streamPos, b, off, count);
+            streamPos += count;
+            return count;
+        }
+        
+        @Override
+        public long length() {
+            return buffer.limit();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package nju.edu.cn.watermark;
+
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP水印服务的压测客户端
+ *
+ * <p>以固定并发度反复向服务POST同一张图片，结束后打印吞吐量和延迟分布。
+ * 图片只读入内存一次，每个请求在独立的虚拟线程中发出，响应体只统计长度。</p>
+ *
+ * <pre>
+ * java -cp photo-watermark.jar nju.edu.cn.watermark.WatermarkLoadClient -f photo.jpg -c 32 -n 2000
+ * </pre>
+ */
+public class WatermarkLoadClient {
+    
+    public static void main(String[] args) throws Exception {
+        Options options = createOptions();
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println("参数解析错误: " + e.getMessage());
+            new HelpFormatter().printHelp("java -cp photo-watermark.jar nju.edu.cn.watermark.WatermarkLoadClient", options);
+            System.exit(1);
+            return;
+        }
+        
+        File file = new File(cmd.getOptionValue("f"));
+        URI uri;
+        int concurrency;
+        int requests;
+        try {
+            String query = cmd.getOptionValue("q");
+            uri = URI.create(cmd.getOptionValue("u", "http://127.0.0.1:8080/watermark")
+                + (query == null ? "" : "?" + query));
+            concurrency = Integer.parseInt(cmd.getOptionValue("c", "16"));
+            requests = Integer.parseInt(cmd.getOptionValue("n", "1000"));
+        } catch (IllegalArgumentException e) {
+            System.err.println("错误: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (concurrency <= 0 || requests <= 0) {
+            System.err.println("错误: 并发数和请求数必须大于0");
+            System.exit(1);
+            return;
+        }
+        byte[] body;
+        try {
+            body = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            System.err.println("无法读取图片文件: " + file + " - " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        
+        System.out.println("目标: " + uri);
+        System.out.println("图片: " + file.getName() + " (" + body.length + " 字节)，并发 " + concurrency
+            + "，请求 " + requests + " 个");
+        
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(executor)
+                .build();
+            
+            // 预热连接和服务端编解码器，不计入结果
+            int warmup = Math.min(requests, concurrency);
+            Semaphore permits = new Semaphore(concurrency);
+            for (int i = 0; i < warmup; i++) {
+                permits.acquire();
+                executor.submit(() -> {
+                    try {
+                        send(client, uri, body);
+                    } catch (Exception e) {
+                        // 预热失败在正式请求中报告
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+            permits.acquire(concurrency);
+            permits.release(concurrency);
+            
+            LatencyHistogram latency = new LatencyHistogram();
+            LongAdder failures = new LongAdder();
+            AtomicReference<String> firstFailure = new AtomicReference<>();
+            AtomicLong responseBytes = new AtomicLong();
+            long start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                permits.acquire();
+                executor.submit(() -> {
+                    long requestStart = System.nanoTime();
+                    try {
+                        HttpResponse<byte[]> response = send(client, uri, body);
+                        if (response.statusCode() == 200) {
+                            latency.record(System.nanoTime() - requestStart);
+                            responseBytes.addAndGet(response.body().length);
+                        } else {
+                            failures.increment();
+                            firstFailure.compareAndSet(null, "HTTP " + response.statusCode() + " "
+                                + new String(response.body(), StandardCharsets.UTF_8).trim());
+                        }
+                    } catch (Exception e) {
+                        failures.increment();
+                        firstFailure.compareAndSet(null, e.toString());
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+            permits.acquire(concurrency);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            
+            long completed = latency.getCount();
+            System.out.println("\n=== 压测结果 ===");
+            System.out.println("成功: " + completed + " 个");
+            System.out.println("失败: " + failures.sum() + " 个"
+                + (firstFailure.get() == null ? "" : "，首个失败: " + firstFailure.get()));
+            System.out.println(String.format("耗时: %.2f 秒，吞吐量: %.1f 请求/秒，平均响应 %d 字节",
+                seconds, completed / seconds, completed == 0 ? 0 : responseBytes.get() / completed));
+            if (completed > 0) {
+                System.out.println(String.format("延迟: p50 %.1fms  p95 %.1fms  p99 %.1fms  最大 %.1fms",
+                    latency.getPercentileNanos(0.50) / 1e6, latency.getPercentileNanos(0.95) / 1e6,
+                    latency.getPercentileNanos(0.99) / 1e6, latency.getMaxNanos() / 1e6));
+            }
+        }
+    }
+    
+    private static HttpResponse<byte[]> send(HttpClient client, URI uri, byte[] body)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+            .header("Content-Type", "application/octet-stream")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+            .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    }
+    
+    private static Options createOptions() {
+        Options options = new Options();
+        
+        options.addOption(Option.builder("f")
+                .longOpt("file")
+                .hasArg()
+                .required()
+                .desc("上传的图片文件（必需）")
+                .build());
+        
+        options.addOption(Option.builder("u")
+                .longOpt("url")
+                .hasArg()
+                .desc("服务地址 (默认: http://127.0.0.1:8080/watermark)")
+                .build());
+        
+        options.addOption(Option.builder("q")
+                .longOpt("query")
+                .hasArg()
+                .desc("附加的查询参数，如 size=30&color=red")
+                .build());
+        
+        options.addOption(Option.builder("c")
+                .longOpt("concurrency")
+                .hasArg()
+                .desc("同时在途的请求数 (默认: 16)")
+                .build());
+        
+        options.addOption(Option.builder("n")
+                .longOpt("requests")
+                .hasArg()
+                .desc("请求总数，不含预热 (默认: 1000)")
+                .build());
+        
+        return options;
+    }
+}
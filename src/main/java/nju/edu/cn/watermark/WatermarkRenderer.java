@@ -1,16 +1,56 @@
 package nju.edu.cn.watermark;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 /**
  * 水印渲染器，用于在图片上绘制文本水印
  */
 public class WatermarkRenderer {
     
+    /** 水印与图片边缘的默认距离（像素） */
+    static final int MARGIN = 20;
+    
+    /**
+     * 自动颜色（{@code -c auto}）：按水印区域的平均亮度选择文字和阴影颜色。
+     * 文字颜色不可能是全透明的，用它作为标记不会与任何实际颜色冲突
+     */
+    public static final Color AUTO_COLOR = new Color(0, 0, 0, 0);
+    
+    /** 自动颜色下，水印区域的平均亮度达到此值时改用深色文字 */
+    static final int AUTO_DARK_THRESHOLD = 160;
+    private static final Color AUTO_DARK_TEXT = new Color(32, 32, 32);
+    private static final Color AUTO_LIGHT_SHADOW = new Color(255, 255, 255, 100);
+    
+    /** 采样亮度时水平和垂直方向最多取的点数，整个水印区域最多读取 32×8 个像素 */
+    private static final int LUMINANCE_COLUMNS = 32;
+    private static final int LUMINANCE_ROWS = 8;
+    
     /**
      * 水印位置枚举
      */
@@ -103,71 +143,657 @@ public class WatermarkRenderer {
      */
     public static void addWatermark(File inputFile, File outputFile, String watermarkText, 
                                   int fontSize, Color color, WatermarkPosition position) throws IOException {
-        
-        // 读取原始图片
-        BufferedImage originalImage = ImageIO.read(inputFile);
-        if (originalImage == null) {
-            throw new IOException("无法读取图片文件: " + inputFile.getName());
+        BufferedImage originalImage = readImage(inputFile);
+        String format = getImageFormat(outputFile.getName());
+        BufferedImage watermarkedImage = renderWatermark(originalImage, format, watermarkText, fontSize, color, position);
+        writeImage(watermarkedImage, outputFile);
+    }
+    
+    /**
+     * 解码图片文件（流水线的解码阶段）
+     * 
+     * @param inputFile 输入图片文件
+     * @return 解码后的图片
+     * @throws IOException 如果文件无法解码
+     */
+    public static BufferedImage readImage(File inputFile) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(inputFile)) {
+            ImageReader reader = stream == null ? null : ImageCodecPool.getReader(stream);
+            if (reader == null) {
+                throw new IOException("无法读取图片文件: " + inputFile.getName());
+            }
+            try {
+                reader.setInput(stream, true, true);
+                return reader.read(0, reader.getDefaultReadParam());
+            } finally {
+                reader.reset();
+            }
         }
+    }
+    
+    /**
+     * 在已解码的图片上绘制水印（流水线的绘制阶段）
+     * 
+     * <p>解码结果的像素类型可以直接绘制、且输出格式能保存该类型时，水印直接画在解码帧上，
+     * 不再复制整帧；否则先转换为 TYPE_INT_RGB。水印图像由 {@link GlyphSpriteCache} 拼出，
+     * 这里只做一次带透明度的图像拷贝。</p>
+     * 
+     * @param originalImage 原始图片，可能被直接修改
+     * @param format 输出格式（png/jpg/bmp/tiff）
+     * @param watermarkText 水印文本
+     * @param fontSize 字体大小
+     * @param color 字体颜色
+     * @param position 水印位置
+     * @return 绘制了水印的图片，可能就是传入的 originalImage
+     */
+    public static BufferedImage renderWatermark(BufferedImage originalImage, String format, String watermarkText,
+                                                int fontSize, Color color, WatermarkPosition position) {
+        return renderWatermark(originalImage, format, watermarkText, fontSize, color, position, MARGIN);
+    }
+    
+    /**
+     * 按指定边距在已解码的图片上绘制水印，用于按比例缩小的预览
+     * 
+     * @param margin 水印与图片边缘的距离（像素）
+     * @see #renderWatermark(BufferedImage, String, String, int, Color, WatermarkPosition)
+     */
+    public static BufferedImage renderWatermark(BufferedImage originalImage, String format, String watermarkText,
+                                                int fontSize, Color color, WatermarkPosition position, int margin) {
+        return renderWatermark(originalImage, format, watermarkText, fontSize, color, position, margin, 1);
+    }
+    
+    /**
+     * 按EXIF方向绘制水印：输出带着源图片的方向标签、按存储方向排列像素时，
+     * 水印在查看器旋转后的画面中位于指定位置且保持正向
+     * 
+     * @param margin 水印与图片边缘的距离（像素）
+     * @param orientation 输出文件的EXIF方向 (1-8)，见 {@link SourceMetadata#outputOrientation}
+     * @see #renderWatermark(BufferedImage, String, String, int, Color, WatermarkPosition)
+     */
+    public static BufferedImage renderWatermark(BufferedImage originalImage, String format, String watermarkText,
+                                                int fontSize, Color color, WatermarkPosition position, int margin,
+                                                int orientation) {
+        BufferedImage watermarkedImage = requiresConversion(originalImage, format)
+            ? convertToRgb(originalImage)
+            : originalImage;
         
-        // 创建新的BufferedImage用于绘制水印
-        BufferedImage watermarkedImage = new BufferedImage(
-            originalImage.getWidth(), 
-            originalImage.getHeight(), 
-            BufferedImage.TYPE_INT_RGB
+        WatermarkStamp stamp = createStamp(
+            originalImage.getWidth(),
+            originalImage.getHeight(),
+            watermarkText,
+            fontSize,
+            color,
+            position,
+            margin,
+            -1,
+            orientation
         );
+        if (isAutoColor(color)) {
+            // 自动颜色的两种水印尺寸相同，按默认水印的位置采样后再换成合适的一种
+            int luminance = sampleLuminance(originalImage, stamp.getBounds());
+            stamp = createStamp(originalImage.getWidth(), originalImage.getHeight(), watermarkText, fontSize,
+                color, position, margin, luminance, orientation);
+        }
         
-        // 获取Graphics2D对象
         Graphics2D g2d = watermarkedImage.createGraphics();
+        g2d.drawImage(stamp.getImage(), stamp.getX(), stamp.getY(), null);
+        g2d.dispose();
         
-        // 绘制原始图片
-        g2d.drawImage(originalImage, 0, 0, null);
+        return watermarkedImage;
+    }
+    
+    /**
+     * 由同一个解码帧生成多个输出版本并分别绘制水印（流水线的绘制阶段）
+     *
+     * <p>缩小的版本按长边从大到小依次生成，每个都从上一个还没有绘制水印的结果继续逐级缩小，
+     * 较小的版本不必再从整帧缩起。所有版本都缩放完之后才绘制水印；共用同一帧的版本
+     * （原尺寸版本、源图本来就小于长边上限的版本）先各自复制一份，水印不会重复叠加。
+     * 每个版本的字体大小由 {@link Rendition#fontSizeFor} 按它的尺寸确定。</p>
+     *
+     * @param decodedImage 解码帧，可能被直接修改
+     * @param format 输出格式（png/jpg/bmp/tiff）
+     * @param watermarkText 水印文本
+     * @param renditions 输出版本
+     * @param fontSize 命令行指定的字体大小
+     * @param color 字体颜色
+     * @param position 水印位置
+     * @param orientation 输出文件的EXIF方向 (1-8)，见 {@link SourceMetadata#outputOrientation}
+     * @return 与 renditions 一一对应的绘制了水印的图片
+     */
+    public static BufferedImage[] renderRenditions(BufferedImage decodedImage, String format, String watermarkText,
+                                                   List<Rendition> renditions, int fontSize, Color color,
+                                                   WatermarkPosition position, int orientation) {
+        int count = renditions.size();
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        // 原尺寸（长边上限为0）最先，其余按长边从大到小
+        Arrays.sort(order, (a, b) -> Integer.compare(
+            edgeOrder(renditions.get(b)), edgeOrder(renditions.get(a))));
         
-        // 设置抗锯齿
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        BufferedImage[] images = new BufferedImage[count];
+        BufferedImage previous = decodedImage;
+        for (int index : order) {
+            Rendition rendition = renditions.get(index);
+            if (rendition.isScaled(previous.getWidth(), previous.getHeight())) {
+                previous = rendition.downscale(previous);
+            }
+            images[index] = previous;
+        }
         
-        // 设置字体
-        Font font = new Font("微软雅黑", Font.BOLD, fontSize);
-        g2d.setFont(font);
+        Set<BufferedImage> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < count; i++) {
+            if (!used.add(images[i])) {
+                images[i] = copyImage(images[i]);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            BufferedImage image = images[i];
+            images[i] = renderWatermark(image, format, watermarkText,
+                renditions.get(i).fontSizeFor(image.getWidth(), image.getHeight(), fontSize), color, position,
+                MARGIN, orientation);
+        }
+        return images;
+    }
+    
+    private static int edgeOrder(Rendition rendition) {
+        return rendition.getMaxEdge() == 0 ? Integer.MAX_VALUE : rendition.getMaxEdge();
+    }
+    
+    /**
+     * 复制一份像素类型相同的图片
+     */
+    private static BufferedImage copyImage(BufferedImage image) {
+        ColorModel colorModel = image.getColorModel();
+        return new BufferedImage(colorModel, image.copyData(null), colorModel.isAlphaPremultiplied(), null);
+    }
+    
+    /**
+     * 预先渲染好的水印：透明背景上已经画好阴影和文字，可以直接按位置叠加到图片上
+     */
+    public static final class WatermarkStamp {
+        private final BufferedImage image;
+        private final int x;
+        private final int y;
         
-        // 获取字体度量
-        FontMetrics fm = g2d.getFontMetrics();
-        int textWidth = fm.stringWidth(watermarkText);
-        int textHeight = fm.getHeight();
+        WatermarkStamp(BufferedImage image, int x, int y) {
+            this.image = image;
+            this.x = x;
+            this.y = y;
+        }
         
-        // 计算水印位置
-        Point watermarkPosition = calculateWatermarkPosition(
-            originalImage.getWidth(), 
-            originalImage.getHeight(), 
-            textWidth, 
-            textHeight, 
-            position
-        );
+        /**
+         * @return TYPE_INT_ARGB 的水印图像
+         */
+        public BufferedImage getImage() {
+            return image;
+        }
         
-        // 添加阴影效果（可选）
-        g2d.setColor(new Color(0, 0, 0, 100)); // 半透明黑色阴影
-        g2d.drawString(watermarkText, watermarkPosition.x + 2, watermarkPosition.y + 2);
+        /**
+         * @return 水印图像左上角在目标图片中的横坐标，可能为负
+         */
+        public int getX() {
+            return x;
+        }
         
-        // 绘制主要文本
-        g2d.setColor(color);
-        g2d.drawString(watermarkText, watermarkPosition.x, watermarkPosition.y);
+        /**
+         * @return 水印图像左上角在目标图片中的纵坐标，可能为负
+         */
+        public int getY() {
+            return y;
+        }
         
-        // 释放Graphics2D资源
-        g2d.dispose();
+        /**
+         * @return 水印在目标图片坐标系中覆盖的矩形
+         */
+        public Rectangle getBounds() {
+            return new Rectangle(x, y, image.getWidth(), image.getHeight());
+        }
         
-        // 保存图片
+        /**
+         * 把按显示方向定位的水印换算到像素的存储方向
+         *
+         * <p>EXIF方向描述的是存储的像素如何变换成显示的画面：2、4为水平、垂直翻转，3为旋转180度，
+         * 6、8为顺时针旋转90、270度，5、7为沿主、副对角线翻转。这里逐个像素做相反的变换，
+         * 查看器按方向标签显示时，水印恢复为正向。</p>
+         *
+         * @param orientation EXIF方向 (1-8)
+         * @param storedWidth 按存储方向的图片宽度
+         * @param storedHeight 按存储方向的图片高度
+         * @return 存储方向上的水印；方向为1时返回自身
+         */
+        WatermarkStamp toStored(int orientation, int storedWidth, int storedHeight) {
+            if (orientation <= 1 || orientation > 8) {
+                return this;
+            }
+            int width = image.getWidth();
+            int height = image.getHeight();
+            boolean transposed = orientation >= 5;
+            int storedStampWidth = transposed ? height : width;
+            int storedStampHeight = transposed ? width : height;
+            // 显示画面中的水印矩形在存储方向上的左上角
+            int originX;
+            int originY;
+            switch (orientation) {
+                case 2:
+                    originX = storedWidth - x - width;
+                    originY = y;
+                    break;
+                case 3:
+                    originX = storedWidth - x - width;
+                    originY = storedHeight - y - height;
+                    break;
+                case 4:
+                    originX = x;
+                    originY = storedHeight - y - height;
+                    break;
+                case 5:
+                    originX = y;
+                    originY = x;
+                    break;
+                case 6:
+                    originX = y;
+                    originY = storedHeight - x - width;
+                    break;
+                case 7:
+                    originX = storedWidth - y - height;
+                    originY = storedHeight - x - width;
+                    break;
+                default:
+                    originX = storedWidth - y - height;
+                    originY = x;
+                    break;
+            }
+            
+            int[] source = image.getRGB(0, 0, width, height, null, 0, width);
+            int[] stored = new int[storedStampWidth * storedStampHeight];
+            for (int row = 0; row < storedStampHeight; row++) {
+                int storedY = originY + row;
+                for (int column = 0; column < storedStampWidth; column++) {
+                    int storedX = originX + column;
+                    // 存储方向上的像素在显示画面中的位置
+                    int displayX;
+                    int displayY;
+                    switch (orientation) {
+                        case 2:
+                            displayX = storedWidth - 1 - storedX;
+                            displayY = storedY;
+                            break;
+                        case 3:
+                            displayX = storedWidth - 1 - storedX;
+                            displayY = storedHeight - 1 - storedY;
+                            break;
+                        case 4:
+                            displayX = storedX;
+                            displayY = storedHeight - 1 - storedY;
+                            break;
+                        case 5:
+                            displayX = storedY;
+                            displayY = storedX;
+                            break;
+                        case 6:
+                            displayX = storedHeight - 1 - storedY;
+                            displayY = storedX;
+                            break;
+                        case 7:
+                            displayX = storedHeight - 1 - storedY;
+                            displayY = storedWidth - 1 - storedX;
+                            break;
+                        default:
+                            displayX = storedY;
+                            displayY = storedWidth - 1 - storedX;
+                            break;
+                    }
+                    stored[row * storedStampWidth + column] = source[(displayY - y) * width + displayX - x];
+                }
+            }
+            BufferedImage storedImage = new BufferedImage(storedStampWidth, storedStampHeight,
+                BufferedImage.TYPE_INT_ARGB);
+            storedImage.setRGB(0, 0, storedStampWidth, storedStampHeight, stored, 0, storedStampWidth);
+            return new WatermarkStamp(storedImage, originX, originY);
+        }
+    }
+    
+    /**
+     * 为指定尺寸的图片渲染水印，字形取自 {@link GlyphSpriteCache}
+     * 
+     * <p>{@link #renderWatermark} 和不解码整帧图片的写出路径（例如只重新编码水印所在块的JPEG路径）
+     * 共用这一结果，两条路径的水印效果一致。</p>
+     * 
+     * @param imageWidth 目标图片宽度
+     * @param imageHeight 目标图片高度
+     * @param watermarkText 水印文本
+     * @param fontSize 字体大小
+     * @param color 字体颜色
+     * @param position 水印位置
+     * @return 水印图像及其位置
+     */
+    public static WatermarkStamp createStamp(int imageWidth, int imageHeight, String watermarkText,
+                                             int fontSize, Color color, WatermarkPosition position) {
+        return createStamp(imageWidth, imageHeight, watermarkText, fontSize, color, position, MARGIN);
+    }
+    
+    /**
+     * 按指定边距为指定尺寸的图片渲染水印，用于按比例缩小的预览
+     * 
+     * @param margin 水印与图片边缘的距离（像素）
+     * @see #createStamp(int, int, String, int, Color, WatermarkPosition)
+     */
+    public static WatermarkStamp createStamp(int imageWidth, int imageHeight, String watermarkText,
+                                             int fontSize, Color color, WatermarkPosition position, int margin) {
+        // 自动颜色在不知道背景亮度时使用白色文字、黑色阴影
+        return GlyphSpriteCache.shared().createStamp(imageWidth, imageHeight, watermarkText, fontSize,
+            isAutoColor(color) ? Color.WHITE : color, GlyphSpriteCache.DEFAULT_SHADOW, position, margin);
+    }
+    
+    /**
+     * 按水印区域的平均亮度渲染水印：自动颜色在亮的背景上使用深色文字和浅色阴影，其他背景上与默认相同；
+     * 指定了颜色时忽略亮度
+     * 
+     * @param luminance 水印区域的平均亮度 (0-255)，见 {@link #sampleLuminance(BufferedImage, Rectangle)}
+     * @see #createStamp(int, int, String, int, Color, WatermarkPosition, int)
+     */
+    static WatermarkStamp createStamp(int imageWidth, int imageHeight, String watermarkText, int fontSize,
+                                      Color color, WatermarkPosition position, int margin, int luminance) {
+        if (isAutoColor(color) && luminance >= AUTO_DARK_THRESHOLD) {
+            return GlyphSpriteCache.shared().createStamp(imageWidth, imageHeight, watermarkText, fontSize,
+                AUTO_DARK_TEXT, AUTO_LIGHT_SHADOW, position, margin);
+        }
+        return createStamp(imageWidth, imageHeight, watermarkText, fontSize, color, position, margin);
+    }
+    
+    /**
+     * 按EXIF方向渲染水印：在查看器显示的画面中定位，再换算到像素的存储方向
+     * 
+     * @param imageWidth 按存储方向的图片宽度
+     * @param imageHeight 按存储方向的图片高度
+     * @param luminance 水印区域的平均亮度 (0-255)，还不知道时为-1
+     * @param orientation EXIF方向 (1-8)，见 {@link SourceMetadata#outputOrientation}
+     * @see #createStamp(int, int, String, int, Color, WatermarkPosition, int, int)
+     */
+    static WatermarkStamp createStamp(int imageWidth, int imageHeight, String watermarkText, int fontSize,
+                                      Color color, WatermarkPosition position, int margin, int luminance,
+                                      int orientation) {
+        // 5-8 旋转了90度，显示画面的宽高与存储方向相反
+        boolean transposed = orientation >= 5 && orientation <= 8;
+        WatermarkStamp stamp = createStamp(transposed ? imageHeight : imageWidth,
+            transposed ? imageWidth : imageHeight, watermarkText, fontSize, color, position, margin, luminance);
+        return stamp.toStored(orientation, imageWidth, imageHeight);
+    }
+    
+    /**
+     * @return 是否为 {@link #AUTO_COLOR}
+     */
+    public static boolean isAutoColor(Color color) {
+        return AUTO_COLOR.equals(color);
+    }
+    
+    /**
+     * 按固定间隔采样区域内像素的平均亮度，不扫描整幅图片
+     * 
+     * <p>区域在水平和垂直方向上各最多取 {@value #LUMINANCE_COLUMNS}、{@value #LUMINANCE_ROWS} 个点。
+     * 常见的 TYPE_INT_RGB/ARGB 和按字节交错存储的类型直接读取像素数组，其余类型逐点调用 getRGB。
+     * 亮度按 (77R + 150G + 29B) / 256 以整数计算，不考虑透明度。</p>
+     * 
+     * @param image 图片
+     * @param area 采样区域，超出图片的部分被忽略
+     * @return 平均亮度 (0-255)；区域与图片不相交时为0
+     */
+    static int sampleLuminance(BufferedImage image, Rectangle area) {
+        Rectangle bounds = area.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+        if (bounds.isEmpty()) {
+            return 0;
+        }
+        int stepX = Math.max(1, bounds.width / LUMINANCE_COLUMNS);
+        int stepY = Math.max(1, bounds.height / LUMINANCE_ROWS);
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        // 子图的栅格与父图共用数组，坐标需要按平移量换算
+        int translateX = -raster.getSampleModelTranslateX();
+        int translateY = -raster.getSampleModelTranslateY();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                int scanline = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+                return sampleLuminance(((DataBufferInt) buffer).getData(),
+                    buffer.getOffset() + translateY * scanline + translateX, scanline, bounds);
+            }
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                byte[] data = ((DataBufferByte) buffer).getData();
+                ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+                int[] bands = model.getBandOffsets();
+                int pixelStride = model.getPixelStride();
+                int scanline = model.getScanlineStride();
+                // 灰度只有一个分量，三个偏移都指向它
+                int red = bands[0];
+                int green = bands.length >= 3 ? bands[1] : bands[0];
+                int blue = bands.length >= 3 ? bands[2] : bands[0];
+                long sum = 0;
+                int count = 0;
+                for (int y = bounds.y; y < bounds.y + bounds.height; y += stepY) {
+                    int offset = buffer.getOffset() + (y + translateY) * scanline;
+                    for (int x = bounds.x; x < bounds.x + bounds.width; x += stepX) {
+                        int pixel = offset + (x + translateX) * pixelStride;
+                        sum += luminance(data[pixel + red] & 0xFF, data[pixel + green] & 0xFF, data[pixel + blue] & 0xFF);
+                        count++;
+                    }
+                }
+                return (int) (sum / count);
+            }
+            default: {
+                long sum = 0;
+                int count = 0;
+                for (int y = bounds.y; y < bounds.y + bounds.height; y += stepY) {
+                    for (int x = bounds.x; x < bounds.x + bounds.width; x += stepX) {
+                        int rgb = image.getRGB(x, y);
+                        sum += luminance((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+                        count++;
+                    }
+                }
+                return (int) (sum / count);
+            }
+        }
+    }
+    
+    /**
+     * 按固定间隔采样紧密排列的ARGB像素数组中一个区域的平均亮度
+     * 
+     * @param argb 像素数组，(x, y) 处的像素为 {@code argb[offset + y * scanline + x]}
+     * @param offset 坐标原点在数组中的位置，可以为负（数组只包含图片的一部分行时）
+     * @param scanline 每行的像素数
+     * @param area 采样区域，必须全部落在数组中
+     * @return 平均亮度 (0-255)；区域为空时为0
+     */
+    static int sampleLuminance(int[] argb, int offset, int scanline, Rectangle area) {
+        if (area.isEmpty()) {
+            return 0;
+        }
+        int stepX = Math.max(1, area.width / LUMINANCE_COLUMNS);
+        int stepY = Math.max(1, area.height / LUMINANCE_ROWS);
+        long sum = 0;
+        int count = 0;
+        for (int y = area.y; y < area.y + area.height; y += stepY) {
+            int row = offset + y * scanline;
+            for (int x = area.x; x < area.x + area.width; x += stepX) {
+                int rgb = argb[row + x];
+                sum += luminance((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+                count++;
+            }
+        }
+        return (int) (sum / count);
+    }
+    
+    private static int luminance(int red, int green, int blue) {
+        return (77 * red + 150 * green + 29 * blue) >> 8;
+    }
+    
+    /**
+     * 按默认编码参数将图片写入输出文件
+     * 
+     * @param image 待写入的图片，也可以是按需提供像素的 {@link RenderedImage}
+     * @param outputFile 输出图片文件，格式由扩展名决定
+     * @throws IOException 如果写入失败
+     */
+    public static void writeImage(RenderedImage image, File outputFile) throws IOException {
+        writeImage(image, outputFile, EncoderSettings.DEFAULT);
+    }
+    
+    /**
+     * 将图片编码写入输出文件（流水线的编码阶段），编码器取自当前线程的 {@link ImageCodecPool}
+     * 
+     * @param image 待写入的图片，也可以是按需提供像素的 {@link RenderedImage}
+     * @param outputFile 输出图片文件，格式由扩展名决定
+     * @param settings 编码参数
+     * @throws IOException 如果写入失败
+     */
+    public static void writeImage(RenderedImage image, File outputFile, EncoderSettings settings) throws IOException {
+        writeImage(image, outputFile, settings, null);
+    }
+    
+    /**
+     * 将图片编码写入输出文件，并原样写回源图片的元数据块
+     * 
+     * @param image 待写入的图片，也可以是按需提供像素的 {@link RenderedImage}
+     * @param outputFile 输出图片文件，格式由扩展名决定
+     * @param settings 编码参数
+     * @param metadata 源图片的元数据块，为null或格式与输出不同时不写
+     * @throws IOException 如果写入失败
+     */
+    public static void writeImage(RenderedImage image, File outputFile, EncoderSettings settings,
+                                  SourceMetadata metadata) throws IOException {
         String format = getImageFormat(outputFile.getName());
-        ImageIO.write(watermarkedImage, format, outputFile);
+        // 与 ImageIO.write 一样先删除旧文件，随机访问的输出流不会截断已有内容
+        Files.deleteIfExists(outputFile.toPath());
+        try (ImageOutputStream output = new FileImageOutputStream(outputFile)) {
+            settings.write(image, format, output, metadata);
+        }
+    }
+    
+    /**
+     * 估算一次水印处理在内存中占用的字节数：解码帧，以及需要转换时的 TYPE_INT_RGB 副本
+     * 
+     * @param decodedImage 解码后的图片
+     * @param format 输出格式
+     * @return 估算的字节数
+     */
+    public static long estimateRenderFootprint(BufferedImage decodedImage, String format) {
+        DataBuffer buffer = decodedImage.getRaster().getDataBuffer();
+        long decodedBytes = (long) buffer.getSize() * buffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        if (!requiresConversion(decodedImage, format)) {
+            return decodedBytes;
+        }
+        return decodedBytes + (long) decodedImage.getWidth() * decodedImage.getHeight() * 4;
+    }
+    
+    /**
+     * 只读取文件头，估算解码并绘制水印所需的内存（解码帧，以及需要转换时的 TYPE_INT_RGB 副本）
+     * 
+     * <p>尺寸和像素类型来自 {@link ImageReader}，不解码像素数据，
+     * 用于在解码之前按内存预算决定何时接纳这张图片。</p>
+     * 
+     * @param inputFile 输入图片文件
+     * @param format 输出格式
+     * @return 估算的字节数；没有可用的读取器或文件头无法解析时返回-1
+     */
+    public static long estimateFootprintFromHeader(File inputFile, String format) {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(inputFile)) {
+            if (stream == null) {
+                return -1;
+            }
+            ImageReader reader = ImageCodecPool.getReader(stream);
+            if (reader == null) {
+                return -1;
+            }
+            try {
+                reader.setInput(stream, true, true);
+                return estimateFootprint(reader, format);
+            } finally {
+                reader.reset();
+            }
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * 按已经设置了输入的 {@link ImageReader} 估算解码并绘制水印所需的内存，只读取文件头
+     * 
+     * @param reader 已设置输入的读取器
+     * @param format 输出格式
+     * @return 估算的字节数
+     * @throws IOException 如果文件头无法解析
+     */
+    static long estimateFootprint(ImageReader reader, String format) throws IOException {
+        long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+        ImageTypeSpecifier type = reader.getRawImageType(0);
+        if (type == null) {
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            type = types.hasNext() ? types.next() : null;
+        }
+        if (type == null) {
+            // 类型未知时按最常见的3字节像素估算
+            return pixels * 3 + pixels * 4;
+        }
+        // 每像素的存储字节数（按数据元素计，打包格式会略微高估）
+        SampleModel sampleModel = type.getSampleModel(1, 1);
+        long bytesPerPixel = Math.max(1, (long) sampleModel.getNumDataElements()
+                * DataBuffer.getDataTypeSize(sampleModel.getDataType()) / 8);
+        long decodedBytes = pixels * bytesPerPixel;
+        if (!requiresConversion(type.getBufferedImageType(), format)) {
+            return decodedBytes;
+        }
+        return decodedBytes + pixels * 4;
+    }
+    
+    /**
+     * 判断绘制前是否需要把解码帧转换为 TYPE_INT_RGB
+     * 
+     * <p>灰度、调色板等类型上直接绘制彩色抗锯齿文字会丢失颜色；
+     * 带透明通道的帧只有PNG和TIFF能原样写出，JPEG和BMP需要去掉透明通道。</p>
+     */
+    static boolean requiresConversion(BufferedImage image, String format) {
+        return requiresConversion(image.getType(), format);
+    }
+    
+    private static boolean requiresConversion(int imageType, String format) {
+        switch (imageType) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return false;
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                return !"png".equals(format) && !"tiff".equals(format);
+            default:
+                return true;
+        }
+    }
+    
+    /**
+     * 把任意类型的图片复制为 TYPE_INT_RGB
+     */
+    private static BufferedImage convertToRgb(BufferedImage image) {
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = converted.createGraphics();
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+        return converted;
     }
     
     /**
      * 计算水印文本的绘制位置
+     * 
+     * @param margin 水印与图片边缘的距离（像素）
      */
-    private static Point calculateWatermarkPosition(int imageWidth, int imageHeight, 
-                                                  int textWidth, int textHeight, 
-                                                  WatermarkPosition position) {
-        int margin = 20; // 边距
+    static Point calculateWatermarkPosition(int imageWidth, int imageHeight, 
+                                          int textWidth, int textHeight, 
+                                          WatermarkPosition position, int margin) {
         int x, y;
         
         switch (position) {
@@ -216,7 +842,7 @@ public class WatermarkRenderer {
     /**
      * 根据文件名获取图片格式
      */
-    private static String getImageFormat(String fileName) {
+    static String getImageFormat(String fileName) {
         String name = fileName.toLowerCase();
         if (name.endsWith(".png")) {
             return "png";
@@ -231,11 +857,29 @@ public class WatermarkRenderer {
         }
     }
     
+    /**
+     * 把ImageIO的格式名统一为 png/jpg/bmp/tiff
+     * 
+     * @param formatName ImageIO读取器的格式名或用户指定的格式
+     * @return 小写的格式名
+     */
+    static String normalizeFormat(String formatName) {
+        String name = formatName.toLowerCase(Locale.ROOT);
+        switch (name) {
+            case "jpeg":
+                return "jpg";
+            case "tif":
+                return "tiff";
+            default:
+                return name;
+        }
+    }
+    
     /**
      * 解析颜色字符串
      * 
-     * @param colorStr 颜色字符串，支持格式：red, blue, #FF0000, 255,0,0
-     * @return Color对象
+     * @param colorStr 颜色字符串，支持格式：auto, red, blue, #FF0000, 255,0,0
+     * @return Color对象；auto 返回 {@link #AUTO_COLOR}
      */
     public static Color parseColor(String colorStr) {
         if (colorStr == null || colorStr.trim().isEmpty()) {
@@ -246,6 +890,9 @@ public class WatermarkRenderer {
         
         // 预定义颜色
         switch (colorStr) {
+            case "auto":
+            case "自动":
+                return AUTO_COLOR;
             case "red":
             case "红色":
                 return Color.RED;
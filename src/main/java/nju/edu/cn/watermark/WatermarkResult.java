@@ -0,0 +1,136 @@
+package nju.edu.cn.watermark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * {@link WatermarkEngine} 处理一张图片的结果
+ *
+ * <p>处理失败和跳过都以结果返回，不抛出异常，也不向控制台输出；
+ * 成功时按调用方式带有编码后的字节（内存中处理）或输出文件（按路径处理）。</p>
+ */
+public final class WatermarkResult {
+    
+    private final PhotoWatermarkTool.ProcessResult status;
+    private final String watermarkText;
+    private final String format;
+    private final byte[] data;
+    private final Path output;
+    private final String message;
+    private final Throwable error;
+    
+    private WatermarkResult(PhotoWatermarkTool.ProcessResult status, String watermarkText, String format,
+                            byte[] data, Path output, String message, Throwable error) {
+        this.status = status;
+        this.watermarkText = watermarkText;
+        this.format = format;
+        this.data = data;
+        this.output = output;
+        this.message = message;
+        this.error = error;
+    }
+    
+    static WatermarkResult success(String watermarkText, String format) {
+        return new WatermarkResult(PhotoWatermarkTool.ProcessResult.SUCCESS, watermarkText, format,
+            null, null, "处理成功", null);
+    }
+    
+    static WatermarkResult skipped(String message) {
+        return new WatermarkResult(PhotoWatermarkTool.ProcessResult.SKIPPED_NO_EXIF, null, null,
+            null, null, message, null);
+    }
+    
+    static WatermarkResult failed(String message, Throwable error) {
+        return new WatermarkResult(PhotoWatermarkTool.ProcessResult.ERROR, null, null,
+            null, null, message, error);
+    }
+    
+    WatermarkResult withData(byte[] data) {
+        return new WatermarkResult(status, watermarkText, format, data, output, message, error);
+    }
+    
+    WatermarkResult withOutput(Path output) {
+        return new WatermarkResult(status, watermarkText, format, data, output, message, error);
+    }
+    
+    /**
+     * @return 处理结果：成功、没有EXIF拍摄时间而跳过，或失败
+     */
+    public PhotoWatermarkTool.ProcessResult getStatus() {
+        return status;
+    }
+    
+    public boolean isSuccess() {
+        return status == PhotoWatermarkTool.ProcessResult.SUCCESS;
+    }
+    
+    /**
+     * @return 按 {@link WatermarkConfig#getTemplate()} 生成的水印文本（默认是拍摄日期 yyyy-MM-dd），未成功时为null
+     */
+    public String getWatermarkText() {
+        return watermarkText;
+    }
+    
+    /**
+     * @return 输出格式（png/jpg/bmp/tiff），未成功时为null
+     */
+    public String getFormat() {
+        return format;
+    }
+    
+    /**
+     * @return 编码后的图片；只有内存中处理且成功时才有，否则为null。返回的是内部数组本身，不复制
+     */
+    public byte[] getBytes() {
+        return data;
+    }
+    
+    /**
+     * @return 编码后的图片的只读视图；没有时为null
+     */
+    public ByteBuffer asByteBuffer() {
+        return data == null ? null : ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+    
+    /**
+     * 把编码后的图片写到输出流
+     *
+     * @param out 输出流，不会被关闭
+     * @throws IOException 如果写入失败
+     * @throws IllegalStateException 如果结果不带编码后的字节
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (data == null) {
+            throw new IllegalStateException("结果不带编码后的图片: " + message);
+        }
+        out.write(data);
+    }
+    
+    /**
+     * @return 输出文件；只有按路径处理且成功时才有，否则为null
+     */
+    public Path getOutput() {
+        return output;
+    }
+    
+    /**
+     * @return 结果说明，例如 "处理成功"、"跳过（无EXIF拍摄时间）"、"处理失败: ..."
+     */
+    public String getMessage() {
+        return message;
+    }
+    
+    /**
+     * @return 失败的原因，其他情况为null
+     */
+    public Throwable getError() {
+        return error;
+    }
+    
+    @Override
+    public String toString() {
+        return status + ": " + message + (output != null ? " -> " + output : "");
+    }
+}
@@ -0,0 +1,435 @@
+package nju.edu.cn.watermark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 本地HTTP水印服务：{@code POST /watermark}，请求体是图片，响应体是加了水印的图片
+ *
+ * <p>水印样式通过查询参数指定，与命令行选项对应，未指定的取启动服务时的命令行设置：</p>
+ * <ul>
+ *   <li>{@code size}：字体大小（1-200）</li>
+ *   <li>{@code color}：字体颜色，格式同 {@code -c}</li>
+ *   <li>{@code position}：水印位置，格式同 {@code -p}</li>
+ *   <li>{@code format}：输出格式（jpg/png/bmp/tiff），默认与输入相同</li>
+ * </ul>
+ *
+ * <p>每个请求在独立的虚拟线程中处理。请求体经 {@link MemoryCacheImageInputStream} 直接交给解码器，
+ * 只缓存一次；EXIF拍摄时间从同一个缓存的开头读取，再回到起点解码。解码前按文件头估算的内存
+ * 从 {@link MemoryBudget} 取得份额，与批处理模式共用同一套准入规则。</p>
+ *
+ * <p>像素数不超过 {@value #BATCH_MAX_PIXELS} 的小图不在请求线程中编码，而是交给固定数量的编码线程：
+ * 每个编码线程一次取走队列中积压的全部任务（最多 {@value #MAX_BATCH} 个）连续编码，并且复用
+ * {@link ImageCodecPool} 中各格式的编码器，并发的小请求因此分摊了查找和创建编码器的开销。
+ * 大图在请求线程中直接编码到响应流。编码参数取自命令行的 {@link EncoderSettings}。
+ * 输出格式与输入相同时，读取EXIF时取出的 {@link SourceMetadata} 原样写回响应。</p>
+ */
+public class WatermarkServer {
+    
+    private static final long BATCH_MAX_PIXELS = 4_000_000L;
+    private static final int MAX_BATCH = 16;
+    
+    private final CommandLineOptions defaults;
+    private final MemoryBudget memoryBudget;
+    private final long maxDecodableBytes = (long) (Runtime.getRuntime().maxMemory() * 0.9);
+    private final BatchStatistics statistics = new BatchStatistics();
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    private final EncodeBatcher batcher;
+    private final HttpServer server;
+    private final ExecutorService requestExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    
+    /**
+     * @param defaults 命令行选项，提供监听地址、端口和默认的水印样式
+     * @param memoryBudget 解码帧的内存预算
+     * @throws IOException 如果无法绑定端口
+     */
+    public WatermarkServer(CommandLineOptions defaults, MemoryBudget memoryBudget) throws IOException {
+        this.defaults = defaults;
+        this.memoryBudget = memoryBudget;
+        this.batcher = new EncodeBatcher(defaults.getParallelism(), defaults.getEncoderSettings(), metrics);
+        this.server = HttpServer.create(new InetSocketAddress(defaults.getBindAddress(), defaults.getServePort()), 0);
+        server.createContext("/watermark", this::handle);
+        server.setExecutor(requestExecutor);
+    }
+    
+    public void start() {
+        server.start();
+    }
+    
+    /**
+     * 停止接受新请求，等待正在处理的请求最多 delaySeconds 秒
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        requestExecutor.shutdown();
+        batcher.stop();
+        metrics.stop();
+    }
+    
+    /**
+     * @return 实际监听的地址（端口为0时由系统分配）
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+    
+    public BatchStatistics getStatistics() {
+        return statistics;
+    }
+    
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * @return 批量编码的批次数
+     */
+    public long getBatchCount() {
+        return batcher.batches.sum();
+    }
+    
+    /**
+     * @return 经批量编码的图片数
+     */
+    public long getBatchedImageCount() {
+        return batcher.images.sum();
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendError(exchange, 405, "只支持POST请求");
+                return;
+            }
+            statistics.recordDiscovered();
+            RequestOptions request;
+            try {
+                request = RequestOptions.parse(exchange.getRequestURI().getRawQuery(), defaults);
+            } catch (IllegalArgumentException e) {
+                statistics.record(PhotoWatermarkTool.ProcessResult.ERROR);
+                sendError(exchange, 400, e.getMessage());
+                return;
+            }
+            try {
+                process(exchange, request);
+            } catch (Exception | OutOfMemoryError e) {
+                statistics.record(PhotoWatermarkTool.ProcessResult.ERROR);
+                String reason = e instanceof OutOfMemoryError ? "内存不足 (" + e.getMessage() + ")" : e.getMessage();
+                if (exchange.getResponseCode() == -1) {
+                    sendError(exchange, 500, "处理失败: " + reason);
+                }
+            }
+        }
+    }
+    
+    private void process(HttpExchange exchange, RequestOptions request) throws IOException, InterruptedException {
+        try (ImageInputStream stream = new MemoryCacheImageInputStream(exchange.getRequestBody())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                statistics.record(PhotoWatermarkTool.ProcessResult.ERROR);
+                sendError(exchange, 415, "无法识别的图片格式");
+                return;
+            }
+            
+            // 从缓存的开头读取EXIF，再回到起点交给解码器，请求体只缓存一次
+            ExifReader.ExifInfo exif = ExifReader.readExif(stream, !defaults.isStripMetadata());
+            String watermarkText = defaults.getTemplate().format(exif.getCaptureTime());
+            if (watermarkText == null) {
+                statistics.record(PhotoWatermarkTool.ProcessResult.SKIPPED_NO_EXIF);
+                sendError(exchange, 422, "图片没有EXIF拍摄时间");
+                return;
+            }
+            
+            ImageReader reader = readers.next();
+            long granted = 0;
+            try {
+                reader.setInput(stream, true, true);
+                String format = request.format != null
+                    ? request.format : WatermarkRenderer.normalizeFormat(reader.getFormatName());
+                long estimate = WatermarkRenderer.estimateFootprint(reader, format);
+                if (estimate > maxDecodableBytes) {
+                    statistics.record(PhotoWatermarkTool.ProcessResult.ERROR);
+                    sendError(exchange, 413, String.format("解码约需 %dMB 内存，超过JVM最大堆 %dMB",
+                        estimate >> 20, Runtime.getRuntime().maxMemory() >> 20));
+                    return;
+                }
+                granted = memoryBudget.acquire(estimate);
+                
+                long start = System.nanoTime();
+                BufferedImage image = reader.read(0);
+                metrics.recordSince(PipelineMetrics.Stage.DECODE, start);
+                metrics.addBytesRead(stream.getStreamPosition());
+                reader.dispose();
+                drainRequestBody(exchange);
+                SourceMetadata metadata = exif.getMetadata() == null
+                    ? null : exif.getMetadata().forDecodedImage(image.getColorModel());
+                
+                start = System.nanoTime();
+                image = WatermarkRenderer.renderWatermark(image, format, watermarkText, request.fontSize,
+                    request.color, request.position, WatermarkRenderer.MARGIN,
+                    SourceMetadata.outputOrientation(metadata, format));
+                metrics.recordSince(PipelineMetrics.Stage.RENDER, start);
+                
+                exchange.getResponseHeaders().set("Content-Type", contentType(format));
+                exchange.getResponseHeaders().set("X-Watermark-Text", escapeHeaderValue(watermarkText));
+                if ((long) image.getWidth() * image.getHeight() <= BATCH_MAX_PIXELS) {
+                    byte[] encoded = batcher.encode(image, format, metadata);
+                    exchange.sendResponseHeaders(200, encoded.length);
+                    try (OutputStream body = exchange.getResponseBody()) {
+                        body.write(encoded);
+                    }
+                    metrics.addBytesWritten(encoded.length);
+                } else {
+                    // 大图直接编码到分块传输的响应流，不在内存中保留编码结果
+                    start = System.nanoTime();
+                    exchange.sendResponseHeaders(200, 0);
+                    try (OutputStream body = exchange.getResponseBody();
+                         ImageOutputStream output = new MemoryCacheImageOutputStream(body)) {
+                        defaults.getEncoderSettings().write(image, format, output, metadata);
+                    }
+                    metrics.recordSince(PipelineMetrics.Stage.ENCODE, start);
+                }
+                statistics.record(PhotoWatermarkTool.ProcessResult.SUCCESS);
+            } finally {
+                reader.dispose();
+                memoryBudget.release(granted);
+            }
+        }
+    }
+    
+    /**
+     * 丢弃解码器没有读到的请求体（如EOI之后的厂商附加数据）。
+     * 未读完就响应时服务端会关闭连接，客户端复用该连接的下一个请求会失败
+     */
+    private static void drainRequestBody(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+    }
+    
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        drainRequestBody(exchange);
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+    
+    private static String contentType(String format) {
+        return "image/" + ("jpg".equals(format) ? "jpeg" : format);
+    }
+    
+    /**
+     * 响应头只能携带ASCII：模板生成的中文等字符按UTF-8写成 %XX，% 本身写作 %25
+     */
+    static String escapeHeaderValue(String value) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x7F && c != '%') {
+                if (escaped != null) {
+                    escaped.append(c);
+                }
+                continue;
+            }
+            if (escaped == null) {
+                escaped = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            int end = Character.isHighSurrogate(c) && i + 1 < value.length() ? i + 2 : i + 1;
+            for (byte b : value.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+                escaped.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+            }
+            i = end - 1;
+        }
+        return escaped == null ? value : escaped.toString();
+    }
+    
+    /**
+     * 一次请求的水印设置：查询参数覆盖命令行默认值
+     */
+    private static final class RequestOptions {
+        int fontSize;
+        Color color;
+        WatermarkRenderer.WatermarkPosition position;
+        String format;
+        
+        static RequestOptions parse(String rawQuery, CommandLineOptions defaults) {
+            RequestOptions options = new RequestOptions();
+            options.fontSize = defaults.getFontSize();
+            options.color = defaults.getColor();
+            options.position = defaults.getPosition();
+            Map<String, String> query = new HashMap<>();
+            if (rawQuery != null && !rawQuery.isEmpty()) {
+                for (String pair : rawQuery.split("&")) {
+                    int equals = pair.indexOf('=');
+                    String key = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+                    String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+                    query.put(key, value);
+                }
+            }
+            if (query.containsKey("size")) {
+                try {
+                    options.fontSize = Integer.parseInt(query.get("size"));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("无效的字体大小格式");
+                }
+                if (options.fontSize <= 0 || options.fontSize > 200) {
+                    throw new IllegalArgumentException("字体大小必须在1-200之间");
+                }
+            }
+            if (query.containsKey("color")) {
+                options.color = WatermarkRenderer.parseColor(query.get("color"));
+            }
+            if (query.containsKey("position")) {
+                options.position = WatermarkRenderer.WatermarkPosition.fromString(query.get("position"));
+            }
+            if (query.containsKey("format")) {
+                String format = WatermarkRenderer.normalizeFormat(query.get("format"));
+                if (!"jpg".equals(format) && !"png".equals(format) && !"bmp".equals(format) && !"tiff".equals(format)) {
+                    throw new IllegalArgumentException("不支持的输出格式: " + query.get("format"));
+                }
+                options.format = format;
+            }
+            return options;
+        }
+    }
+    
+    /**
+     * 小图的批量编码：固定数量的平台线程从队列中成批取出任务，复用每种格式的编码器
+     */
+    private static final class EncodeBatcher {
+        private final BlockingQueue<EncodeTask> queue = new LinkedBlockingQueue<>();
+        private final List<Thread> workers = new ArrayList<>();
+        final LongAdder batches = new LongAdder();
+        final LongAdder images = new LongAdder();
+        private final EncoderSettings settings;
+        private final PipelineMetrics metrics;
+        private volatile boolean stopped;
+        
+        EncodeBatcher(int threads, EncoderSettings settings, PipelineMetrics metrics) {
+            this.settings = settings;
+            this.metrics = metrics;
+            for (int i = 0; i < threads; i++) {
+                workers.add(Thread.ofPlatform().name("encode-batch-" + i).daemon().start(this::work));
+            }
+        }
+        
+        /**
+         * 提交编码任务并等待结果，在虚拟线程中调用时等待不占用平台线程
+         */
+        byte[] encode(BufferedImage image, String format, SourceMetadata metadata)
+                throws IOException, InterruptedException {
+            EncodeTask task = new EncodeTask(image, format, metadata);
+            queue.put(task);
+            if (stopped) {
+                // 与 stop 同时提交的任务可能错过了它的清理
+                failPending();
+            }
+            try {
+                return task.result.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+            }
+        }
+        
+        /**
+         * 停止编码线程，队列中尚未取出的任务以异常结束，等待它们的请求不会一直阻塞
+         */
+        void stop() {
+            stopped = true;
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            failPending();
+        }
+        
+        private void failPending() {
+            List<EncodeTask> pending = new ArrayList<>();
+            queue.drainTo(pending);
+            for (EncodeTask task : pending) {
+                task.result.completeExceptionally(new IOException("服务已停止"));
+            }
+        }
+        
+        private void work() {
+            List<EncodeTask> batch = new ArrayList<>(MAX_BATCH);
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    batches.increment();
+                    images.add(batch.size());
+                    for (EncodeTask task : batch) {
+                        try {
+                            // 只统计编码本身，不含在队列中等待的时间
+                            long start = System.nanoTime();
+                            byte[] encoded = encode(task);
+                            metrics.recordSince(PipelineMetrics.Stage.ENCODE, start);
+                            task.result.complete(encoded);
+                        } catch (Exception | OutOfMemoryError e) {
+                            task.result.completeExceptionally(e);
+                        }
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                // 服务停止
+            }
+        }
+        
+        /**
+         * 编码线程是固定的平台线程，编码器取自 {@link ImageCodecPool}，在各批之间复用
+         */
+        private byte[] encode(EncodeTask task) throws IOException {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream(
+                Math.max(8192, task.image.getWidth() * task.image.getHeight() / 4));
+            try (ImageOutputStream output = new MemoryCacheImageOutputStream(encoded)) {
+                settings.write(task.image, task.format, output, task.metadata);
+            }
+            return encoded.toByteArray();
+        }
+    }
+    
+    private static final class EncodeTask {
+        final BufferedImage image;
+        final String format;
+        final SourceMetadata metadata;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        
+        EncodeTask(BufferedImage image, String format, SourceMetadata metadata) {
+            this.image = image;
+            this.format = format;
+            this.metadata = metadata;
+        }
+    }
+}
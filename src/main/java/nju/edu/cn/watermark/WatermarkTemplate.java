@@ -0,0 +1,226 @@
+package nju.edu.cn.watermark;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 水印文本模板，如 "{date:yyyy/MM/dd} {time}"
+ *
+ * <p>占位符：{date} 拍摄日期（yyyy-MM-dd）、{time} 拍摄时刻（HH:mm:ss）、{offset} 拍摄时的UTC偏移（+08:00）；
+ * {date:模式} 和 {time:模式} 按 {@link DateTimeFormatter} 的模式输出，如 {date:yyyy年M月d日}、{time:HH:mm xxx}；
+ * {{ 和 }} 表示花括号本身，其余字符原样输出。默认模板 {date} 与没有模板时的水印相同。</p>
+ *
+ * <p>模板在启动时编译一次：每个模式只构造一个格式化器，并用样本时间确定它需要日期、时刻还是偏移，之后各线程共享。
+ * 不带模式的占位符直接拼出数字，不经过格式化器。照片没有记录时刻（或OffsetTimeOriginal等偏移标签）时，
+ * 需要它的占位符输出为空，并去掉因此留下的首尾空白；整个文本为空时按没有拍摄时间处理。</p>
+ */
+public final class WatermarkTemplate {
+    
+    /** 默认模板，只输出拍摄日期 */
+    public static final String DEFAULT_SOURCE = "{date}";
+    public static final WatermarkTemplate DEFAULT = compile(DEFAULT_SOURCE);
+    
+    private static final int LITERAL = 0;
+    private static final int DATE = 1;
+    private static final int TIME = 2;
+    private static final int OFFSET = 3;
+    private static final int PATTERN_DATE = 4;
+    private static final int PATTERN_TIME = 5;
+    private static final int PATTERN_OFFSET = 6;
+    
+    private static final LocalDateTime SAMPLE = LocalDateTime.of(2000, 1, 2, 3, 4, 5);
+    
+    private final String source;
+    private final Segment[] segments;
+    
+    private WatermarkTemplate(String source, Segment[] segments) {
+        this.source = source;
+        this.segments = segments;
+    }
+    
+    /**
+     * 编译模板
+     *
+     * @param source 模板文本
+     * @return 编译好的模板，可以在多个线程中共享
+     * @throws IllegalArgumentException 如果占位符未闭合、名称未知，或模式不合法
+     */
+    public static WatermarkTemplate compile(String source) {
+        if (source == null || source.isEmpty()) {
+            throw new IllegalArgumentException("水印模板不能为空");
+        }
+        List<Segment> segments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if ((c == '{' || c == '}') && i + 1 < source.length() && source.charAt(i + 1) == c) {
+                literal.append(c);
+                i += 2;
+                continue;
+            }
+            if (c == '}') {
+                throw new IllegalArgumentException("水印模板中有多余的 }（花括号本身写作 }}）: " + source);
+            }
+            if (c != '{') {
+                literal.append(c);
+                i++;
+                continue;
+            }
+            int end = source.indexOf('}', i + 1);
+            if (end < 0) {
+                throw new IllegalArgumentException("水印模板中的 { 没有闭合（花括号本身写作 {{）: " + source);
+            }
+            if (literal.length() > 0) {
+                segments.add(new Segment(LITERAL, literal.toString(), null));
+                literal.setLength(0);
+            }
+            segments.add(compilePlaceholder(source.substring(i + 1, end)));
+            i = end + 1;
+        }
+        if (literal.length() > 0) {
+            segments.add(new Segment(LITERAL, literal.toString(), null));
+        }
+        return new WatermarkTemplate(source, segments.toArray(new Segment[0]));
+    }
+    
+    private static Segment compilePlaceholder(String placeholder) {
+        int colon = placeholder.indexOf(':');
+        String name = (colon < 0 ? placeholder : placeholder.substring(0, colon)).trim();
+        if (colon < 0) {
+            switch (name) {
+                case "date":
+                    return new Segment(DATE, null, null);
+                case "time":
+                    return new Segment(TIME, null, null);
+                case "offset":
+                    return new Segment(OFFSET, null, null);
+                default:
+                    throw new IllegalArgumentException("未知的占位符 {" + placeholder + "}（可选 date、time、offset）");
+            }
+        }
+        if (!"date".equals(name) && !"time".equals(name)) {
+            throw new IllegalArgumentException("占位符 {" + placeholder + "} 不能带模式（只有 date 和 time 可以）");
+        }
+        String pattern = placeholder.substring(colon + 1);
+        if (pattern.isEmpty()) {
+            throw new IllegalArgumentException("占位符 {" + placeholder + "} 的模式为空");
+        }
+        DateTimeFormatter formatter;
+        try {
+            formatter = DateTimeFormatter.ofPattern(pattern);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("无效的日期时间模式 \"" + pattern + "\": " + e.getMessage());
+        }
+        // 依次用只有日期、带时刻、带偏移的样本试格式化，确定这个模式需要哪些字段
+        if (formats(formatter, SAMPLE.toLocalDate())) {
+            return new Segment(PATTERN_DATE, null, formatter);
+        }
+        if (formats(formatter, SAMPLE)) {
+            return new Segment(PATTERN_TIME, null, formatter);
+        }
+        if (formats(formatter, SAMPLE.atOffset(ZoneOffset.ofHours(8)))) {
+            return new Segment(PATTERN_OFFSET, null, formatter);
+        }
+        throw new IllegalArgumentException("日期时间模式 \"" + pattern + "\" 用到了照片没有记录的字段（如时区名称）");
+    }
+    
+    private static boolean formats(DateTimeFormatter formatter, TemporalAccessor sample) {
+        try {
+            formatter.format(sample);
+            return true;
+        } catch (DateTimeException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * 按模板生成一张照片的水印文本
+     *
+     * @param captureTime 拍摄时间，可以为null
+     * @return 水印文本；没有拍摄时间或生成的文本为空时返回null
+     */
+    public String format(CaptureTime captureTime) {
+        if (captureTime == null) {
+            return null;
+        }
+        if (isDefault()) {
+            // 默认模板直接使用解析时已经拼好的日期
+            return captureTime.getDate();
+        }
+        StringBuilder text = new StringBuilder(32);
+        for (Segment segment : segments) {
+            switch (segment.kind) {
+                case LITERAL:
+                    text.append(segment.literal);
+                    break;
+                case DATE:
+                    text.append(captureTime.getDate());
+                    break;
+                case TIME:
+                    captureTime.appendTime(text);
+                    break;
+                case OFFSET:
+                    captureTime.appendOffset(text);
+                    break;
+                default:
+                    TemporalAccessor value = segment.kind == PATTERN_DATE ? captureTime.toLocalDate()
+                        : segment.kind == PATTERN_TIME ? captureTime.toLocalDateTime()
+                        : captureTime.toOffsetDateTime();
+                    if (value != null) {
+                        segment.formatter.formatTo(value, text);
+                    }
+                    break;
+            }
+        }
+        // 缺少时刻或偏移时去掉留下的首尾空白，避免靠边对齐的水印偏离边距
+        int start = 0;
+        int end = text.length();
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        return start == end ? null : text.substring(start, end);
+    }
+    
+    /**
+     * @return 模板文本
+     */
+    public String getSource() {
+        return source;
+    }
+    
+    /**
+     * @return 是否与默认模板等价，等价时不参与渲染设置指纹
+     */
+    public boolean isDefault() {
+        return segments.length == 1 && segments[0].kind == DATE;
+    }
+    
+    @Override
+    public String toString() {
+        return source;
+    }
+    
+    /**
+     * 模板中的一段：原样输出的文字、不带模式的占位符，或带格式化器的占位符
+     */
+    private static final class Segment {
+        final int kind;
+        final String literal;
+        final DateTimeFormatter formatter;
+        
+        Segment(int kind, String literal, DateTimeFormatter formatter) {
+            this.kind = kind;
+            this.literal = literal;
+            this.formatter = formatter;
+        }
+    }
+}